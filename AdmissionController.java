@@ -0,0 +1,124 @@
+// AdmissionController.java
+// Decides whether a freshly accepted socket may stay connected.
+//
+// Three limits (all from server.properties):
+//   server.maxConnections           open sockets in total (logged in or not)
+//   server.maxConnectionsPerIp      open sockets from one IP address
+//   server.maxConnectsPerIpPerMinute new connections from one IP per minute
+//
+// tryAdmit() counts an admitted socket; release() must be called once when it closes.
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class AdmissionController {
+
+    // Rejection reasons (also used as connections.csv event suffixes).
+    public static final String FULL = "FULL";
+    public static final String IP_LIMIT = "IP_LIMIT";
+    public static final String RATE = "RATE";
+
+    private static final long RATE_WINDOW_MS = 60_000;
+    private static final int RATE_MAP_SWEEP_SIZE = 10_000;
+
+    private final int maxConnections;
+    private final int maxPerIp;
+    private final int maxConnectsPerWindow;
+
+    private final AtomicInteger active = new AtomicInteger();
+    private final Map<String, AtomicInteger> perIp = new ConcurrentHashMap<>();
+    private final Map<String, RateWindow> rates = new ConcurrentHashMap<>();
+
+    public AdmissionController(ServerConfig config) {
+        this.maxConnections = config.getInt("server.maxConnections", 1000);
+        this.maxPerIp = config.getInt("server.maxConnectionsPerIp", 20);
+        this.maxConnectsPerWindow = config.getInt("server.maxConnectsPerIpPerMinute", 60);
+    }
+
+    public int getActiveConnections() {
+        return active.get();
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    // Returns null if the connection is admitted (and counted), otherwise the reason.
+    public String tryAdmit(String ip) {
+        if (!allowRate(ip)) {
+            return RATE;
+        }
+        if (active.incrementAndGet() > maxConnections) {
+            active.decrementAndGet();
+            return FULL;
+        }
+        AtomicInteger n = perIp.computeIfAbsent(ip, k -> new AtomicInteger());
+        if (n.incrementAndGet() > maxPerIp) {
+            release(ip);
+            return IP_LIMIT;
+        }
+        return null;
+    }
+
+    // An admitted connection has closed.
+    public void release(String ip) {
+        active.decrementAndGet();
+        perIp.computeIfPresent(ip, (k, n) -> n.decrementAndGet() <= 0 ? null : n);
+    }
+
+    // True only for the first rejection of an IP in the current window, so a
+    // connect flood produces one log line per minute instead of one per attempt.
+    public boolean isFirstRateRejection(String ip) {
+        RateWindow w = rates.get(ip);
+        return w != null && w.count == maxConnectsPerWindow + 1;
+    }
+
+    // Human-readable reason sent to the client before closing.
+    public String describe(String reason) {
+        switch (reason) {
+            case FULL:
+                return "[SYSTEM] Server is full (" + maxConnections + " connections). Please try again later.";
+            case IP_LIMIT:
+                return "[SYSTEM] Too many connections from your address (limit " + maxPerIp + ").";
+            default:
+                return "[SYSTEM] Too many connection attempts from your address. Please slow down.";
+        }
+    }
+
+    private boolean allowRate(String ip) {
+        long now = System.currentTimeMillis();
+        if (rates.size() > RATE_MAP_SWEEP_SIZE) {
+            sweepRates(now);
+        }
+        RateWindow w = rates.computeIfAbsent(ip, k -> new RateWindow(now));
+        synchronized (w) {
+            if (now - w.start >= RATE_WINDOW_MS) {
+                w.start = now;
+                w.count = 0;
+            }
+            w.count++;
+            return w.count <= maxConnectsPerWindow;
+        }
+    }
+
+    // Drop windows that have expired so the map does not grow without bound.
+    private void sweepRates(long now) {
+        Iterator<RateWindow> it = rates.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().start >= RATE_WINDOW_MS) {
+                it.remove();
+            }
+        }
+    }
+
+    private static final class RateWindow {
+        long start;
+        volatile int count;
+
+        RateWindow(long start) {
+            this.start = start;
+        }
+    }
+}
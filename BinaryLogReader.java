@@ -0,0 +1,131 @@
+// BinaryLogReader.java
+// Streams records out of a file written by BinaryLogWriter.
+//
+// Usage:
+//   BinaryLogReader r = new BinaryLogReader(in);
+//   while (r.next()) { ... r.timestamp, r.fromUser ... }
+//
+// The fields of the current record are overwritten by each call to next().
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class BinaryLogReader {
+
+    private final DataInputStream in;
+    private final byte kind;
+    private final String[] typeNames;
+    private String[] symbols = new String[256];
+
+    // Current record.
+    public byte recordType;        // BinaryLogWriter.REC_CHAT or REC_CONNECTION
+    public long timestamp;         // epoch millis
+    public String fromUser;        // CHAT
+    public String toUser;          // CHAT
+    public String messageType;     // CHAT, MessageType name
+    public String message;         // CHAT
+    public String username;        // CONNECTION
+    public String ip;              // CONNECTION
+    public int port;               // CONNECTION
+    public String event;           // CONNECTION
+
+    public BinaryLogReader(InputStream in) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(in, 64 * 1024));
+
+        byte[] magic = new byte[BinaryLogWriter.MAGIC.length];
+        this.in.readFully(magic);
+        if (!Arrays.equals(magic, BinaryLogWriter.MAGIC)) {
+            throw new IOException("Not a binary chat log.");
+        }
+        int version = this.in.readUnsignedByte();
+        if (version != BinaryLogWriter.VERSION) {
+            throw new IOException("Unsupported binary log version " + version);
+        }
+        this.kind = this.in.readByte();
+        int types = readVarint();
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < types; i++) {
+            names.add(readString());
+        }
+        this.typeNames = names.toArray(new String[0]);
+    }
+
+    public boolean isChatLog() {
+        return kind == BinaryLogWriter.KIND_CHAT;
+    }
+
+    // Advance to the next CHAT or CONNECTION record. Returns false at end of file.
+    // A record cut short by a crash is treated as the end of the file.
+    public boolean next() throws IOException {
+        try {
+            while (true) {
+                int tag = in.read();
+                if (tag < 0) return false;
+                switch (tag) {
+                    case BinaryLogWriter.REC_SYMBOL: {
+                        int id = readVarint();
+                        String value = readString();
+                        if (id >= symbols.length) {
+                            symbols = Arrays.copyOf(symbols, Math.max(symbols.length * 2, id + 1));
+                        }
+                        symbols[id] = value;
+                        break;
+                    }
+                    case BinaryLogWriter.REC_CHAT: {
+                        recordType = BinaryLogWriter.REC_CHAT;
+                        timestamp = in.readLong();
+                        fromUser = symbol(readVarint());
+                        toUser = symbol(readVarint());
+                        int t = in.readUnsignedByte();
+                        messageType = t < typeNames.length ? typeNames[t] : "UNKNOWN";
+                        message = readString();
+                        return true;
+                    }
+                    case BinaryLogWriter.REC_CONNECTION: {
+                        recordType = BinaryLogWriter.REC_CONNECTION;
+                        timestamp = in.readLong();
+                        username = symbol(readVarint());
+                        ip = symbol(readVarint());
+                        port = readVarint();
+                        event = readString();
+                        return true;
+                    }
+                    default:
+                        throw new IOException("Corrupt binary log: unknown record tag " + tag);
+                }
+            }
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private String symbol(int id) throws IOException {
+        if (id >= symbols.length || symbols[id] == null) {
+            throw new IOException("Corrupt binary log: undefined symbol " + id);
+        }
+        return symbols[id];
+    }
+
+    private int readVarint() throws IOException {
+        int v = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            v |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return v;
+        }
+        throw new IOException("Corrupt binary log: varint too long");
+    }
+
+    private String readString() throws IOException {
+        byte[] b = new byte[readVarint()];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,179 @@
+// BinaryLogWriter.java
+// Compact binary alternative to the CSV logs (enabled with log.format=binary|both).
+//
+// File layout:
+//   header  : "CHLB", version byte, kind byte (1 = chat, 2 = connections),
+//             varint typeCount, typeCount x string  (MessageType names, then EXPIRING;
+//             index = type byte)
+//   records : one tag byte followed by the record body
+//     SYMBOL     varint id, string                      (defines/overwrites id -> text)
+//     CHAT       int64 timestamp, varint from, varint to, type byte, string body
+//     CONNECTION int64 timestamp, varint user, varint ip, varint port, string event
+//   string  = varint byteLength + UTF-8 bytes
+//
+// User names and IPs are interned: the first time a value is written to a file a
+// SYMBOL record assigns it an id and later records only carry the id. The symbol
+// table starts over in every file, so each rolled segment can be read on its own.
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+public class BinaryLogWriter {
+
+    static final byte[] MAGIC = {'C', 'H', 'L', 'B'};
+    static final int VERSION = 1;
+    static final byte KIND_CHAT = 1;
+    static final byte KIND_CONNECTIONS = 2;
+
+    // Type name for /expire broadcasts, after the MessageType names in the header.
+    static final String EXPIRING = "EXPIRING";
+    static final int EXPIRING_TYPE = MessageType.values().length;
+
+    static final byte REC_SYMBOL = 1;
+    static final byte REC_CHAT = 2;
+    static final byte REC_CONNECTION = 3;
+
+    // Past this many symbols the table restarts; later SYMBOL records overwrite ids.
+    private static final int MAX_SYMBOLS = 100_000;
+
+    private final RollingLogFile file;
+
+    // Guarded by "this".
+    private final Map<String, Integer> symbols = new HashMap<>();
+    private byte[] buf = new byte[512];
+    private int len;
+
+    public BinaryLogWriter(RollingLogFile file) {
+        this.file = file;
+    }
+
+    // Header bytes for a new file of the given kind.
+    static byte[] header(byte kind) {
+        BinaryLogWriter w = new BinaryLogWriter(null);
+        w.putBytes(MAGIC, MAGIC.length);
+        w.putByte(VERSION);
+        w.putByte(kind);
+        MessageType[] types = MessageType.values();
+        w.putVarint(types.length + 1);
+        for (MessageType t : types) {
+            w.putString(t.name());
+        }
+        w.putString(EXPIRING);
+        return Arrays.copyOf(w.buf, w.len);
+    }
+
+    public synchronized void writeChat(long ts, String fromUser, String toUser, MessageType type, String message)
+            throws IOException {
+        writeChat(ts, fromUser, toUser, type, message, true);
+    }
+
+    // flush=false leaves the record buffered until flush().
+    public void writeChat(long ts, String fromUser, String toUser, MessageType type, String message,
+                          boolean flush) throws IOException {
+        writeChat(ts, fromUser, toUser, type.ordinal(), message, flush);
+    }
+
+    // type is a MessageType ordinal or EXPIRING_TYPE.
+    public synchronized void writeChat(long ts, String fromUser, String toUser, int type, String message,
+                                       boolean flush) throws IOException {
+        int bodyLength = ServerUtils.utf8Length(message);
+        startRecord(bodyLength + 32);
+        int from = symbol(fromUser);
+        int to = symbol(toUser);
+        putByte(REC_CHAT);
+        putLong(ts);
+        putVarint(from);
+        putVarint(to);
+        putByte(type);
+        putUtf8(message, bodyLength);
+        file.write(buf, 0, len, flush);
+    }
+
+    public void flush() throws IOException {
+        file.flush();
+    }
+
+    public synchronized void writeConnection(long ts, String username, String ip, int port, String event)
+            throws IOException {
+        startRecord(event.length() * 3 + 32);
+        int user = symbol(username);
+        int addr = symbol(ip);
+        putByte(REC_CONNECTION);
+        putLong(ts);
+        putVarint(user);
+        putVarint(addr);
+        putVarint(port);
+        putString(event);
+        file.write(buf, 0, len);
+    }
+
+    public void close() {
+        file.close();
+    }
+
+    private void startRecord(int estimate) throws IOException {
+        // A freshly opened file has no symbols yet.
+        if (file.prepare(estimate) || symbols.size() >= MAX_SYMBOLS) {
+            symbols.clear();
+        }
+        len = 0;
+    }
+
+    // Id for a value, emitting a SYMBOL record into the buffer the first time.
+    private int symbol(String value) {
+        Integer id = symbols.get(value);
+        if (id != null) return id;
+        int newId = symbols.size();
+        symbols.put(value, newId);
+        putByte(REC_SYMBOL);
+        putVarint(newId);
+        putString(value);
+        return newId;
+    }
+
+    private void ensure(int extra) {
+        if (len + extra > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + extra));
+        }
+    }
+
+    private void putByte(int b) {
+        ensure(1);
+        buf[len++] = (byte) b;
+    }
+
+    private void putLong(long v) {
+        ensure(8);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            buf[len++] = (byte) (v >>> shift);
+        }
+    }
+
+    private void putVarint(int v) {
+        ensure(5);
+        while ((v & ~0x7F) != 0) {
+            buf[len++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        buf[len++] = (byte) v;
+    }
+
+    private void putBytes(byte[] b, int n) {
+        ensure(n);
+        System.arraycopy(b, 0, buf, len, n);
+        len += n;
+    }
+
+    private void putString(String s) {
+        putUtf8(s, ServerUtils.utf8Length(s));
+    }
+
+    // Length-prefixed UTF-8, encoded straight into the record buffer.
+    private void putUtf8(String s, int byteLength) {
+        putVarint(byteLength);
+        ensure(byteLength);
+        len = ServerUtils.encodeUtf8(s, buf, len);
+    }
+}
@@ -1,9 +1,13 @@
 // ChatClient.java
 // Simple terminal client for the chat server.
+// A thin shell over ChatConnection: prints what the server sends and forwards
+// what the user types (login answers included). File transfers are handled
+// here: "/send <user> <path>" and "/accept <id> [directory]".
 
-import java.io.*;
-import java.net.Socket;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Scanner;
+import java.util.concurrent.ExecutionException;
 
 public class ChatClient {
 
@@ -21,51 +25,99 @@ public class ChatClient {
             port = Integer.parseInt(portStr);
         }
 
+        ChatConnection conn = new ChatConnection(host, port, new ChatListener() {
+            @Override
+            public void onMessage(String line) {
+                System.out.println(line);
+            }
+
+            @Override
+            public void onPrompt(String prompt) {
+                System.out.print(prompt);
+                System.out.flush();
+            }
+
+            @Override
+            public void onDisconnected(String reason, boolean willReconnect) {
+                System.out.println("[CLIENT] Disconnected from server.");
+            }
+        });
+        // We never hold the password here, so there is nothing to reconnect with.
+        conn.setAutoReconnect(false);
+        conn.setTypingIndicators(true);
+
         try {
-            Socket socket = new Socket(host, port);
-            System.out.println("[CLIENT] Connected to " + host + ":" + port);
-
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-            Thread readerThread = new Thread(() -> {
-                try {
-                    String line;
-                    while ((line = in.readLine()) != null) {
-                        System.out.println(line);
-                    }
-                } catch (IOException e) {
-                    System.out.println("[CLIENT] Disconnected from server.");
-                }
-            });
-            readerThread.setDaemon(true);
-            readerThread.start();
-
-            while (true) {
-                // Coarse typing indicator: mark typing before entering a line
-                out.println("/typing");
-
-                String userInput = scanner.nextLine();
-                if (userInput == null) break;
-                userInput = userInput.trim();
-
-                if (userInput.isEmpty()) {
-                    out.println("/stoppedtyping");
-                    continue;
-                }
-
-                out.println(userInput);
-                out.println("/stoppedtyping");
-
-                if (userInput.equalsIgnoreCase("/quit")) {
-                    System.out.println("[CLIENT] Closing connection.");
-                    break;
-                }
+            conn.connect().get();
+        } catch (ExecutionException e) {
+            System.out.println("[CLIENT ERROR] " + e.getCause().getMessage());
+            return;
+        } catch (InterruptedException e) {
+            return;
+        }
+        System.out.println("[CLIENT] Connected to " + host + ":" + port);
+
+        while (conn.getState() != ChatConnection.State.DISCONNECTED) {
+            // Coarse typing indicator: mark typing before entering a line
+            conn.typing();
+
+            if (!scanner.hasNextLine()) break;
+            String userInput = scanner.nextLine().trim();
+
+            if (userInput.equalsIgnoreCase("/quit")) {
+                System.out.println("[CLIENT] Closing connection.");
+                break;
+            }
+
+            if (!conn.isOnline()) {
+                conn.sendRaw(userInput);  // answer to a login prompt
+            } else if (userInput.isEmpty()) {
+                conn.stoppedTyping();
+            } else if (userInput.startsWith("/send ")) {
+                sendFile(conn, userInput);
+            } else if (userInput.startsWith("/accept ")) {
+                acceptFile(conn, userInput);
+            } else {
+                conn.send(userInput);
             }
+        }
+
+        conn.close();
+    }
+
+    // /send <user> <path>
+    private static void sendFile(ChatConnection conn, String input) {
+        String[] parts = input.split("\\s+", 3);
+        if (parts.length < 3) {
+            System.out.println("[CLIENT] Usage: /send <user> <path>");
+            return;
+        }
+        Path file = Paths.get(parts[2]);
+        conn.sendFile(parts[1], file).whenComplete((bytes, e) -> {
+            if (e == null) {
+                System.out.println("[CLIENT] Sent " + file.getFileName() + " (" + bytes + " bytes).");
+            } else {
+                System.out.println("[CLIENT] Sending " + file.getFileName() + " failed: " + rootMessage(e));
+            }
+        });
+    }
+
+    // /accept <id> [directory]
+    private static void acceptFile(ChatConnection conn, String input) {
+        String[] parts = input.split("\\s+", 3);
+        Path dir = Paths.get(parts.length == 3 ? parts[2] : ".");
+        conn.acceptFile(parts[1], dir).whenComplete((path, e) -> {
+            if (e == null) {
+                System.out.println("[CLIENT] Saved " + path.toAbsolutePath());
+            } else {
+                System.out.println("[CLIENT] Receiving " + parts[1] + " failed: " + rootMessage(e));
+            }
+        });
+    }
 
-            socket.close();
-        } catch (IOException e) {
-            System.out.println("[CLIENT ERROR] " + e.getMessage());
+    private static String rootMessage(Throwable e) {
+        while (e.getCause() != null) {
+            e = e.getCause();
         }
+        return e.getMessage();
     }
 }
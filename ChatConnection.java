@@ -0,0 +1,1093 @@
+// ChatConnection.java
+// Reusable asynchronous client for the chat server, for bots, bridges and the
+// terminal ChatClient.
+//
+//   ChatConnection conn = new ChatConnection("localhost", 12345, System.out::println);
+//   conn.login("bot", "secret", true).get();
+//   conn.send("hello everyone");
+//   conn.pm("alice", "hi").thenAccept(echo -> ...);
+//   conn.list().thenAccept(users -> ...);
+//   conn.syncRoster().thenAccept(online -> ...);   // diff against the last sync
+//   conn.sendFile("alice", Paths.get("report.pdf")).thenAccept(bytes -> ...);
+//   conn.acceptFile(offerId, Paths.get("downloads"));  // after "[FILE] OFFER <id> ..."
+//
+// Files do not travel over the chat socket: once the recipient accepts, both
+// sides open a data connection to the server's file port and the bytes are
+// streamed with FileChannel.transferTo / transferFrom.
+//
+// Each connection has a reader thread (splits lines, completes command futures,
+// calls the ChatListener) and a writer thread that writes everything queued in
+// one burst and flushes once, so high-rate senders are not one syscall per line.
+//
+// Logging in with credentials also enables automatic reconnect: a dropped
+// connection is re-established with exponential backoff and logged in again,
+// unless the user was kicked or the password was rejected. The reconnect
+// presents the session token from the last login ("/resume <token>") right
+// away, so it takes one round trip; if the token is refused it falls back to
+// the username/password prompts.
+//
+// Mail that waited for this user ("[MAIL <seq>] ..." after the history) is
+// acknowledged automatically once the whole mailbox has reached the listener;
+// numbers seen before are not passed on twice.
+//
+// The server's round-trip probes ("[PING] <id>") are answered by the reader
+// thread and never reach the listener.
+//
+// Typing indicators are off by default (see setTypingIndicators()).
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class ChatConnection {
+
+    public enum State { DISCONNECTED, CONNECTING, LOGGING_IN, ONLINE, CLOSED }
+
+    private static final int CONNECT_TIMEOUT_MS = 10_000;
+    private static final long MIN_BACKOFF_MS = 500;
+    private static final long MAX_BACKOFF_MS = 30_000;
+
+    // Writer sentinel, compared by identity.
+    private static final String CLOSE = new String("<close>");
+
+    // Shared by all connections: connects (blocking) and reconnect backoff.
+    private static final ExecutorService CONNECTOR = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "ChatConnection-Connect");
+        t.setDaemon(true);
+        return t;
+    });
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "ChatConnection-Timer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final String host;
+    private final int port;
+    private final ChatListener listener;
+
+    private volatile boolean autoReconnect = true;
+    private volatile boolean typingIndicators = false;
+    private volatile long commandTimeoutMs = 10_000;
+    private volatile long aiTimeoutMs = 120_000;
+
+    // Credentials for automatic login; null for interactive use, where prompts
+    // go to the listener and are answered with sendRaw().
+    private volatile String username;
+    private volatile String password;
+    private volatile boolean signupIfMissing;
+
+    private volatile State state = State.DISCONNECTED;
+    private volatile Session session;
+    private volatile boolean typing;
+    private volatile String sessionToken;  // from "[SYSTEM] Session token: ..."
+
+    // Guarded by "this".
+    private CompletableFuture<Void> loginFuture;
+    private String unansweredPrompt;       // prompt that arrived before login() was called
+    private boolean everOnline;            // reconnect only after a login has worked
+    private boolean noReconnect;           // kicked, or credentials rejected
+    private boolean reconnecting;
+    private boolean resumeInFlight;        // sent /resume, reply not seen yet
+    private long backoffMs = MIN_BACKOFF_MS;
+
+    // Commands waiting for their reply, oldest first. Guarded by "pending".
+    private final Object pending = new Object();
+    private final Deque<PendingPm> pendingPms = new ArrayDeque<>();
+    private final Deque<CompletableFuture<List<String>>> pendingLists = new ArrayDeque<>();
+    private final Deque<CompletableFuture<String>> pendingAi = new ArrayDeque<>();
+    private final Deque<CompletableFuture<Set<String>>> pendingRosters = new ArrayDeque<>();
+
+    // File transfers. Guarded by "pending".
+    private final Deque<OutgoingFile> pendingOffers = new ArrayDeque<>();     // /send sent, no id yet
+    private final Map<String, OutgoingFile> outgoing = new HashMap<>();       // by transfer id
+    private final Map<String, String[]> offers = new HashMap<>();             // id -> {from, size, name}
+    private final Map<String, IncomingFile> downloads = new HashMap<>();      // accepted, by id
+
+    // Local copy of the server's roster and the id it corresponds to. Guarded by "pending".
+    private Set<String> roster = new TreeSet<>();
+    private String rosterId;
+
+    // /roster reply being applied (reader thread only).
+    private CompletableFuture<Set<String>> collectingRoster;
+    private Set<String> stagedRoster;
+    private String stagedRosterId;
+    private int rosterLinesLeft;
+
+    // Highest mailbox number passed to the listener (reader thread only).
+    private long lastMailSeq;
+
+    // /list reply being collected (reader thread only).
+    private CompletableFuture<List<String>> collectingList;
+    private List<String> collectedUsers;
+    private int usersExpected;
+
+    public ChatConnection(String host, int port, ChatListener listener) {
+        this.host = host;
+        this.port = port;
+        this.listener = listener;
+    }
+
+    // ---- Settings ----
+
+    public void setAutoReconnect(boolean autoReconnect) {
+        this.autoReconnect = autoReconnect;
+    }
+
+    // When off (the default), typing() and stoppedTyping() send nothing.
+    public void setTypingIndicators(boolean enabled) {
+        this.typingIndicators = enabled;
+    }
+
+    // How long pm() and list() wait for the server's reply.
+    public void setCommandTimeoutMillis(long millis) {
+        this.commandTimeoutMs = millis;
+    }
+
+    // How long askGpt() waits for the answer.
+    public void setAiTimeoutMillis(long millis) {
+        this.aiTimeoutMs = millis;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public boolean isOnline() {
+        return state == State.ONLINE;
+    }
+
+    // ---- Connecting and logging in ----
+
+    // Open the socket. Login prompts are passed to the listener until login() is called.
+    public CompletableFuture<Void> connect() {
+        CompletableFuture<Void> f = new CompletableFuture<>();
+        CONNECTOR.execute(() -> {
+            try {
+                open();
+                f.complete(null);
+            } catch (IOException e) {
+                synchronized (this) {
+                    if (state == State.CONNECTING) state = State.DISCONNECTED;
+                }
+                f.completeExceptionally(e);
+            }
+        });
+        return f;
+    }
+
+    // Connect if needed and log in, answering the server's prompts. If the user
+    // does not exist it is created when signupIfMissing is true. Completes once
+    // the server confirms; fails with an IOException carrying the server's reason.
+    public CompletableFuture<Void> login(String username, String password, boolean signupIfMissing) {
+        CompletableFuture<Void> f = new CompletableFuture<>();
+        boolean needConnect;
+        synchronized (this) {
+            if (state == State.CLOSED) {
+                f.completeExceptionally(new IOException("Connection is closed."));
+                return f;
+            }
+            if (state == State.ONLINE) {
+                f.completeExceptionally(new IllegalStateException("Already logged in."));
+                return f;
+            }
+            this.username = username;
+            this.password = password;
+            this.signupIfMissing = signupIfMissing;
+            this.sessionToken = null;
+            this.noReconnect = false;
+            this.loginFuture = f;
+            needConnect = session == null && state != State.CONNECTING;
+            if (unansweredPrompt != null) {
+                String prompt = unansweredPrompt;
+                unansweredPrompt = null;
+                answerPrompt(session, prompt);
+            }
+        }
+        if (needConnect) {
+            connect().whenComplete((v, e) -> {
+                if (e != null) failLogin(e.getCause() != null ? e.getCause().getMessage() : e.getMessage());
+            });
+        }
+        return f;
+    }
+
+    // Disconnect for good (no reconnect). Lines already queued are still sent.
+    public void close() {
+        Session s;
+        synchronized (this) {
+            state = State.CLOSED;
+            s = session;
+            session = null;
+        }
+        if (s != null) {
+            s.closeAfterPending();
+        }
+        failLogin("Connection closed.");
+        failPending("Connection closed.");
+    }
+
+    // ---- Sending ----
+
+    // Send a chat line (or any command). Returns false if not logged in.
+    public boolean send(String text) {
+        Session s = session;
+        if (s == null || state != State.ONLINE) return false;
+        typing = false;  // the server clears the typing state on any line
+        return s.enqueue(text);
+    }
+
+    // Send a line in any state, e.g. to answer a login prompt interactively.
+    public boolean sendRaw(String line) {
+        Session s = session;
+        return s != null && s.enqueue(line);
+    }
+
+    public void typing() {
+        if (!typingIndicators || typing || !isOnline()) return;
+        typing = send("/typing");
+    }
+
+    public void stoppedTyping() {
+        if (!typing) return;
+        send("/stoppedtyping");
+    }
+
+    // Completes with the server's echo ("[PM to user] message").
+    public CompletableFuture<String> pm(String user, String message) {
+        CompletableFuture<String> f = new CompletableFuture<>();
+        if (user.isEmpty() || user.chars().anyMatch(Character::isWhitespace) || message.trim().isEmpty()) {
+            f.completeExceptionally(new IllegalArgumentException("Usage: pm(user, message)"));
+            return f;
+        }
+        synchronized (pending) {
+            pendingPms.add(new PendingPm(user, f));
+        }
+        return issue("/pm " + user + " " + message, f, commandTimeoutMs);
+    }
+
+    // Completes with the online users as the server lists them (admins also see
+    // address and queue depths after the name).
+    public CompletableFuture<List<String>> list() {
+        CompletableFuture<List<String>> f = new CompletableFuture<>();
+        synchronized (pending) {
+            pendingLists.add(f);
+        }
+        return issue("/list", f, commandTimeoutMs);
+    }
+
+    // Bring the local roster up to date: the first call (and any call after the
+    // server restarted) fetches the full list, later calls only the changes.
+    // Completes with who is online now.
+    public CompletableFuture<Set<String>> syncRoster() {
+        CompletableFuture<Set<String>> f = new CompletableFuture<>();
+        String since;
+        synchronized (pending) {
+            pendingRosters.add(f);
+            since = rosterId;
+        }
+        return issue(since == null ? "/roster" : "/roster " + since, f, commandTimeoutMs);
+    }
+
+    // Roster as of the last completed syncRoster().
+    public Set<String> getRoster() {
+        synchronized (pending) {
+            return Collections.unmodifiableSet(new TreeSet<>(roster));
+        }
+    }
+
+    // Completes with the AI's answer (without the "[AI] " prefix).
+    public CompletableFuture<String> askGpt(String prompt) {
+        CompletableFuture<String> f = new CompletableFuture<>();
+        if (prompt.trim().isEmpty()) {
+            f.completeExceptionally(new IllegalArgumentException("Usage: askGpt(prompt)"));
+            return f;
+        }
+        synchronized (pending) {
+            pendingAi.add(f);
+        }
+        return issue("/askgpt " + prompt, f, aiTimeoutMs);
+    }
+
+    // Offer a file to a user. Completes with the number of bytes delivered once
+    // the server reports the transfer done; fails if the offer is refused,
+    // declined or expires, or the transfer breaks.
+    public CompletableFuture<Long> sendFile(String user, Path file) {
+        CompletableFuture<Long> f = new CompletableFuture<>();
+        long size;
+        try {
+            size = Files.size(file);
+        } catch (IOException e) {
+            f.completeExceptionally(e);
+            return f;
+        }
+        if (user.isEmpty() || user.chars().anyMatch(Character::isWhitespace)) {
+            f.completeExceptionally(new IllegalArgumentException("Usage: sendFile(user, file)"));
+            return f;
+        }
+        OutgoingFile o = new OutgoingFile(file, size, f);
+        synchronized (pending) {
+            pendingOffers.add(o);
+        }
+        if (!send("/send " + user + " " + size + " " + file.getFileName())) {
+            f.completeExceptionally(new IOException("Not logged in."));
+        }
+        return f;
+    }
+
+    // Accept an offer seen as "[FILE] OFFER <id> <from> <size> <name>". If target
+    // is a directory the offered name is used inside it. Completes with the
+    // saved file once all bytes have arrived.
+    public CompletableFuture<Path> acceptFile(String id, Path target) {
+        CompletableFuture<Path> f = new CompletableFuture<>();
+        String[] offer;
+        synchronized (pending) {
+            offer = offers.remove(id);
+            if (offer != null) {
+                Path dest = Files.isDirectory(target)
+                        ? target.resolve(Paths.get(offer[2]).getFileName().toString()) : target;
+                downloads.put(id, new IncomingFile(dest, f));
+            }
+        }
+        if (offer == null) {
+            f.completeExceptionally(new IllegalArgumentException("No file offer " + id + "."));
+        } else if (!send("/accept " + id)) {
+            f.completeExceptionally(new IOException("Not logged in."));
+        }
+        return f;
+    }
+
+    public boolean declineFile(String id) {
+        synchronized (pending) {
+            offers.remove(id);
+        }
+        return send("/decline " + id);
+    }
+
+    // Registered futures are matched to replies in order; a future that timed
+    // out or failed to send is simply skipped when its reply arrives.
+    private <T> CompletableFuture<T> issue(String command, CompletableFuture<T> f, long timeoutMs) {
+        if (!send(command)) {
+            f.completeExceptionally(new IOException("Not logged in."));
+            return f;
+        }
+        return f.orTimeout(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    // ---- Connection lifecycle ----
+
+    private void open() throws IOException {
+        synchronized (this) {
+            if (state == State.CLOSED) throw new IOException("Connection is closed.");
+            if (session != null) return;
+            state = State.CONNECTING;
+        }
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        Session s = new Session(socket);
+        synchronized (this) {
+            if (state == State.CLOSED) {
+                s.closeNow();
+                throw new IOException("Connection is closed.");
+            }
+            session = s;
+            state = State.LOGGING_IN;
+            // Queued before the reader starts, so it goes out without waiting for a prompt.
+            resumeInFlight = username != null && sessionToken != null;
+            if (resumeInFlight) {
+                s.enqueue("/resume " + sessionToken);
+            }
+        }
+        Thread reader = new Thread(() -> readLoop(s), "ChatConnection-Reader");
+        reader.setDaemon(true);
+        reader.start();
+        Thread writer = new Thread(() -> writeLoop(s), "ChatConnection-Writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private void endSession(Session s, String reason) {
+        s.closeNow();
+        boolean retry;
+        synchronized (this) {
+            if (session != s) return;  // closed by close()
+            session = null;
+            typing = false;
+            unansweredPrompt = null;
+            resumeInFlight = false;
+            retry = autoReconnect && everOnline && !noReconnect && username != null;
+            state = retry ? State.CONNECTING : State.DISCONNECTED;
+            reconnecting = retry;
+        }
+        failLogin(reason);
+        failPending(reason);
+        listener.onDisconnected(reason, retry);
+        if (retry) {
+            scheduleReconnect();
+        }
+    }
+
+    private void scheduleReconnect() {
+        long delay;
+        synchronized (this) {
+            delay = backoffMs;
+            backoffMs = Math.min(MAX_BACKOFF_MS, backoffMs * 2);
+        }
+        // Jitter so a restarted server is not hit by every bot at once.
+        delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        TIMER.schedule(() -> CONNECTOR.execute(() -> {
+            if (state == State.CLOSED) return;
+            try {
+                open();
+            } catch (IOException e) {
+                scheduleReconnect();
+            }
+        }), delay, TimeUnit.MILLISECONDS);
+    }
+
+    // ---- Reading ----
+
+    private void readLoop(Session s) {
+        String reason = "Connection closed by server.";
+        char[] buf = new char[8192];
+        StringBuilder partial = new StringBuilder();
+        try {
+            int n;
+            while ((n = s.in.read(buf)) != -1) {
+                for (int i = 0; i < n; i++) {
+                    char c = buf[i];
+                    if (c == '\n') {
+                        int len = partial.length();
+                        if (len > 0 && partial.charAt(len - 1) == '\r') {
+                            partial.setLength(len - 1);
+                        }
+                        handleLine(s, partial.toString());
+                        partial.setLength(0);
+                    } else {
+                        partial.append(c);
+                    }
+                }
+                if (!s.in.ready()) {
+                    // End of what the server sent in one go: a trailing "Name: "
+                    // without a line break is a prompt waiting for an answer.
+                    if (state == State.LOGGING_IN && endsWithPrompt(partial)) {
+                        handlePrompt(s, partial.toString());
+                        partial.setLength(0);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            if (!s.closed) reason = "Connection lost: " + e.getMessage();
+        } finally {
+            if (collectingList != null) {
+                collectingList.completeExceptionally(new IOException("Disconnected during /list."));
+                collectingList = null;
+            }
+            if (collectingRoster != null) {
+                collectingRoster.completeExceptionally(new IOException("Disconnected during /roster."));
+                collectingRoster = null;
+            }
+            rosterLinesLeft = 0;
+            if (s.lastLine != null && s.lastLine.startsWith("[SYSTEM] ")) {
+                reason = s.lastLine;  // e.g. "Server is full", kicked, shutting down
+            }
+            endSession(s, reason);
+        }
+    }
+
+    private static boolean endsWithPrompt(StringBuilder sb) {
+        int len = sb.length();
+        return len >= 2 && sb.charAt(len - 2) == ':' && sb.charAt(len - 1) == ' ';
+    }
+
+    private void handlePrompt(Session s, String prompt) {
+        if (s.closed) return;  // login already failed
+        synchronized (this) {
+            if (resumeInFlight && prompt.equals("Username: ")) {
+                return;  // the /resume line already answered it
+            }
+            if (username != null && answerPrompt(s, prompt)) {
+                return;
+            }
+            unansweredPrompt = prompt;
+        }
+        listener.onPrompt(prompt);
+    }
+
+    // Answer a known login prompt from the stored credentials.
+    private boolean answerPrompt(Session s, String prompt) {
+        String answer;
+        switch (prompt) {
+            case "Username: ":
+                answer = username;
+                break;
+            case "Password: ":
+            case "Create password: ":
+            case "Confirm password: ":
+                answer = password;
+                break;
+            default:
+                return false;
+        }
+        return s != null && s.enqueue(answer);
+    }
+
+    private void handleLine(Session s, String line) {
+        if (line.startsWith("[SYSTEM] Session token: ")) {
+            // A credential: kept for reconnects, never passed to the listener.
+            sessionToken = line.substring("[SYSTEM] Session token: ".length());
+            return;
+        }
+        if (state == State.LOGGING_IN) {
+            boolean auto;
+            synchronized (this) {
+                auto = username != null;
+            }
+            if (auto) {
+                // Answers sent ahead of a prompt (/resume) leave the prompt glued
+                // to the start of the next line; with automatic login it is noise.
+                line = stripPrompts(line);
+            }
+            s.lastLine = line;
+            handleLoginLine(s, line, auto);
+        } else {
+            s.lastLine = line;
+            if (line.startsWith("[PING] ")) {
+                // Answered right here so the round trip does not include the listener.
+                s.enqueue("/pong " + line.substring("[PING] ".length()));
+                return;
+            }
+            if (isRepeatedMail(line)) {
+                return;
+            }
+            handleOnlineLine(line);
+        }
+        listener.onMessage(line);
+    }
+
+    // "[MAIL <seq>] ..." already passed to the listener, e.g. redelivered
+    // because the connection dropped before /mailack got through.
+    private boolean isRepeatedMail(String line) {
+        if (!line.startsWith("[MAIL ")) return false;
+        int end = line.indexOf(']');
+        long seq;
+        try {
+            seq = Long.parseLong(line.substring("[MAIL ".length(), end));
+        } catch (RuntimeException e) {
+            return false;
+        }
+        if (seq <= lastMailSeq) return true;
+        lastMailSeq = seq;
+        return false;
+    }
+
+    private static String stripPrompts(String line) {
+        String[] prompts = { "Username: ", "Password: ", "Create password: ", "Confirm password: " };
+        boolean stripped = true;
+        while (stripped) {
+            stripped = false;
+            for (String p : prompts) {
+                if (line.startsWith(p)) {
+                    line = line.substring(p.length());
+                    stripped = true;
+                }
+            }
+        }
+        return line;
+    }
+
+    private void handleLoginLine(Session s, String line, boolean auto) {
+        if (line.startsWith("[SYSTEM] Login successful.") || line.startsWith("[SYSTEM] Signup successful.")
+                || line.startsWith("[SYSTEM] Session resumed.")) {
+            goOnline();
+            return;
+        }
+        if (!auto) return;  // interactive: the user reads and answers everything
+
+        if (line.startsWith("[SYSTEM] Session token rejected.")) {
+            // Expired or revoked; the server prompts for the password next.
+            sessionToken = null;
+            synchronized (this) {
+                resumeInFlight = false;
+            }
+        } else if (line.startsWith("[SYSTEM] Username not found.")) {
+            s.enqueue(signupIfMissing ? "yes" : "no");
+        } else if (line.startsWith("[SYSTEM] Wrong password.")
+                || line.startsWith("[SYSTEM] Signup declined.")
+                || line.startsWith("[SYSTEM] Signup failed")
+                || line.startsWith("[SYSTEM] Passwords do not match.")) {
+            // Retrying the same credentials would just fail again.
+            synchronized (this) {
+                noReconnect = true;
+            }
+            failLogin(line);
+            s.closeAfterPending();
+        }
+    }
+
+    private void goOnline() {
+        CompletableFuture<Void> f;
+        boolean wasReconnect;
+        synchronized (this) {
+            state = State.ONLINE;
+            resumeInFlight = false;
+            backoffMs = MIN_BACKOFF_MS;
+            everOnline = true;
+            wasReconnect = reconnecting;
+            reconnecting = false;
+            f = loginFuture;
+            loginFuture = null;
+        }
+        // Let the server measure our round trip (and notice if we vanish).
+        sendRaw("/probes on");
+        if (f != null) {
+            f.complete(null);
+        }
+        if (wasReconnect) {
+            listener.onReconnected();
+        }
+    }
+
+    // Match replies to pending command futures.
+    private void handleOnlineLine(String line) {
+        if (rosterLinesLeft > 0 && (line.startsWith(" + ") || line.startsWith(" - "))) {
+            String name = line.substring(3);
+            if (line.charAt(1) == '+') stagedRoster.add(name);
+            else stagedRoster.remove(name);
+            if (--rosterLinesLeft == 0) {
+                finishRoster();
+            }
+            return;
+        }
+        if (line.startsWith("[ROSTER] ")) {
+            startRoster(line);
+            return;
+        }
+
+        if (collectingList != null && line.startsWith(" - ")) {
+            collectedUsers.add(line.substring(3));
+            if (collectedUsers.size() >= usersExpected) {
+                finishList();
+            }
+            return;
+        }
+
+        if (line.startsWith("[SYSTEM] Active users (") && line.endsWith("):")) {
+            finishList();
+            synchronized (pending) {
+                collectingList = pollLive(pendingLists);
+            }
+            collectedUsers = new ArrayList<>();
+            usersExpected = Integer.parseInt(line.substring("[SYSTEM] Active users (".length(), line.length() - 2));
+            if (usersExpected == 0) {
+                finishList();
+            }
+        } else if (line.startsWith("[PM to ")) {
+            int end = line.indexOf("] ");
+            if (end > 0) {
+                completePm(line.substring("[PM to ".length(), end), line, null);
+            }
+        } else if (line.startsWith("[SYSTEM] User not found or not online: ")) {
+            completePm(line.substring("[SYSTEM] User not found or not online: ".length()), null, line);
+        } else if (line.startsWith("[SYSTEM] Mailbox of ") && line.contains(" is full")) {
+            completePm(line.substring("[SYSTEM] Mailbox of ".length(), line.indexOf(" is full")), null, line);
+        } else if (line.startsWith("[SYSTEM] Could not keep the message for ")) {
+            int end = line.indexOf(": ", "[SYSTEM] Could not keep the message for ".length());
+            if (end > 0) {
+                completePm(line.substring("[SYSTEM] Could not keep the message for ".length(), end), null, line);
+            }
+        } else if (line.startsWith("[SYSTEM] PM to ") && line.contains(" not sent: ")) {
+            // Throttled or blocked by moderation.
+            completePm(line.substring("[SYSTEM] PM to ".length(), line.indexOf(" not sent: ")), null, line);
+        } else if (line.startsWith("=== End of Mailbox (/mailack ") && line.endsWith(") ===")) {
+            // Everything up to here reached the listener; the server may drop it.
+            sendRaw(line.substring("=== End of Mailbox (".length(), line.length() - ") ===".length()));
+        } else if (line.startsWith("[SYSTEM] You are sending /list requests too fast")) {
+            CompletableFuture<List<String>> f;
+            synchronized (pending) {
+                f = pollLive(pendingLists);
+            }
+            if (f != null) f.completeExceptionally(new IOException(line));
+        } else if (line.startsWith("[SYSTEM] You are sending /roster requests too fast")) {
+            CompletableFuture<Set<String>> f;
+            synchronized (pending) {
+                f = pollLive(pendingRosters);
+            }
+            if (f != null) f.completeExceptionally(new IOException(line));
+        } else if (line.startsWith("[AI ERROR] ") || line.startsWith("[SYSTEM] You are sending AI requests too fast")) {
+            CompletableFuture<String> f;
+            synchronized (pending) {
+                f = pollLive(pendingAi);
+            }
+            if (f != null) f.completeExceptionally(new IOException(line));
+        } else if (line.startsWith("[AI] ") && !line.equals("[AI] Working on your request...")) {
+            CompletableFuture<String> f;
+            synchronized (pending) {
+                f = pollLive(pendingAi);
+            }
+            if (f != null) f.complete(line.substring("[AI] ".length()));
+        } else if (line.startsWith("[FILE] ")) {
+            handleFileLine(line);
+        } else if (line.startsWith("[SYSTEM] You are sending file offers too fast")) {
+            failOffer(line);
+        } else if (line.startsWith("[SYSTEM] You have been kicked")) {
+            synchronized (this) {
+                noReconnect = true;
+            }
+        }
+    }
+
+    private void handleFileLine(String line) {
+        String[] p = line.split(" ");
+        switch (p[1]) {
+            case "OFFER":      // OFFER <id> <from> <size> <name>
+                if (p.length >= 6) {
+                    synchronized (pending) {
+                        offers.put(p[2], new String[] { p[3], p[4], restAfter(line, 5) });
+                    }
+                }
+                break;
+            case "OFFERED": {  // OFFERED <id> <to> <size> <name>
+                synchronized (pending) {
+                    OutgoingFile o = pendingOffers.poll();
+                    if (o != null) outgoing.put(p[2], o);
+                }
+                break;
+            }
+            case "REFUSED":
+                failOffer(line);
+                break;
+            case "UPLOAD": {   // UPLOAD <id> <port> <key>
+                OutgoingFile o;
+                synchronized (pending) {
+                    o = outgoing.get(p[2]);
+                }
+                if (o != null) {
+                    int dataPort = Integer.parseInt(p[3]);
+                    CONNECTOR.execute(() -> upload(p[2], o, dataPort, p[4]));
+                }
+                break;
+            }
+            case "DOWNLOAD": { // DOWNLOAD <id> <port> <key> <size> <name>
+                IncomingFile d;
+                synchronized (pending) {
+                    d = downloads.get(p[2]);
+                }
+                if (d != null) {
+                    int dataPort = Integer.parseInt(p[3]);
+                    long size = Long.parseLong(p[5]);
+                    CONNECTOR.execute(() -> download(p[2], d, dataPort, p[4], size));
+                }
+                break;
+            }
+            case "DONE": {     // DONE <id> <bytes> <ms>
+                OutgoingFile o;
+                synchronized (pending) {
+                    o = outgoing.remove(p[2]);
+                    downloads.remove(p[2]);
+                }
+                if (o != null) o.future.complete(Long.parseLong(p[3]));
+                break;
+            }
+            case "FAILED":     // FAILED <id> <reason>
+            case "DECLINED": { // DECLINED <id> <user>
+                OutgoingFile o;
+                IncomingFile d;
+                synchronized (pending) {
+                    o = outgoing.remove(p[2]);
+                    d = downloads.remove(p[2]);
+                }
+                if (o != null) o.future.completeExceptionally(new IOException(line));
+                if (d != null) d.future.completeExceptionally(new IOException(line));
+                break;
+            }
+            default:
+                break;
+        }
+    }
+
+    private void failOffer(String reason) {
+        OutgoingFile o;
+        synchronized (pending) {
+            o = pendingOffers.poll();
+        }
+        if (o != null) o.future.completeExceptionally(new IOException(reason));
+    }
+
+    private static String restAfter(String line, int fields) {
+        int at = 0;
+        for (int i = 0; i < fields; i++) {
+            at = line.indexOf(' ', at) + 1;
+        }
+        return line.substring(at);
+    }
+
+    // Data connection: key line first, then the file straight from the page cache.
+    private void upload(String id, OutgoingFile o, int dataPort, String key) {
+        try (SocketChannel ch = openData(dataPort, key);
+             FileChannel file = FileChannel.open(o.file, StandardOpenOption.READ)) {
+            long pos = 0;
+            while (pos < o.size) {
+                long n = file.transferTo(pos, o.size - pos, ch);
+                if (n <= 0 && pos >= file.size()) {
+                    throw new IOException("file shrank while sending");
+                }
+                pos += n;
+            }
+        } catch (IOException e) {
+            synchronized (pending) {
+                outgoing.remove(id);
+            }
+            o.future.completeExceptionally(e);
+        }
+    }
+
+    private void download(String id, IncomingFile d, int dataPort, String key, long size) {
+        try (SocketChannel ch = openData(dataPort, key);
+             FileChannel file = FileChannel.open(d.target, StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long pos = 0;
+            while (pos < size) {
+                long n = file.transferFrom(ch, pos, size - pos);
+                if (n <= 0) {
+                    throw new IOException("connection closed after " + pos + " of " + size + " bytes");
+                }
+                pos += n;
+            }
+            d.future.complete(d.target);
+        } catch (IOException e) {
+            synchronized (pending) {
+                downloads.remove(id);
+            }
+            d.future.completeExceptionally(e);
+        }
+    }
+
+    private SocketChannel openData(int dataPort, String key) throws IOException {
+        SocketChannel ch = SocketChannel.open();
+        try {
+            ch.socket().connect(new InetSocketAddress(host, dataPort), CONNECT_TIMEOUT_MS);
+            ByteBuffer hello = ByteBuffer.wrap((key + "\n").getBytes(StandardCharsets.US_ASCII));
+            while (hello.hasRemaining()) {
+                ch.write(hello);
+            }
+            return ch;
+        } catch (IOException e) {
+            ch.close();
+            throw e;
+        }
+    }
+
+    // Complete (echo != null) or fail the oldest pending pm to target. Every
+    // answer to a /pm names its target, and the server answers a target's PMs
+    // in the order they were sent.
+    private void completePm(String target, String echo, String error) {
+        PendingPm match = null;
+        synchronized (pending) {
+            Iterator<PendingPm> it = pendingPms.iterator();
+            while (it.hasNext()) {
+                PendingPm p = it.next();
+                if (p.future.isDone()) {
+                    it.remove();
+                } else if (p.target.equals(target)) {
+                    it.remove();
+                    match = p;
+                    break;
+                }
+            }
+        }
+        if (match == null) return;
+        if (echo != null) {
+            match.future.complete(echo);
+        } else {
+            match.future.completeExceptionally(new IOException(error));
+        }
+    }
+
+    // "[ROSTER] FULL <id> <count>" or "[ROSTER] DIFF <since> <id> <count>"
+    private void startRoster(String line) {
+        String[] parts = line.split(" ");
+        boolean full = parts.length == 4 && parts[1].equals("FULL");
+        boolean diff = parts.length == 5 && parts[1].equals("DIFF");
+        if (!full && !diff) return;
+        synchronized (pending) {
+            collectingRoster = pollLive(pendingRosters);
+            stagedRoster = full ? new TreeSet<>() : new TreeSet<>(roster);
+        }
+        stagedRosterId = parts[parts.length - 2];
+        rosterLinesLeft = Integer.parseInt(parts[parts.length - 1]);
+        if (rosterLinesLeft == 0) {
+            finishRoster();
+        }
+    }
+
+    private void finishRoster() {
+        Set<String> result;
+        synchronized (pending) {
+            roster = stagedRoster;
+            rosterId = stagedRosterId;
+            result = Collections.unmodifiableSet(new TreeSet<>(roster));
+        }
+        if (collectingRoster != null) {
+            collectingRoster.complete(result);
+        }
+        collectingRoster = null;
+        stagedRoster = null;
+    }
+
+    // Complete the /list being collected (also called if the connection ends early).
+    private void finishList() {
+        if (collectingList != null) {
+            collectingList.complete(collectedUsers);
+        }
+        collectingList = null;
+        collectedUsers = null;
+    }
+
+    private static <T> CompletableFuture<T> pollLive(Deque<CompletableFuture<T>> queue) {
+        CompletableFuture<T> f;
+        while ((f = queue.poll()) != null) {
+            if (!f.isDone()) return f;
+        }
+        return null;
+    }
+
+    private void failLogin(String reason) {
+        CompletableFuture<Void> f;
+        synchronized (this) {
+            f = loginFuture;
+            loginFuture = null;
+        }
+        if (f != null) {
+            f.completeExceptionally(new IOException(reason));
+        }
+    }
+
+    private void failPending(String reason) {
+        List<CompletableFuture<?>> all = new ArrayList<>();
+        synchronized (pending) {
+            for (PendingPm p : pendingPms) all.add(p.future);
+            all.addAll(pendingLists);
+            all.addAll(pendingAi);
+            all.addAll(pendingRosters);
+            for (OutgoingFile o : pendingOffers) all.add(o.future);
+            for (OutgoingFile o : outgoing.values()) all.add(o.future);
+            for (IncomingFile d : downloads.values()) all.add(d.future);
+            pendingPms.clear();
+            pendingLists.clear();
+            pendingAi.clear();
+            pendingRosters.clear();
+            pendingOffers.clear();
+            outgoing.clear();
+            downloads.clear();
+            offers.clear();
+        }
+        for (CompletableFuture<?> f : all) {
+            f.completeExceptionally(new IOException(reason));
+        }
+    }
+
+    // ---- Writing ----
+
+    // Write whatever is queued, then flush once.
+    private void writeLoop(Session s) {
+        try {
+            String line = s.outbox.take();
+            while (line != CLOSE) {
+                do {
+                    s.out.write(line);
+                    s.out.write('\n');
+                } while ((line = s.outbox.poll()) != null && line != CLOSE);
+                s.out.flush();
+                if (line == null) {
+                    line = s.outbox.take();
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            // Connection is gone; the reader notices and reports it.
+        } finally {
+            s.closeNow();
+        }
+    }
+
+    private static final class Session {
+        final Socket socket;
+        final BufferedReader in;
+        final Writer out;
+        final BlockingQueue<String> outbox = new LinkedBlockingQueue<>();
+        volatile boolean closed;
+        String lastLine;  // reader thread only
+
+        Session(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            this.out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()), 16 * 1024);
+        }
+
+        boolean enqueue(String line) {
+            if (closed) return false;
+            outbox.add(line);
+            return true;
+        }
+
+        // Let the writer send what is queued, then close.
+        void closeAfterPending() {
+            closed = true;
+            outbox.add(CLOSE);
+        }
+
+        void closeNow() {
+            closed = true;
+            outbox.add(CLOSE);
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static final class OutgoingFile {
+        final Path file;
+        final long size;
+        final CompletableFuture<Long> future;
+
+        OutgoingFile(Path file, long size, CompletableFuture<Long> future) {
+            this.file = file;
+            this.size = size;
+            this.future = future;
+        }
+    }
+
+    private static final class IncomingFile {
+        final Path target;
+        final CompletableFuture<Path> future;
+
+        IncomingFile(Path target, CompletableFuture<Path> future) {
+            this.target = target;
+            this.future = future;
+        }
+    }
+
+    private static final class PendingPm {
+        final String target;
+        final CompletableFuture<String> future;
+
+        PendingPm(String target, CompletableFuture<String> future) {
+            this.target = target;
+            this.future = future;
+        }
+    }
+}
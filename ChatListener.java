@@ -0,0 +1,25 @@
+// ChatListener.java
+// Callbacks from a ChatConnection. All of them run on the connection's reader
+// thread, so they should return quickly (hand heavy work to another thread).
+
+public interface ChatListener {
+
+    // Every complete line the server sends, in order (including replies that
+    // also complete a command future such as pm() or list()). The session token
+    // line is the one exception: it is a credential and stays inside ChatConnection.
+    void onMessage(String line);
+
+    // A login prompt such as "Username: " (sent without a line break).
+    // Interactive clients answer it with ChatConnection.sendRaw().
+    default void onPrompt(String prompt) {
+    }
+
+    // The connection dropped. willReconnect says whether automatic
+    // reconnection will be attempted.
+    default void onDisconnected(String reason, boolean willReconnect) {
+    }
+
+    // Automatic reconnection succeeded and the user is logged in again.
+    default void onReconnected() {
+    }
+}
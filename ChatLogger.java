@@ -3,9 +3,17 @@
 //   - Writing chat messages to logs/chat_history.csv
 //   - Writing connection events to logs/connections.csv
 //   - Logging admin actions and server shutdown
+//
+// Both files roll over by size/day (see RollingLogFile); rolled segments are
+// compressed and pruned on a background thread.
+//
+// log.format selects the on-disk format: "csv" (default), "binary" (compact
+// chat_history.bin / connections.bin, see BinaryLogWriter) or "both".
 
 import java.io.*;
 import java.nio.file.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class ChatLogger {
 
@@ -13,7 +21,28 @@ public class ChatLogger {
     private final Path chatHistoryPath;
     private final Path connectionsPath;
 
+    // null when the corresponding format is disabled.
+    private final RollingLogFile chatLog;
+    private final RollingLogFile connectionsLog;
+    private final BinaryLogWriter chatBin;
+    private final BinaryLogWriter connectionsBin;
+
+    // Compresses and prunes rolled segments off the chat path.
+    private final ExecutorService maintenance = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "LogMaintenance");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Per-thread line builder, reused for every record (see lineBuilder()).
+    private static final ThreadLocal<StringBuilder> LINE = ThreadLocal.withInitial(() -> new StringBuilder(256));
+    private static final int MAX_KEPT_LINE_CAPACITY = 16 * 1024;
+
     public ChatLogger() {
+        this(new ServerConfig());
+    }
+
+    public ChatLogger(ServerConfig config) {
         this.logsDir = Paths.get("logs");
 
         // Create "logs" directory if it doesn't exist.
@@ -26,78 +55,156 @@ public class ChatLogger {
         this.chatHistoryPath = logsDir.resolve("chat_history.csv");
         this.connectionsPath = logsDir.resolve("connections.csv");
 
-        // Initialize files with headers if they don't exist.
-        initFile(chatHistoryPath, "timestamp,from_user,to_user,message_type,message");
-        initFile(connectionsPath, "timestamp,username,ip,port,event_type");
-    }
+        String format = config.getString("log.format", "csv").toLowerCase();
+        boolean csv = !format.equals("binary");
+        boolean binary = format.equals("binary") || format.equals("both");
 
-    // Create file with header line if it is missing.
-    private void initFile(Path path, String header) {
-        try {
-            if (!Files.exists(path)) {
-                Files.createFile(path);
-                try (PrintWriter pw = new PrintWriter(Files.newBufferedWriter(path))) {
-                    pw.println(header);
-                }
-            }
-        } catch (IOException e) {
-            System.out.println("[ChatLogger] Error initializing " + path + ": " + e.getMessage());
+        // Each file (and every rolled segment) starts with its header.
+        if (csv) {
+            this.chatLog = new RollingLogFile(chatHistoryPath,
+                    "timestamp,from_user,to_user,message_type,message", config, maintenance);
+            this.connectionsLog = new RollingLogFile(connectionsPath,
+                    "timestamp,username,ip,port,event_type", config, maintenance);
+        } else {
+            this.chatLog = null;
+            this.connectionsLog = null;
+        }
+        if (binary) {
+            this.chatBin = new BinaryLogWriter(new RollingLogFile(logsDir.resolve("chat_history.bin"),
+                    BinaryLogWriter.header(BinaryLogWriter.KIND_CHAT), config, maintenance));
+            this.connectionsBin = new BinaryLogWriter(new RollingLogFile(logsDir.resolve("connections.bin"),
+                    BinaryLogWriter.header(BinaryLogWriter.KIND_CONNECTIONS), config, maintenance));
+        } else {
+            this.chatBin = null;
+            this.connectionsBin = null;
         }
     }
 
     public String getChatLogPath() {
-        return chatHistoryPath.toAbsolutePath().toString();
+        Path p = chatLog != null ? chatHistoryPath : logsDir.resolve("chat_history.bin");
+        return p.toAbsolutePath().toString();
     }
 
     public String getConnectionsLogPath() {
-        return connectionsPath.toAbsolutePath().toString();
+        Path p = connectionsLog != null ? connectionsPath : logsDir.resolve("connections.bin");
+        return p.toAbsolutePath().toString();
     }
 
     // Log a chat message of any type (BROADCAST, PRIVATE, SYSTEM, ADMIN, AI).
-    public synchronized void logChat(String fromUser, String toUser, MessageType type, String message) {
-        String ts = ServerUtils.now();
-        String safeMsg = ServerUtils.escapeForCsv(message);
-        String line = String.format("%s,%s,%s,%s,\"%s\"",
-                ts, fromUser, toUser, type.name(), safeMsg);
-        try (PrintWriter pw = new PrintWriter(new FileWriter(chatHistoryPath.toFile(), true))) {
-            pw.println(line);
+    public void logChat(String fromUser, String toUser, MessageType type, String message) {
+        logChat(fromUser, toUser, type, message, true);
+    }
+
+    // Batch writer (the sequencer's log stage): flush=false keeps the record in
+    // the file buffers, and flushChat() after the batch writes them all at once.
+    public void logChat(String fromUser, String toUser, MessageType type, String message, boolean flush) {
+        logChat(fromUser, toUser, type.name(), type.ordinal(), message, flush);
+    }
+
+    // An /expire broadcast: logged as EXPIRING, so a restore from the log does
+    // not bring it back as permanent history.
+    public void logExpiring(String fromUser, String toUser, String message, boolean flush) {
+        logChat(fromUser, toUser, BinaryLogWriter.EXPIRING, BinaryLogWriter.EXPIRING_TYPE, message, flush);
+    }
+
+    private void logChat(String fromUser, String toUser, String typeName, int type, String message, boolean flush) {
+        if (chatLog != null) {
+            StringBuilder line = lineBuilder();
+            line.append(ServerUtils.now()).append(',')
+                .append(fromUser).append(',')
+                .append(toUser).append(',')
+                .append(typeName).append(",\"");
+            ServerUtils.appendEscapedCsv(line, message);
+            line.append('"');
+            try {
+                chatLog.appendLine(line, flush);
+            } catch (IOException e) {
+                System.out.println("[ChatLogger] Error writing chat log: " + e.getMessage());
+            }
+        }
+        if (chatBin != null) {
+            try {
+                chatBin.writeChat(System.currentTimeMillis(), fromUser, toUser, type, message, flush);
+            } catch (IOException e) {
+                System.out.println("[ChatLogger] Error writing binary chat log: " + e.getMessage());
+            }
+        }
+    }
+
+    public void flushChat() {
+        try {
+            if (chatLog != null) chatLog.flush();
+            if (chatBin != null) chatBin.flush();
         } catch (IOException e) {
             System.out.println("[ChatLogger] Error writing chat log: " + e.getMessage());
         }
     }
 
     // Log connection or authentication events involving a specific socket.
-    public synchronized void logConnection(String username, java.net.Socket socket, String eventType) {
-        String ts = ServerUtils.now();
+    public void logConnection(String username, java.net.Socket socket, String eventType) {
         String ip = socket.getInetAddress().getHostAddress();
         int port = socket.getPort();
-        String line = String.format("%s,%s,%s,%d,%s", ts, username, ip, port, eventType);
-        try (PrintWriter pw = new PrintWriter(new FileWriter(connectionsPath.toFile(), true))) {
-            pw.println(line);
-        } catch (IOException e) {
-            System.out.println("[ChatLogger] Error writing connections log: " + e.getMessage());
-        }
+        appendConnection(username, ip, port, eventType, "connections log");
     }
 
     // Log server-wide events without socket details, e.g., SERVER_SHUTDOWN.
-    public synchronized void logServerShutdown() {
-        String ts = ServerUtils.now();
-        String line = String.format("%s,%s,%s,%d,%s", ts, "-", "-", 0, "SERVER_SHUTDOWN");
-        try (PrintWriter pw = new PrintWriter(new FileWriter(connectionsPath.toFile(), true))) {
-            pw.println(line);
-        } catch (IOException e) {
-            System.out.println("[ChatLogger] Error writing SERVER_SHUTDOWN: " + e.getMessage());
-        }
+    public void logServerShutdown() {
+        appendConnection("-", "-", 0, "SERVER_SHUTDOWN", "SERVER_SHUTDOWN");
     }
 
     // Log admin actions like KICK, RENAME, CHANGE_PW, EXIT_SERVER.
-    public synchronized void logAdminAction(String adminUsername, String action) {
-        String ts = ServerUtils.now();
-        String line = String.format("%s,%s,%s,%d,%s", ts, adminUsername, "-", 0, "ADMIN_ACTION:" + action);
-        try (PrintWriter pw = new PrintWriter(new FileWriter(connectionsPath.toFile(), true))) {
-            pw.println(line);
-        } catch (IOException e) {
-            System.out.println("[ChatLogger] Error writing ADMIN_ACTION: " + e.getMessage());
+    public void logAdminAction(String adminUsername, String action) {
+        appendConnection(adminUsername, "-", 0, "ADMIN_ACTION:" + action, "ADMIN_ACTION");
+    }
+
+    // Log a file transfer step (OFFER, ACCEPT, DECLINE, DONE, FAIL) in the connections log.
+    // Details may contain a user-supplied file name, so separators are replaced.
+    public void logFileTransfer(String username, String event, String detail) {
+        String safe = detail.replace(',', '_').replace('\n', '_').replace('\r', '_');
+        appendConnection(username, "-", 0, "FILE_" + event + ":" + safe, "file transfer log");
+    }
+
+    // Write one connections record in every enabled format.
+    private void appendConnection(String username, String ip, int port, String eventType, String what) {
+        if (connectionsLog != null) {
+            StringBuilder line = lineBuilder();
+            line.append(ServerUtils.now()).append(',')
+                .append(username).append(',')
+                .append(ip).append(',')
+                .append(port).append(',')
+                .append(eventType);
+            try {
+                connectionsLog.appendLine(line);
+            } catch (IOException e) {
+                System.out.println("[ChatLogger] Error writing " + what + ": " + e.getMessage());
+            }
+        }
+        if (connectionsBin != null) {
+            try {
+                connectionsBin.writeConnection(System.currentTimeMillis(), username, ip, port, eventType);
+            } catch (IOException e) {
+                System.out.println("[ChatLogger] Error writing binary " + what + ": " + e.getMessage());
+            }
         }
     }
+
+    // Empty builder for one CSV line. One huge message should not pin a huge
+    // buffer on a pool thread forever, so oversized builders are replaced.
+    private static StringBuilder lineBuilder() {
+        StringBuilder sb = LINE.get();
+        if (sb.capacity() > MAX_KEPT_LINE_CAPACITY) {
+            sb = new StringBuilder(256);
+            LINE.set(sb);
+        }
+        sb.setLength(0);
+        return sb;
+    }
+
+    // Flush and close all open log files (they reopen on the next write).
+    public void close() {
+        if (chatLog != null) chatLog.close();
+        if (connectionsLog != null) connectionsLog.close();
+        if (chatBin != null) chatBin.close();
+        if (connectionsBin != null) connectionsBin.close();
+    }
 }
@@ -0,0 +1,304 @@
+// ChatSequencer.java
+// One global order for everything that is delivered, kept in history and logged.
+//
+// Producers (client threads, timers, presence digests) claim the next sequence
+// number, fill the preallocated slot for it and publish it. Each stage (delivery,
+// history, log) is one thread that walks the ring in sequence order at its own
+// pace, so every stage sees the same order and a slow disk does not hold up
+// delivery. A stage takes every slot that is ready in one batch (up to
+// maxBatch) and is told which event ends the batch, so it can pay for locks,
+// flushes or a pass over the recipients once per batch instead of per message.
+//
+// A slot is reused only after every stage has passed it. When the ring is
+// full, producers wait (back-pressure) instead of queueing without bound.
+// Stage code must never publish itself, or a full ring would wait on itself.
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class ChatSequencer {
+
+    private static final int SPINS_BEFORE_SLEEP = 100;
+
+    // Handles events of one stage, in sequence order, on that stage's thread.
+    public interface Stage {
+        void onEvent(Event e, long seq, boolean endOfBatch);
+    }
+
+    // One ring slot. Filled by a producer between next() and publish(), then
+    // only read. Stages must not keep references to it.
+    public static final class Event {
+        public static final int MESSAGE = 0;
+        public static final int JOIN = 1;     // start delivering to client (after replaying history if asked)
+        public static final int LEAVE = 2;    // stop delivering to client
+        public static final int RENAME = 3;   // account "from" is now called "to"
+
+        public int kind;
+        public String text;                   // delivered, logged and kept in history
+        public String from;
+        public String to;                     // "*" or the recipient's name
+        public MessageType type;
+        public DeliveryLane lane;
+        public ClientHandler target;          // null = every logged-in client
+        public boolean deliver;               // false: only the echo goes out (PM queued for an offline user)
+        public ClientHandler echoTo;          // PM sender, gets echoText
+        public String echoText;
+        public HistoryEntry history;          // null = not kept
+        public boolean log;
+        public String body;                   // text without prefixes, for the /search index (null = not indexed)
+        public String pmText;                 // append to the PM store (from -> to)
+        public ClientHandler client;          // JOIN / LEAVE
+        public boolean replay;                // JOIN: send history first
+        public List<String> mail;             // JOIN: mailbox lines to send after the history
+
+        // Reset the slot for a message; optional fields can be set afterwards.
+        public void message(String text, String from, String to, MessageType type, DeliveryLane lane) {
+            clear();
+            this.kind = MESSAGE;
+            this.text = text;
+            this.from = from;
+            this.to = to;
+            this.type = type;
+            this.lane = lane;
+            this.deliver = true;
+        }
+
+        public void membership(int kind, String name, ClientHandler client, boolean replay) {
+            clear();
+            this.kind = kind;
+            this.from = name;
+            this.client = client;
+            this.replay = replay;
+        }
+
+        public void rename(String oldName, String newName) {
+            clear();
+            this.kind = RENAME;
+            this.from = oldName;
+            this.to = newName;
+        }
+
+        private void clear() {
+            text = from = to = echoText = pmText = body = null;
+            type = null;
+            lane = null;
+            target = echoTo = client = null;
+            history = null;
+            mail = null;
+            log = replay = deliver = false;
+        }
+    }
+
+    private final String name;
+    private final Event[] ring;
+    private final int mask;
+    private final int maxBatch;
+    private final AtomicLongArray published;       // sequence last published in each slot
+    private final AtomicLong claimed = new AtomicLong(-1);
+    private volatile long gatingHint = -1;         // a recent minimum of the stages' progress
+    private final List<StageRunner> stages = new ArrayList<>();
+    private volatile boolean started;
+
+    // Sleeping stages are woken by the producer that publishes next.
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition ready = lock.newCondition();
+    private final AtomicInteger sleepers = new AtomicInteger();
+
+    private final LongAdder producerWaits = new LongAdder();   // next() found the ring full
+
+    // size is rounded up to a power of two.
+    public ChatSequencer(String name, int size, int maxBatch) {
+        this.name = name;
+        int n = Integer.highestOneBit(Math.max(2, size - 1)) << 1;
+        this.ring = new Event[n];
+        for (int i = 0; i < n; i++) {
+            ring[i] = new Event();
+        }
+        this.mask = n - 1;
+        this.maxBatch = Math.max(1, maxBatch);
+        this.published = new AtomicLongArray(n);
+        for (int i = 0; i < n; i++) {
+            published.set(i, -1);
+        }
+    }
+
+    // Register a stage before start(); returns its id for awaitProcessed().
+    public synchronized int addStage(String stageName, Stage stage) {
+        if (started) throw new IllegalStateException("sequencer already started");
+        stages.add(new StageRunner(stageName, stage));
+        return stages.size() - 1;
+    }
+
+    public synchronized void start() {
+        if (started) return;
+        started = true;
+        for (StageRunner s : stages) {
+            Thread t = new Thread(s, name + "-" + s.name);
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    // Claim the next sequence number, waiting while the ring is full. Fill
+    // get(seq) and then publish(seq), also if filling fails.
+    public long next() {
+        long seq = claimed.incrementAndGet();
+        long wrap = seq - ring.length;
+        if (wrap > gatingHint) {
+            long min = minProcessed();
+            if (wrap > min) {
+                producerWaits.increment();
+                int spins = 0;
+                while (wrap > (min = minProcessed())) {
+                    if (++spins < SPINS_BEFORE_SLEEP) {
+                        Thread.onSpinWait();
+                    } else {
+                        LockSupport.parkNanos(50_000);
+                    }
+                }
+            }
+            gatingHint = min;
+        }
+        return seq;
+    }
+
+    public Event get(long seq) {
+        return ring[(int) (seq & mask)];
+    }
+
+    public void publish(long seq) {
+        published.set((int) (seq & mask), seq);
+        if (sleepers.get() > 0) {
+            lock.lock();
+            try {
+                ready.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // Wait until the given stage has handled everything up to seq. Only for
+    // stages that depend on another one (e.g. history replay on join).
+    public void awaitProcessed(int stage, long seq) {
+        AtomicLong done = stages.get(stage).processed;
+        while (done.get() < seq) {
+            LockSupport.parkNanos(20_000);
+        }
+    }
+
+    // Wait until every stage has handled everything claimed so far.
+    // False if that did not happen within timeoutMs.
+    public boolean drain(long timeoutMs) {
+        long target = claimed.get();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (minProcessed() < target) {
+            if (System.nanoTime() > deadline) return false;
+            LockSupport.parkNanos(200_000);
+        }
+        return true;
+    }
+
+    // e.g. "Sequencer: 120000 events, behind delivery 0 / history 0 / log 12, mean batch 3.4, producer waits 0"
+    public String describe() {
+        long head = claimed.get();
+        StringBuilder sb = new StringBuilder("Sequencer: ").append(head + 1).append(" events, behind ");
+        long events = 0;
+        long batches = 0;
+        for (int i = 0; i < stages.size(); i++) {
+            StageRunner s = stages.get(i);
+            if (i > 0) sb.append(" / ");
+            sb.append(s.name).append(' ').append(Math.max(0, head - s.processed.get()));
+            events += s.events.sum();
+            batches += s.batches.sum();
+        }
+        sb.append(String.format(", mean batch %.1f", batches == 0 ? 0.0 : (double) events / batches));
+        sb.append(", producer waits ").append(producerWaits.sum());
+        return sb.toString();
+    }
+
+    private long minProcessed() {
+        long min = Long.MAX_VALUE;
+        for (StageRunner s : stages) {
+            min = Math.min(min, s.processed.get());
+        }
+        return min == Long.MAX_VALUE ? claimed.get() : min;
+    }
+
+    // Highest sequence >= next that is published with no gap before it, waiting
+    // (spin, then sleep) until at least next is there.
+    private long awaitAvailable(long next) {
+        int i = (int) (next & mask);
+        int spins = 0;
+        while (published.get(i) != next) {
+            if (++spins < SPINS_BEFORE_SLEEP) {
+                Thread.onSpinWait();
+                continue;
+            }
+            lock.lock();
+            try {
+                sleepers.incrementAndGet();
+                try {
+                    while (published.get(i) != next) {
+                        ready.await(100, TimeUnit.MILLISECONDS);
+                    }
+                } finally {
+                    sleepers.decrementAndGet();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return next - 1;
+            } finally {
+                lock.unlock();
+            }
+        }
+        long hi = next;
+        long limit = next + maxBatch - 1;
+        while (hi < limit && published.get((int) ((hi + 1) & mask)) == hi + 1) {
+            hi++;
+        }
+        return hi;
+    }
+
+    private final class StageRunner implements Runnable {
+        final String name;
+        final Stage stage;
+        final AtomicLong processed = new AtomicLong(-1);
+        final LongAdder events = new LongAdder();
+        final LongAdder batches = new LongAdder();
+
+        StageRunner(String name, Stage stage) {
+            this.name = name;
+            this.stage = stage;
+        }
+
+        @Override
+        public void run() {
+            long next = processed.get() + 1;
+            while (!Thread.currentThread().isInterrupted()) {
+                long end = awaitAvailable(next);
+                if (end < next) continue;
+                for (long s = next; s <= end; s++) {
+                    try {
+                        stage.onEvent(ring[(int) (s & mask)], s, s == end);
+                    } catch (RuntimeException e) {
+                        // One bad event must not stop the stage (or the ring).
+                        System.out.println("[SERVER] " + name + " stage failed on event " + s + ": " + e);
+                    }
+                }
+                events.add(end - next + 1);
+                batches.increment();
+                processed.set(end);
+                next = end + 1;
+            }
+        }
+    }
+}
@@ -2,10 +2,15 @@
 // Core server logic.
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 public class ChatServer {
 
@@ -13,28 +18,177 @@ public class ChatServer {
     private volatile boolean running = false;
 
     private ServerSocket serverSocket;
-    private Thread acceptThread;
+
+    // Accept pipeline: acceptor threads only accept() and hand the socket to a
+    // bounded queue; setup workers do the blocking part (admission reply,
+    // connection log, socket options, handler start). New per start().
+    private final List<Thread> acceptThreads = new ArrayList<>();
+    private final List<Thread> setupThreads = new ArrayList<>();
+    private BlockingQueue<Accepted> acceptQueue;
+
+    // Accept metrics (since process start).
+    private final LatencyStats acceptLatency = new LatencyStats();   // accept() -> handler submitted
+    private final LongAdder acceptsShed = new LongAdder();           // dropped because the queue was full
+    private long acceptSecond;                                       // guarded by acceptLock
+    private int acceptsThisSecond;
+    private int peakAcceptsPerSecond;
+    private final Object acceptLock = new Object();
 
     // Thread pool for handling clients (one thread per client).
     // NOTE: We never shut this down in stop(), so the server can be started again.
     private final ExecutorService clientPool = Executors.newCachedThreadPool();
 
+    // Small timer thread for delayed housekeeping (e.g. forced socket closes).
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "ServerScheduler");
+        t.setDaemon(true);
+        return t;
+    });
+
     private final Map<String, ClientHandler> clients = new ConcurrentHashMap<>();
 
     private final UserManager userManager = new UserManager("users.txt");
 
-    private final ChatLogger logger = new ChatLogger();
+    // Optional settings from server.properties (defaults when missing).
+    private final ServerConfig config = new ServerConfig();
+
+    private final ChatLogger logger = new ChatLogger(config);
+
+    // Connection caps and per-IP limits, checked right after accept().
+    private final AdmissionController admission = new AdmissionController(config);
+
+    // Token buckets for inbound messages/commands and total broadcast fan-out.
+    private final RateLimiter rateLimiter = new RateLimiter(config);
+
+    // Full-text index over broadcasts and PMs for /search.
+    private final SearchIndex searchIndex = new SearchIndex(config);
+
+    // Tokens handed out at login so a reconnect can skip the password (/resume).
+    private final SessionTokens sessionTokens = new SessionTokens(config);
+
+    // Broadcast recipients (the logged-in clients), sharded so that big audiences
+    // are served by several threads; small ones stay on the sender's thread.
+    private final ShardedFanout<ClientHandler> fanout = new ShardedFanout<>("Fanout",
+            config.getInt("fanout.shards", Runtime.getRuntime().availableProcessors()),
+            config.getInt("fanout.parallelThreshold", 256));
+
+    // Join/leave notices (per event or as digests) and the versioned roster.
+    private final PresenceTracker presence = new PresenceTracker(this, config);
+
+    // Banned words/links for broadcasts and PMs (moderation.txt, reloaded on change).
+    private final ModerationFilter moderation = new ModerationFilter(config);
+    private ScheduledFuture<?> moderationTask;
+
+    // /send, /accept, /decline: negotiated here, bytes relayed on file.port.
+    private final FileTransferRelay files = new FileTransferRelay(this, config);
+
+    // Per-conversation PM files behind /pmhistory (logs/pm/).
+    private final PrivateMessageStore pmStore = new PrivateMessageStore(config);
+
+    // PMs to offline users, delivered at their next login (logs/mailbox/).
+    private final OfflineMailbox mailbox = new OfflineMailbox(config);
+
+    // Delayed work with many pending entries: /schedule announcements and
+    // /expire history entries. One ticker thread for the whole server.
+    private final TimingWheel timers = new TimingWheel("TimingWheel",
+            config.getLong("timers.tickMs", 100), config.getInt("timers.slots", 512));
+    private final int maxPendingTimers = config.getInt("timers.maxPending", 100_000);
+    private final Map<Integer, TimingWheel.Timeout> scheduled = new ConcurrentHashMap<>();
+    private final AtomicInteger nextScheduleId = new AtomicInteger();
 
-    private final Deque<String> historyBuffer = new ArrayDeque<>();
+    private final Deque<HistoryEntry> historyBuffer = new ArrayDeque<>();
     private final Object historyLock = new Object();
     private static final int HISTORY_LIMIT = 1000;
+    private long historySeq;            // lines ever added to history (guarded by historyLock)
+    private long checkpointedSeq = -1;  // historySeq at the last checkpoint (guarded by historyLock)
+
+    // Saves history across restarts (logs/state.checkpoint).
+    private final HistoryCheckpoint checkpoint = new HistoryCheckpoint(Paths.get("logs"));
+    private ScheduledFuture<?> checkpointTask;
+
+    // Everything that is delivered, kept in history or logged goes through this
+    // ring first, so recipients, history and the chat log all see one order.
+    // Its three stage threads live as long as the process (like the fan-out).
+    private final ChatSequencer sequencer = new ChatSequencer("Sequencer",
+            config.getInt("sequencer.ringSize", 8192), config.getInt("sequencer.maxBatch", 256));
+    private final int historyStage;
+    // Delivery stage only: a run of broadcasts waiting for one pass over the recipients.
+    private final List<String> runTexts = new ArrayList<>();
+    private final List<DeliveryLane> runLanes = new ArrayList<>();
+    // Delivery stage only: the last run handed to the fan-out. Shard workers are
+    // FIFO, so once it is done every earlier run is done too.
+    private CompletableFuture<Void> runInFlight;
+    // History stage only: entries of the current batch, added under one lock.
+    private final List<HistoryEntry> historyBatch = new ArrayList<>();
 
     private final AIClient aiClient = new AIClient();
 
+    // Round-trip probes (see ConnectionStats): server-side queueing of the
+    // ping, network round trip, and connections dropped as dead.
+    private final LatencyStats probeQueued = new LatencyStats();
+    private final LatencyStats probeRtt = new LatencyStats();
+    private final LongAdder deadPeers = new LongAdder();
+    private ScheduledFuture<?> probeTask;
+
+    // Outbound write coalescing counters (see ClientHandler.writeLoop).
+    private final LongAdder linesWritten = new LongAdder();
+    private final LongAdder socketFlushes = new LongAdder();
+
+    public ChatServer() {
+        sequencer.addStage("delivery", this::deliverEvent);
+        historyStage = sequencer.addStage("history", this::historyEvent);
+        sequencer.addStage("log", this::logEvent);
+        sequencer.start();
+    }
+
     public ChatLogger getLogger() {
         return logger;
     }
 
+    public ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    public SearchIndex getSearchIndex() {
+        return searchIndex;
+    }
+
+    public PresenceTracker getPresence() {
+        return presence;
+    }
+
+    public SessionTokens getSessionTokens() {
+        return sessionTokens;
+    }
+
+    public ModerationFilter getModeration() {
+        return moderation;
+    }
+
+    public FileTransferRelay getFiles() {
+        return files;
+    }
+
+    public PrivateMessageStore getPmStore() {
+        return pmStore;
+    }
+
+    public OfflineMailbox getMailbox() {
+        return mailbox;
+    }
+
+    public TimingWheel getTimers() {
+        return timers;
+    }
+
+    public ServerConfig getConfig() {
+        return config;
+    }
+
     public AIClient getAiClient() {
         return aiClient;
     }
@@ -66,31 +220,234 @@ public class ChatServer {
             // Ensure at least one admin exists before accepting connections.
             userManager.ensureDefaultAdmin();
 
-            serverSocket = new ServerSocket(port);
+            restoreHistory();
+            moderation.reloadIfChanged();
+
+            int backlog = config.getInt("server.backlog", 50);
+            serverSocket = new ServerSocket();
+            // Buffers above 64K must be requested before bind to be advertised in the handshake.
+            int rcvBuf = config.getInt("socket.receiveBufferSize", 0);
+            if (rcvBuf > 0) {
+                serverSocket.setReceiveBufferSize(rcvBuf);
+            }
+            serverSocket.bind(new InetSocketAddress(port), backlog);
             running = true;
             System.out.println("[SERVER] Started on port " + port);
 
-            acceptThread = new Thread(() -> {
-                while (running) {
-                    try {
-                        Socket socket = serverSocket.accept();
-                        logger.logConnection("-", socket, "CONNECT");
-                        ClientHandler handler = new ClientHandler(this, socket);
-                        clientPool.submit(handler);
-                    } catch (IOException e) {
-                        if (running) {
-                            System.out.println("[SERVER] Error accepting connection: " + e.getMessage());
-                        }
-                    }
-                }
-            }, "AcceptThread");
-            acceptThread.start();
+            long every = config.getLong("checkpoint.intervalSeconds", 60);
+            if (every > 0) {
+                checkpointTask = scheduler.scheduleWithFixedDelay(this::saveCheckpoint, every, every, TimeUnit.SECONDS);
+            }
+            files.start(config.getInt("file.port", port + 1));
+
+            long probeEvery = config.getLong("probe.intervalSeconds", 15);
+            if (probeEvery > 0) {
+                probeTask = scheduler.scheduleWithFixedDelay(this::probeClients, probeEvery, probeEvery, TimeUnit.SECONDS);
+            }
+
+            long reload = config.getLong("moderation.reloadSeconds", 5);
+            if (reload > 0) {
+                moderationTask = scheduler.scheduleWithFixedDelay(moderation::reloadIfChanged, reload, reload, TimeUnit.SECONDS);
+            }
+
+            acceptQueue = new ArrayBlockingQueue<>(Math.max(1, config.getInt("server.acceptQueue", 4096)));
+            int acceptors = Math.max(1, config.getInt("server.acceptors", 1));
+            int setupWorkers = Math.max(1, config.getInt("server.setupWorkers", 2));
+            for (int i = 0; i < acceptors; i++) {
+                Thread t = new Thread(this::acceptLoop, "AcceptThread-" + i);
+                acceptThreads.add(t);
+                t.start();
+            }
+            for (int i = 0; i < setupWorkers; i++) {
+                Thread t = new Thread(this::setupLoop, "ConnectionSetup-" + i);
+                t.setDaemon(true);
+                setupThreads.add(t);
+                t.start();
+            }
         } catch (IOException e) {
             System.out.println("[SERVER ERROR] Could not start server: " + e.getMessage());
             running = false;
         }
     }
 
+    // Acceptor: accept() and hand off, nothing that can block on disk or a peer.
+    private void acceptLoop() {
+        BlockingQueue<Accepted> queue = acceptQueue;
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                countAccept();
+                if (!queue.offer(new Accepted(socket, System.nanoTime()))) {
+                    // Setup is hopelessly behind; closing now is cheaper than letting the queue grow.
+                    acceptsShed.increment();
+                    try {
+                        socket.close();
+                    } catch (IOException ignored) {}
+                }
+            } catch (IOException e) {
+                if (running) {
+                    System.out.println("[SERVER] Error accepting connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Setup worker: admission, connection log, socket options, start the handler.
+    private void setupLoop() {
+        BlockingQueue<Accepted> queue = acceptQueue;
+        while (running) {
+            Accepted a;
+            try {
+                a = queue.poll(200, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (a != null) {
+                setUpConnection(a);
+            }
+        }
+        // Stopped: anything still queued was never admitted.
+        Accepted a;
+        while ((a = queue.poll()) != null) {
+            try {
+                a.socket.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    private void setUpConnection(Accepted a) {
+        Socket socket = a.socket;
+        String ip = socket.getInetAddress().getHostAddress();
+        String rejection = admission.tryAdmit(ip);
+        if (rejection != null) {
+            rejectConnection(socket, ip, rejection);
+            return;
+        }
+        logger.logConnection("-", socket, "CONNECT");
+        configureSocket(socket);
+        ClientHandler handler = new ClientHandler(this, socket);
+        try {
+            clientPool.submit(handler);
+        } catch (RejectedExecutionException e) {
+            admission.release(ip);
+            handler.closeSocket();
+            return;
+        }
+        acceptLatency.recordNanos(System.nanoTime() - a.acceptedAt);
+    }
+
+    private void countAccept() {
+        long second = System.currentTimeMillis() / 1000;
+        synchronized (acceptLock) {
+            if (second != acceptSecond) {
+                acceptSecond = second;
+                acceptsThisSecond = 0;
+            }
+            acceptsThisSecond++;
+            if (acceptsThisSecond > peakAcceptsPerSecond) {
+                peakAcceptsPerSecond = acceptsThisSecond;
+            }
+        }
+    }
+
+    // e.g. "Accepts: 5000 (peak 2400/s, shed 0, queued 0), setup n=5000 mean=90us p50=64us p99=1.1ms max=4.0ms"
+    public String getAcceptStats() {
+        int peak;
+        synchronized (acceptLock) {
+            peak = peakAcceptsPerSecond;
+        }
+        BlockingQueue<Accepted> queue = acceptQueue;
+        return "Accepts: " + (acceptLatency.count() + acceptsShed.sum())
+                + " (peak " + peak + "/s, shed " + acceptsShed.sum()
+                + ", queued " + (queue == null ? 0 : queue.size()) + "), setup " + acceptLatency.summary();
+    }
+
+    // A socket waiting for a setup worker.
+    private static final class Accepted {
+        final Socket socket;
+        final long acceptedAt;
+
+        Accepted(Socket socket, long acceptedAt) {
+            this.socket = socket;
+            this.acceptedAt = acceptedAt;
+        }
+    }
+
+    // Per-connection TCP options. Output is already coalesced by the writer
+    // thread, so Nagle's algorithm would only add latency (socket.tcpNoDelay).
+    private void configureSocket(Socket socket) {
+        try {
+            socket.setTcpNoDelay(config.getBoolean("socket.tcpNoDelay", true));
+            int sndBuf = config.getInt("socket.sendBufferSize", 0);
+            if (sndBuf > 0) {
+                socket.setSendBufferSize(sndBuf);
+            }
+        } catch (IOException e) {
+            System.out.println("[SERVER] Could not set socket options: " + e.getMessage());
+        }
+    }
+
+    // Probe sweep: drop peers that are gone without the socket noticing (a
+    // write blocked, or a probed client stopped answering), enforce the idle
+    // timeout for probed clients, and send the next ping to the rest.
+    private void probeClients() {
+        long timeoutNanos = TimeUnit.SECONDS.toNanos(config.getLong("probe.timeoutSeconds", 45));
+        long idleMs = config.getInt("server.idleTimeoutSeconds", 1800) * 1000L;
+        long now = System.nanoTime();
+        long nowMs = System.currentTimeMillis();
+        for (ClientHandler ch : clients.values()) {
+            ConnectionStats st = ch.getStats();
+            long stalled = st.writeStalledNanos(now);
+            long waiting = st.pingOutstandingNanos(now);
+            if (stalled > timeoutNanos) {
+                deadPeers.increment();
+                ch.reap("write blocked for " + TimeUnit.NANOSECONDS.toSeconds(stalled) + "s");
+            } else if (waiting > timeoutNanos) {
+                deadPeers.increment();
+                ch.reap("no pong for " + TimeUnit.NANOSECONDS.toSeconds(waiting) + "s");
+            } else if (idleMs > 0 && st.isProbing() && nowMs - ch.getLastInputMillis() > idleMs) {
+                ch.idleOut();
+            } else {
+                ch.ping(now);
+            }
+        }
+    }
+
+    // A pong arrived: ping queued for queuedMicros, then rttMicros on the wire.
+    public void recordProbe(long queuedMicros, long rttMicros) {
+        probeQueued.recordMicros(queuedMicros);
+        probeRtt.recordMicros(rttMicros);
+    }
+
+    // e.g. "Probes: rtt n=120 mean=1.1ms p50=0.9ms p99=4.2ms max=6.0ms | queued n=120 ... | dead peers dropped 0"
+    public String getProbeStats() {
+        return "Probes: rtt " + probeRtt.summary() + " | queued " + probeQueued.summary()
+                + " | dead peers dropped " + deadPeers.sum();
+    }
+
+    // Called by a client writer after each socket flush.
+    public void recordFlush(int lines) {
+        linesWritten.add(lines);
+        socketFlushes.increment();
+    }
+
+    // Tell a client why it was turned away, log it, and close the socket.
+    private void rejectConnection(Socket socket, String ip, String reason) {
+        if (!reason.equals(AdmissionController.RATE) || admission.isFirstRateRejection(ip)) {
+            logger.logConnection("-", socket, "REJECT_" + reason);
+        }
+        try (Socket s = socket) {
+            OutputStream os = s.getOutputStream();
+            os.write((admission.describe(reason) + System.lineSeparator()).getBytes());
+            os.flush();
+        } catch (IOException ignored) {}
+    }
+
+    // Called once by each admitted ClientHandler when its socket is done.
+    public void connectionClosed(Socket socket) {
+        admission.release(socket.getInetAddress().getHostAddress());
+    }
+
     // Stop the server and disconnect all clients.
     // If fromExitCommand is true, we log SERVER_SHUTDOWN.
     public void stop(boolean fromExitCommand) {
@@ -107,20 +464,61 @@ public class ChatServer {
             }
         } catch (IOException ignored) {}
 
-        if (acceptThread != null && acceptThread.isAlive()) {
+        for (Thread t : acceptThreads) {
             try {
-                acceptThread.join(2000);
+                t.join(2000);
             } catch (InterruptedException ignored) {}
         }
+        acceptThreads.clear();
+        for (Thread t : setupThreads) {
+            try {
+                t.join(2000);
+            } catch (InterruptedException ignored) {}
+        }
+        setupThreads.clear();
+
+        files.stop();
+
+        // Scheduled announcements belong to this run.
+        for (TimingWheel.Timeout t : scheduled.values()) {
+            t.cancel();
+        }
+        if (!scheduled.isEmpty()) {
+            System.out.println("[SERVER] Cancelled " + scheduled.size() + " scheduled announcement(s).");
+        }
+        scheduled.clear();
+
+        // Let queued messages reach clients, history and the log first.
+        if (!sequencer.drain(5000)) {
+            System.out.println("[SERVER] Sequencer did not drain in time; some messages may be lost.");
+        }
 
         // Notify and disconnect all clients.
         for (ClientHandler ch : clients.values()) {
             try {
                 ch.sendMessage("[SYSTEM] Server shutting down.");
-                ch.closeSocket();
+                ch.disconnect();
             } catch (Exception ignored) {}
         }
         clients.clear();
+        fanout.clear();
+        presence.reset();
+
+        searchIndex.flush();
+
+        if (checkpointTask != null) {
+            checkpointTask.cancel(false);
+            checkpointTask = null;
+        }
+        if (moderationTask != null) {
+            moderationTask.cancel(false);
+            moderationTask = null;
+        }
+        if (probeTask != null) {
+            probeTask.cancel(false);
+            probeTask = null;
+        }
+        saveCheckpoint();
 
         if (fromExitCommand) {
             logger.logServerShutdown();
@@ -133,15 +531,89 @@ public class ChatServer {
     public void reloadUsers() {
         userManager.reload();
         userManager.ensureDefaultAdmin();
+        // Passwords or accounts may have changed on disk.
+        sessionTokens.revokeAll();
     }
 
-    // Register a client after successful login.
-    public void registerClient(String username, ClientHandler handler) {
+    // Register a client after successful login (replayHistory) or a rename.
+    // The client starts receiving broadcasts at its place in the sequence, right
+    // after the history it was sent, so it neither misses nor repeats a message.
+    // A login also gets the mail that waited for it; it is read here, after the
+    // client is in "clients", so mail queued from now on is sent live instead.
+    public void registerClient(String username, ClientHandler handler, boolean replayHistory) {
         clients.put(username, handler);
-        int count = clients.size();
-        String msg = "[SYSTEM] " + username + " joined the chat. (Online: " + count + ")";
-        System.out.println(msg);
-        logAndBroadcastSystemMessage(msg);
+        List<String> mail = replayHistory ? mailboxLines(username) : null;
+        long seq = sequencer.next();
+        ChatSequencer.Event e = sequencer.get(seq);
+        e.membership(ChatSequencer.Event.JOIN, username, handler, replayHistory);
+        e.mail = mail;
+        sequencer.publish(seq);
+        presence.joined(username, true);
+    }
+
+    // Mailbox contents as sent after the history, or null if there is none.
+    private List<String> mailboxLines(String username) {
+        List<OfflineMailbox.Mail> pending;
+        try {
+            pending = mailbox.pending(username);
+        } catch (IOException e) {
+            System.out.println("[SERVER] Could not read mailbox of " + username + ": " + e.getMessage());
+            return null;
+        }
+        if (pending.isEmpty()) return null;
+        List<String> lines = new ArrayList<>(pending.size() + 2);
+        lines.add("=== Mailbox: " + pending.size() + " message(s) while you were away ===");
+        for (OfflineMailbox.Mail m : pending) {
+            lines.add("[MAIL " + m.seq + "] [" + ServerUtils.formatTimestamp(m.time) + "] [PM from " + m.from + "] " + m.text);
+        }
+        lines.add("=== End of Mailbox (/mailack " + pending.get(pending.size() - 1).seq + ") ===");
+        return lines;
+    }
+
+    // A PM to a user who is not logged in: kept in their mailbox, logged and
+    // stored like any PM, and echoed to the sender. Returns the mailbox
+    // sequence number, OfflineMailbox.RECIPIENT_ONLINE if they just logged in
+    // (send it live) or were just renamed (the caller finds no such user), or
+    // OfflineMailbox.FULL.
+    public long sendOffline(ClientHandler sender, String to, String toTarget, String toSender, String text)
+            throws IOException {
+        String from = sender.getUsername();
+        long mailSeq = mailbox.offer(to, from, text,
+                () -> !clients.containsKey(to) && userManager.getUser(to) != null);
+        if (mailSeq <= 0) return mailSeq;
+        long seq = sequencer.next();
+        try {
+            ChatSequencer.Event e = sequencer.get(seq);
+            e.message(toTarget, from, to, MessageType.PRIVATE, DeliveryLane.PRIVATE);
+            e.deliver = false;
+            e.echoTo = sender;
+            e.echoText = toSender;
+            e.log = true;
+            // Not in the history buffer: the mailbox delivers it.
+            e.body = text;
+            e.pmText = text;
+        } finally {
+            sequencer.publish(seq);
+        }
+        return mailSeq;
+    }
+
+    // /rename of an account, with the mail waiting for it (see OfflineMailbox.rename),
+    // its private history lines and its PM files (sequenced, so PMs sent
+    // before the rename are moved too). The account is renamed even if moving
+    // the mail fails (IOException).
+    public boolean renameUser(String oldName, String newName) throws IOException {
+        boolean[] renamed = new boolean[1];
+        try {
+            return mailbox.rename(oldName, newName,
+                    () -> renamed[0] = userManager.renameUser(oldName, newName));
+        } finally {
+            if (renamed[0]) {
+                long seq = sequencer.next();
+                sequencer.get(seq).rename(oldName, newName);
+                sequencer.publish(seq);
+            }
+        }
     }
 
     // Default behavior: broadcast that user left.
@@ -154,13 +626,41 @@ public class ChatServer {
     public void removeClient(String username, boolean broadcast) {
         if (username == null) return;
         ClientHandler removed = clients.remove(username);
-        if (!broadcast || removed == null) {
-            return;
+        rateLimiter.forgetIfIdle(username);
+        if (removed != null) {
+            publishLeave(username, removed);
+            presence.left(username, broadcast);
+            files.userLeft(username);
+        }
+    }
+
+    // A connection closing. If the user has meanwhile logged in again on
+    // another connection, that one stays registered; this one only stops
+    // getting messages.
+    public void removeClient(String username, ClientHandler handler) {
+        if (clients.remove(username, handler)) {
+            rateLimiter.forgetIfIdle(username);
+            publishLeave(username, handler);
+            presence.left(username, true);
+            files.userLeft(username);
+        } else {
+            publishLeave(username, handler);
+        }
+    }
+
+    private void publishLeave(String username, ClientHandler handler) {
+        long seq = sequencer.next();
+        sequencer.get(seq).membership(ChatSequencer.Event.LEAVE, username, handler, false);
+        sequencer.publish(seq);
+    }
+
+    // Send a notice to every logged-in admin (e.g. moderation flags).
+    public void notifyAdmins(String msg) {
+        for (ClientHandler ch : clients.values()) {
+            if (ch.isAdmin()) {
+                ch.sendMessage(msg);
+            }
         }
-        int count = clients.size();
-        String msg = "[SYSTEM] " + username + " left the chat. (Online: " + count + ")";
-        System.out.println(msg);
-        logAndBroadcastSystemMessage(msg);
     }
 
     // Retrieve a ClientHandler by username (used by /pm and /kick).
@@ -170,64 +670,385 @@ public class ChatServer {
 
     // Broadcast a message to all clients and optionally log/history it.
     public void broadcast(String formatted, String fromUser, String toUser, MessageType type, boolean logAndHistory) {
-        for (ClientHandler ch : clients.values()) {
-            ch.sendMessage(formatted);
+        broadcast(formatted, formatted, fromUser, toUser, type, logAndHistory);
+    }
+
+    // body: formatted without the sender prefix; /search matches only that.
+    public void broadcast(String formatted, String body, String fromUser, String toUser, MessageType type,
+                          boolean logAndHistory) {
+        long seq = sequencer.next();
+        try {
+            ChatSequencer.Event e = sequencer.get(seq);
+            e.message(formatted, fromUser, toUser, type, DeliveryLane.forType(type));
+            if (logAndHistory) {
+                e.log = true;
+                e.history = HistoryEntry.everyone(formatted);
+                e.body = body;
+            }
+        } finally {
+            sequencer.publish(seq);
+        }
+    }
+
+    // A PM: toTarget goes to the recipient, toSender back to the sender; text
+    // (without the prefix) is what the per-conversation store keeps.
+    public void sendPrivate(ClientHandler sender, ClientHandler target, String toTarget, String toSender, String text) {
+        String from = sender.getUsername();
+        String to = target.getUsername();
+        long seq = sequencer.next();
+        try {
+            ChatSequencer.Event e = sequencer.get(seq);
+            e.message(toTarget, from, to, MessageType.PRIVATE, DeliveryLane.PRIVATE);
+            e.target = target;
+            e.echoTo = sender;
+            e.echoText = toSender;
+            e.log = true;
+            e.history = HistoryEntry.only(toTarget, from, to);
+            e.body = text;
+            e.pmText = text;
+        } finally {
+            sequencer.publish(seq);
         }
+    }
+
+    // An answer to a /pm other than its echo (refused, kept for later). Goes the
+    // same way and lane as the echoes, so a sender gets the answers to its PMs
+    // in the order it sent them.
+    public void sendPmNotice(ClientHandler sender, String text) {
+        long seq = sequencer.next();
+        try {
+            ChatSequencer.Event e = sequencer.get(seq);
+            e.message(text, "SYSTEM", sender.getUsername(), MessageType.SYSTEM, DeliveryLane.PRIVATE);
+            e.target = sender;
+        } finally {
+            sequencer.publish(seq);
+        }
+    }
 
-        if (logAndHistory) {
-            logger.logChat(fromUser, toUser, type, formatted);
-            addToHistory(formatted);
+    // An /askgpt answer: delivered to, and replayed for, the asking user only.
+    public void sendAiAnswer(ClientHandler user, String formatted) {
+        String name = user.getUsername();
+        long seq = sequencer.next();
+        try {
+            ChatSequencer.Event e = sequencer.get(seq);
+            e.message(formatted, "AI", name, MessageType.AI, DeliveryLane.forType(MessageType.AI));
+            e.target = user;
+            e.log = true;
+            e.history = HistoryEntry.only(formatted, name);
+        } finally {
+            sequencer.publish(seq);
         }
     }
 
     // Broadcast typing indicator (SYSTEM text) WITHOUT logging or history.
+    // Typing notices have no place in the global order, so they skip the
+    // sequencer and the ordered fan-out and are queued from the caller's thread.
     public void broadcastTypingMessage(String formatted) {
         System.out.println(formatted);
-        for (ClientHandler ch : clients.values()) {
-            ch.sendMessage(formatted);
-        }
+        fanout.forEachUnordered(ch -> ch.sendMessage(formatted, DeliveryLane.TYPING));
     }
 
     // Helper for join/leave/system events that MUST be logged and saved in history.
     public void logAndBroadcastSystemMessage(String msg) {
-        logger.logChat("SYSTEM", "*", MessageType.SYSTEM, msg);
-        addToHistory(msg);
-        for (ClientHandler ch : clients.values()) {
-            ch.sendMessage(msg);
+        long seq = sequencer.next();
+        try {
+            ChatSequencer.Event e = sequencer.get(seq);
+            e.message(msg, "SYSTEM", "*", MessageType.SYSTEM, DeliveryLane.CONTROL);
+            e.log = true;
+            e.history = HistoryEntry.everyone(msg);
+        } finally {
+            sequencer.publish(seq);
         }
     }
 
-    // Add one line of text to the history buffer.
-    public void addToHistory(String msg) {
+    // Announce msg as admin after delayMs. Returns the id for /unschedule, or -1
+    // if too many timers are pending.
+    public int scheduleAnnouncement(String admin, String msg, long delayMs) {
+        if (timers.pending() >= maxPendingTimers) return -1;
+        int id = nextScheduleId.incrementAndGet();
+        scheduled.put(id, timers.schedule(() -> {
+            scheduled.remove(id);
+            if (!running) return;
+            broadcast("[ADMIN] " + msg, msg, admin, "*", MessageType.ADMIN, true);
+            logger.logAdminAction(admin, "SCHEDULED_ANNOUNCE");
+        }, delayMs, TimeUnit.MILLISECONDS));
+        return id;
+    }
+
+    // Cancel a scheduled announcement; false if unknown or already sent.
+    public boolean cancelScheduled(int id) {
+        TimingWheel.Timeout t = scheduled.remove(id);
+        return t != null && t.cancel();
+    }
+
+    public int getScheduledCount() {
+        return scheduled.size();
+    }
+
+    // Broadcast a message that drops out of history replay after ttlMs.
+    // Returns false (nothing sent) if too many timers are pending.
+    public boolean broadcastExpiring(String formatted, String fromUser, long ttlMs) {
+        if (timers.pending() >= maxPendingTimers) return false;
+        long seq = sequencer.next();
+        try {
+            ChatSequencer.Event e = sequencer.get(seq);
+            e.message(formatted, fromUser, "*", MessageType.BROADCAST, DeliveryLane.NORMAL);
+            e.log = true;
+            // The history stage starts the expiry timer. Not indexed for
+            // /search: it would outlive the message.
+            e.history = HistoryEntry.expiring(formatted, System.currentTimeMillis() + ttlMs);
+        } finally {
+            sequencer.publish(seq);
+        }
+        return true;
+    }
+
+    // Delivery stage: queue each event for its recipients and apply joins and
+    // leaves in sequence order. Consecutive broadcasts are handed to the
+    // fan-out together, so the recipient list is walked once per run. A run may
+    // still be going out on the shard workers, so targeted sends and membership
+    // changes wait for it first (see awaitRun).
+    private void deliverEvent(ChatSequencer.Event e, long seq, boolean endOfBatch) {
+        switch (e.kind) {
+            case ChatSequencer.Event.MESSAGE:
+                if (e.target == null && e.deliver) {
+                    runTexts.add(e.text);
+                    runLanes.add(e.lane);
+                } else {
+                    flushRun();
+                    awaitRun();
+                    if (e.target != null && e.deliver) {
+                        e.target.sendMessage(e.text, e.lane);
+                    }
+                    if (e.echoTo != null) {
+                        e.echoTo.sendMessage(e.echoText, e.lane);
+                    }
+                }
+                break;
+            case ChatSequencer.Event.JOIN:
+                flushRun();
+                awaitRun();
+                if (clients.get(e.from) != e.client) break;   // already gone or renamed
+                if (e.replay) {
+                    // History must hold everything before this join, and nothing after.
+                    sequencer.awaitProcessed(historyStage, seq - 1);
+                    sendHistoryTo(e.client, seq);
+                }
+                if (e.mail != null) {
+                    for (String line : e.mail) {
+                        e.client.sendMessage(line, DeliveryLane.NORMAL);
+                    }
+                }
+                fanout.add(e.client);
+                break;
+            case ChatSequencer.Event.LEAVE:
+                flushRun();
+                awaitRun();
+                fanout.remove(e.client);
+                break;
+            default:
+                break;
+        }
+        if (endOfBatch) {
+            flushRun();
+        }
+    }
+
+    private void flushRun() {
+        int n = runTexts.size();
+        if (n == 0) return;
+        if (n == 1) {
+            String text = runTexts.get(0);
+            DeliveryLane lane = runLanes.get(0);
+            runInFlight = fanout.deliver(ch -> ch.sendMessage(text, lane));
+        } else {
+            // Copies: shard workers may still be reading after this returns.
+            String[] texts = runTexts.toArray(new String[0]);
+            DeliveryLane[] lanes = runLanes.toArray(new DeliveryLane[0]);
+            runInFlight = fanout.deliver(ch -> {
+                for (int i = 0; i < texts.length; i++) {
+                    ch.sendMessage(texts[i], lanes[i]);
+                }
+            });
+        }
+        runTexts.clear();
+        runLanes.clear();
+    }
+
+    // Wait until the last broadcast run reached every recipient's queue, so a
+    // PM, echo or AI answer queued next cannot overtake it, and a join or
+    // leave cannot change who a run still going out reaches.
+    private void awaitRun() {
+        CompletableFuture<Void> run = runInFlight;
+        if (run == null) return;
+        runInFlight = null;
+        run.join();
+    }
+
+    // History stage: one lock per batch for the history buffer.
+    private void historyEvent(ChatSequencer.Event e, long seq, boolean endOfBatch) {
+        if (e.kind == ChatSequencer.Event.MESSAGE && e.history != null) {
+            e.history.seq = seq;
+            historyBatch.add(e.history);
+            if (e.history.expiresAt != 0) {
+                e.history.setExpiryTimer(timers.schedule(e.history::expire,
+                        e.history.expiresAt - System.currentTimeMillis(), TimeUnit.MILLISECONDS));
+            }
+        }
+        // Offline PMs have no history entry but are still searchable.
+        if (e.kind == ChatSequencer.Event.MESSAGE && e.body != null) {
+            searchIndex.add(e.from, e.to, e.text, e.body);
+        }
+        if (e.kind == ChatSequencer.Event.RENAME) {
+            flushHistoryBatch();
+            renameInHistory(e.from, e.to);
+            searchIndex.rename(e.from, e.to);
+        }
+        if (endOfBatch) {
+            flushHistoryBatch();
+        }
+    }
+
+    private void flushHistoryBatch() {
+        if (historyBatch.isEmpty()) return;
         synchronized (historyLock) {
-            if (historyBuffer.size() >= HISTORY_LIMIT) {
-                historyBuffer.removeFirst();
+            for (HistoryEntry h : historyBatch) {
+                if (historyBuffer.size() >= HISTORY_LIMIT) {
+                    historyBuffer.removeFirst().evicted();
+                }
+                historyBuffer.addLast(h);
             }
-            historyBuffer.addLast(msg);
+            historySeq += historyBatch.size();
         }
+        historyBatch.clear();
     }
 
-    // Send last N messages to a client after login.
-    public void sendHistoryTo(ClientHandler ch) {
-        ch.sendMessage("=== Last " + HISTORY_LIMIT + " Messages ===");
+    // Private lines of a renamed user are replayed to the new name only.
+    private void renameInHistory(String oldName, String newName) {
         synchronized (historyLock) {
-            for (String s : historyBuffer) {
-                ch.sendMessage(s);
+            int n = historyBuffer.size();
+            boolean changed = false;
+            for (int i = 0; i < n; i++) {
+                HistoryEntry h = historyBuffer.removeFirst();
+                HistoryEntry r = h.renamed(oldName, newName);
+                changed |= r != h;
+                historyBuffer.addLast(r);
+            }
+            if (changed) checkpointedSeq = -1;   // checkpoint again
+        }
+    }
+
+    // Log stage: chat log lines are buffered and flushed once per batch.
+    private void logEvent(ChatSequencer.Event e, long seq, boolean endOfBatch) {
+        if (e.kind == ChatSequencer.Event.MESSAGE) {
+            if (e.log && e.history != null && e.history.expiresAt != 0) {
+                logger.logExpiring(e.from, e.to, e.text, false);
+            } else if (e.log) {
+                logger.logChat(e.from, e.to, e.type, e.text, false);
+            }
+            if (e.pmText != null) {
+                pmStore.append(e.from, e.to, e.pmText);
+            }
+        } else if (e.kind == ChatSequencer.Event.RENAME) {
+            pmStore.rename(e.from, e.to);
+        }
+        if (endOfBatch) {
+            logger.flushChat();
+        }
+    }
+
+    // Fill an empty history from the checkpoint or the end of the chat log.
+    private void restoreHistory() {
+        synchronized (historyLock) {
+            if (!historyBuffer.isEmpty()) return;  // restarted within the same process
+        }
+        long start = System.nanoTime();
+        HistoryCheckpoint.State state = checkpoint.restore(Paths.get(logger.getChatLogPath()), HISTORY_LIMIT);
+        if (state == null) return;
+        synchronized (historyLock) {
+            long now = System.currentTimeMillis();
+            for (HistoryEntry e : state.history) {
+                if (historyBuffer.size() >= HISTORY_LIMIT) {
+                    historyBuffer.removeFirst().evicted();
+                }
+                historyBuffer.addLast(e);
+                if (e.expiresAt != 0) {
+                    e.setExpiryTimer(timers.schedule(e::expire, e.expiresAt - now, TimeUnit.MILLISECONDS));
+                }
+            }
+            historySeq = state.sequence;
+            checkpointedSeq = -1;
+        }
+        System.out.println("[SERVER] History ready in " + (System.nanoTime() - start) / 1_000_000 + " ms.");
+    }
+
+    // Write the checkpoint if history changed since the last one.
+    public void saveCheckpoint() {
+        List<HistoryEntry> snapshot;
+        long seq;
+        long logSize;
+        synchronized (historyLock) {
+            if (historySeq == checkpointedSeq) return;
+            snapshot = new ArrayList<>(historyBuffer.size());
+            for (HistoryEntry e : historyBuffer) {
+                if (!e.isExpired()) snapshot.add(e);
+            }
+            seq = historySeq;
+            logSize = HistoryCheckpoint.sizeOf(Paths.get(logger.getChatLogPath()));
+        }
+        try {
+            checkpoint.save(snapshot, seq, logSize);
+            synchronized (historyLock) {
+                checkpointedSeq = seq;
+            }
+        } catch (IOException e) {
+            System.out.println("[SERVER] Could not write checkpoint: " + e.getMessage());
+        }
+    }
+
+    // Send last N messages to a client after login, leaving out other
+    // users' PMs and AI answers. Runs on the delivery stage (see deliverEvent).
+    // Replay uses the NORMAL lane so it never delays control messages.
+    // Only entries sequenced before joinSeq: the history stage runs at its own
+    // pace and may already be past the join, and later lines reach the client live.
+    private void sendHistoryTo(ClientHandler ch, long joinSeq) {
+        String user = ch.getUsername();
+        ch.sendMessage("=== Last " + HISTORY_LIMIT + " Messages ===", DeliveryLane.NORMAL);
+        synchronized (historyLock) {
+            for (HistoryEntry e : historyBuffer) {
+                if (e.seq >= joinSeq) break;
+                if (e.isVisibleTo(user)) {
+                    ch.sendMessage(e.text, DeliveryLane.NORMAL);
+                }
             }
         }
-        ch.sendMessage("=== End of History ===");
+        ch.sendMessage("=== End of History ===", DeliveryLane.NORMAL);
     }
 
     // Used by menu and /list to show active connections.
     public void printActiveConnections() {
         if (clients.isEmpty()) {
             System.out.println("[SERVER] No active connections.");
+            System.out.println("[SERVER] " + getAcceptStats());
             return;
         }
-        System.out.println("[SERVER] Active connections:");
+        System.out.println("[SERVER] Active connections (open sockets: "
+                + admission.getActiveConnections() + "/" + admission.getMaxConnections() + "):");
         for (ClientHandler ch : clients.values()) {
-            System.out.println(" - " + ch.getUsername() + " | " + ch.getRemoteAddress());
+            System.out.println(" - " + ch.getUsername() + " | " + ch.getRemoteAddress()
+                    + " | queued c/p/n/t " + ch.getQueueDepths() + " | " + ch.getStats().describe());
         }
+        System.out.println("[SERVER] " + getProbeStats());
+        System.out.println("[SERVER] Throttled requests since start: " + rateLimiter.getThrottledCount());
+        long lines = linesWritten.sum();
+        long flushes = socketFlushes.sum();
+        System.out.println("[SERVER] Outbound: " + lines + " lines in " + flushes
+                + " socket writes (" + (lines - flushes) + " writes saved by coalescing)");
+        System.out.println("[SERVER] " + getAcceptStats());
+        System.out.println("[SERVER] Timers: " + timers.pending() + " pending ("
+                + scheduled.size() + " scheduled announcements)");
+        System.out.println("[SERVER] " + sequencer.describe());
+        System.out.println("[SERVER] " + mailbox.describe());
     }
 
     // Build a list of active connections for /list command.
@@ -235,7 +1056,8 @@ public class ChatServer {
         List<String> res = new ArrayList<>();
         for (ClientHandler ch : clients.values()) {
             if (adminView) {
-                res.add(ch.getUsername() + " | " + ch.getRemoteAddress());
+                res.add(ch.getUsername() + " | " + ch.getRemoteAddress()
+                        + " | queued c/p/n/t " + ch.getQueueDepths() + " | " + ch.getStats().describe());
             } else {
                 res.add(ch.getUsername());
             }
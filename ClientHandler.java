@@ -3,6 +3,8 @@
 
 import java.io.*;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.List;
 
 public class ClientHandler implements Runnable {
 
@@ -11,51 +13,227 @@ public class ClientHandler implements Runnable {
     private BufferedReader in;
     private PrintWriter out;
 
+    // After login all output goes through this queue and a dedicated writer thread,
+    // which drains higher-priority lanes first.
+    private final OutboundQueue outbound;
+
     String username;                     // Set after successful login
     private boolean isAdmin;
     boolean isTyping;
 
+    // Absolute time (ms) by which login must finish; see readLoginLine().
+    private long loginDeadline;
+
+    // Bytes/messages in and out, round-trip probes (see ConnectionStats).
+    private final ConnectionStats stats = new ConnectionStats();
+    private volatile long lastInputMillis = System.currentTimeMillis();   // last line other than a pong
+    private boolean pingBuffered;        // writer thread: a ping is in the unflushed buffer
+
+    // Caps raw inbound lines on this connection (commands included).
+    private final TokenBucket lineBucket;
+    // Earliest time (ms) we tell this client again that it is being throttled.
+    private long nextThrottleNotice;
+
     public ClientHandler(ChatServer server, Socket socket) {
         this.server = server;
         this.socket = socket;
+        this.lineBucket = server.getRateLimiter().newConnectionBucket();
+        this.outbound = new OutboundQueue(
+                server.getConfig().getInt("outbound.maxQueued", 10_000),
+                server.getConfig().getInt("outbound.maxTypingQueued", 32));
     }
 
     public String getUsername() {
         return username;
     }
 
+    public boolean isAdmin() {
+        return isAdmin;
+    }
+
     public String getRemoteAddress() {
         return socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
     }
 
+    // Queue a control-priority message (system notices, command replies).
     public void sendMessage(String msg) {
-        if (out != null) {
-            out.println(msg);
+        sendMessage(msg, DeliveryLane.CONTROL);
+    }
+
+    // Queue a message in the given priority lane. A client whose queue overflows
+    // is not keeping up and gets disconnected.
+    public void sendMessage(String msg, DeliveryLane lane) {
+        if (!outbound.offer(msg, lane)) {
+            if (socket.isClosed()) return;
+            System.out.println("[SERVER] Disconnecting slow client " + username + " (outbound queue full).");
+            server.getLogger().logConnection(username == null ? "-" : username, socket, "SLOW_CONSUMER");
+            outbound.close();
+            closeSocket();
+        }
+    }
+
+    // Per-lane queue depths as "control/private/normal/typing".
+    public String getQueueDepths() {
+        return outbound.describeDepths();
+    }
+
+    public ConnectionStats getStats() {
+        return stats;
+    }
+
+    public long getLastInputMillis() {
+        return lastInputMillis;
+    }
+
+    // Queue a round-trip probe if this client takes them and none is outstanding.
+    public void ping(long nowNanos) {
+        long id = stats.startPing(nowNanos);
+        if (id > 0) {
+            sendMessage("[PING] " + id);
         }
     }
 
+    // Drop a connection whose peer is gone without the socket noticing.
+    // Closing the socket wakes the reader, which does the usual cleanup.
+    public void reap(String reason) {
+        System.out.println("[SERVER] Dropping dead peer " + username + " (" + reason + ").");
+        server.getLogger().logConnection(username == null ? "-" : username, socket, "DEAD_PEER");
+        outbound.close();
+        closeSocket();
+    }
+
+    // Idle timeout for clients that answer probes: their pongs keep the
+    // socket read timeout from ever firing, so the probe sweep enforces it.
+    public void idleOut() {
+        sendMessage("[SYSTEM] Disconnected after being idle too long.");
+        server.getLogger().logConnection(username, socket, "IDLE_TIMEOUT");
+        disconnect();
+    }
+
+    // Close once everything already queued in the CONTROL lane (e.g. a kick or
+    // shutdown notice) is written; lower lanes are dropped. A writer stuck on a
+    // dead peer is cut off after a short grace period.
+    public void disconnect() {
+        outbound.closeAfterPending();
+        server.getScheduler().schedule(this::closeSocket, 2, java.util.concurrent.TimeUnit.SECONDS);
+    }
+
     public void closeSocket() {
         try {
             socket.close();
         } catch (IOException ignored) {}
     }
 
+    // Writer thread: drain the outbound queue by priority until closed.
+    //
+    // Lines are coalesced into one socket write. The buffer is flushed when the
+    // queue runs dry (end of burst), when outbound.flushBytes are pending, or
+    // when the oldest unflushed line has waited outbound.maxDelayMs.
+    private void writeLoop() {
+        int flushBytes = server.getConfig().getInt("outbound.flushBytes", 16 * 1024);
+        long maxDelayMs = server.getConfig().getLong("outbound.maxDelayMs", 0);
+        int sepLen = System.lineSeparator().length();
+        int pendingBytes = 0;
+        int pendingLines = 0;
+        long firstPendingAt = 0;   // currentTimeMillis the oldest unflushed line was buffered
+        try {
+            String msg = outbound.take();
+            while (msg != null && msg != OutboundQueue.CLOSE) {
+                if (pendingLines == 0) {
+                    firstPendingAt = System.currentTimeMillis();
+                }
+                out.println(msg);
+                pendingBytes += msg.length() + sepLen;
+                pendingLines++;
+                stats.messagesOut++;
+                if (msg.startsWith("[PING] ")) {
+                    pingBuffered = true;
+                }
+
+                // A steady trickle must not hold lines back either: the delay
+                // counts from the first buffered line, not from the last one.
+                if (pendingBytes >= flushBytes
+                        || (maxDelayMs > 0 && System.currentTimeMillis() - firstPendingAt >= maxDelayMs)) {
+                    if (!flushOut(pendingLines)) break;
+                    pendingBytes = 0;
+                    pendingLines = 0;
+                }
+
+                msg = outbound.poll();
+                if (msg == null && pendingLines > 0) {
+                    long left = maxDelayMs - (System.currentTimeMillis() - firstPendingAt);
+                    if (maxDelayMs > 0 && left > 0) {
+                        msg = outbound.poll(left);
+                    }
+                    if (msg == null) {
+                        if (!flushOut(pendingLines)) break;
+                        pendingBytes = 0;
+                        pendingLines = 0;
+                    }
+                }
+                if (msg == null) {
+                    msg = outbound.take();
+                }
+            }
+            if (pendingLines > 0) {
+                flushOut(pendingLines);
+            }
+        } catch (InterruptedException ignored) {
+        } finally {
+            outbound.close();
+            closeSocket();
+        }
+    }
+
+    // One socket write for everything buffered. Returns false if the socket failed.
+    private boolean flushOut(int lines) {
+        if (pingBuffered) {
+            // Noted before the write: a fast peer can pong before flush() returns.
+            pingBuffered = false;
+            stats.pingWritten(System.nanoTime());
+        }
+        out.flush();
+        server.recordFlush(lines);
+        return !out.checkError();
+    }
+
     @Override
     public void run() {
         try {
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream(), true);
+            in = new BufferedReader(new InputStreamReader(stats.countIn(socket.getInputStream())));
+            // No autoflush: the login code flushes before every read, and after
+            // login the writer thread decides when to flush (see writeLoop).
+            int bufferBytes = server.getConfig().getInt("outbound.bufferBytes", 64 * 1024);
+            out = new PrintWriter(new OutputStreamWriter(
+                    new BufferedOutputStream(stats.countOut(socket.getOutputStream()), bufferBytes)));
 
             out.println("Welcome to the Java Chat Server.");
             out.println("Please log in.");
 
+            // The whole login exchange must finish within the login timeout, so a
+            // client that connects and goes silent cannot hold this thread.
+            long loginTimeoutMs = server.getConfig().getInt("server.loginTimeoutSeconds", 30) * 1000L;
+            loginDeadline = loginTimeoutMs > 0 ? System.currentTimeMillis() + loginTimeoutMs : Long.MAX_VALUE;
+
             if (!handleLogin()) {
                 return;
             }
 
-            server.sendHistoryTo(this);
+            SessionTokens tokens = server.getSessionTokens();
+            if (tokens.isEnabled()) {
+                out.println("[SYSTEM] Session token: " + tokens.issue(username));
+            }
+            out.flush();
+
+            Thread writer = new Thread(this::writeLoop, "Writer-" + username);
+            writer.setDaemon(true);
+            writer.start();
+
+            // After login, disconnect clients that send nothing for too long (0 = never).
+            socket.setSoTimeout(server.getConfig().getInt("server.idleTimeoutSeconds", 1800) * 1000);
 
-            server.registerClient(username, this);
+            // Replays history, then starts live delivery (see ChatServer.registerClient).
+            server.registerClient(username, this, true);
 
             String line;
             while ((line = in.readLine()) != null) {
@@ -63,6 +241,23 @@ public class ClientHandler implements Runnable {
                 if (line.isEmpty()) {
                     continue;
                 }
+                if (line.startsWith("/pong ")) {
+                    handlePong(line);
+                    continue;
+                }
+                stats.messagesIn++;
+                lastInputMillis = System.currentTimeMillis();
+
+                long wait = server.getRateLimiter().isExempt(isAdmin) ? 0 : lineBucket.tryConsume(1);
+                if (wait > 0) {
+                    if (line.startsWith("/pm ")) {
+                        pmNotSent(line.split("\\s+", 3)[1], "you are sending lines too fast. Try again in "
+                                + waitSeconds(wait) + "s.");
+                    } else {
+                        notifyThrottled("lines", wait);
+                    }
+                    continue;
+                }
 
                 if (isTyping) {
                     isTyping = false;
@@ -73,18 +268,42 @@ public class ClientHandler implements Runnable {
                 if (line.startsWith("/")) {
                     handleCommand(line);
                 } else {
-                    String formatted = username + ": " + line;
-                    server.broadcast(formatted, username, "*", MessageType.BROADCAST, true);
+                    if (!checkRate(RateLimiter.Kind.MESSAGE, "messages")) {
+                        continue;
+                    }
+                    if (!isAdmin && !server.getRateLimiter().tryAcquireBroadcast()) {
+                        sendMessage("[SYSTEM] The chat is too busy right now; your message was not sent.");
+                        continue;
+                    }
+                    String text = moderate(line, "*");
+                    if (text == null) {
+                        continue;
+                    }
+                    String formatted = username + ": " + text;
+                    server.broadcast(formatted, text, username, "*", MessageType.BROADCAST, true);
                 }
             }
+        } catch (SocketTimeoutException e) {
+            if (username == null) {
+                out.println("[SYSTEM] Login timed out. Disconnecting.");
+                server.getLogger().logConnection("-", socket, "LOGIN_TIMEOUT");
+            } else {
+                out.println("[SYSTEM] Disconnected after being idle too long.");
+                server.getLogger().logConnection(username, socket, "IDLE_TIMEOUT");
+            }
         } catch (IOException e) {
             // Treat as disconnect.
         } finally {
             if (username != null) {
                 server.getLogger().logConnection(username, socket, "DISCONNECT");
-                server.removeClient(username);
+                server.removeClient(username, this);
+            }
+            outbound.close();
+            if (out != null) {
+                out.flush();  // e.g. login failure or timeout notices
             }
             closeSocket();
+            server.connectionClosed(socket);
         }
     }
 
@@ -92,20 +311,32 @@ public class ClientHandler implements Runnable {
     private boolean handleLogin() throws IOException {
         UserManager um = server.getUserManager();
         int attempts = 0;
+        boolean resumeTried = false;
 
         while (attempts < 3) {
             out.print("Username: ");
             out.flush();
-            String user = in.readLine();
+            String user = readLoginLine();
             if (user == null) return false;
             user = user.trim();
 
+            // A reconnecting client may send its session token instead of a
+            // username, without waiting for the prompt: one round trip, no hash.
+            // Only one try per connection; after that it is a normal login.
+            if (user.startsWith("/resume ") && !resumeTried) {
+                resumeTried = true;
+                if (tryResume(user.substring("/resume ".length()).trim())) {
+                    return true;
+                }
+                continue;
+            }
+
             User existing = um.getUser(user);
 
             if (existing != null) {
                 out.print("Password: ");
                 out.flush();
-                String pw = in.readLine();
+                String pw = readLoginLine();
                 if (pw == null) return false;
                 pw = pw.trim();
 
@@ -122,18 +353,18 @@ public class ClientHandler implements Runnable {
                 }
             } else {
                 out.println("[SYSTEM] Username not found. Do you want to sign up? (yes/no)");
-                String ans = in.readLine();
+                String ans = readLoginLine();
                 if (ans == null) return false;
                 ans = ans.trim().toLowerCase();
 
                 if (ans.equals("yes") || ans.equals("y")) {
                     out.print("Create password: ");
                     out.flush();
-                    String pw1 = in.readLine();
+                    String pw1 = readLoginLine();
                     if (pw1 == null) return false;
                     out.print("Confirm password: ");
                     out.flush();
-                    String pw2 = in.readLine();
+                    String pw2 = readLoginLine();
                     if (pw2 == null) return false;
 
                     if (!pw1.equals(pw2)) {
@@ -162,6 +393,32 @@ public class ClientHandler implements Runnable {
         return false;
     }
 
+    private boolean tryResume(String token) {
+        String name = server.getSessionTokens().verify(token);
+        User u = name == null ? null : server.getUserManager().getUser(name);
+        if (u == null) {
+            out.println("[SYSTEM] Session token rejected. Please log in.");
+            server.getLogger().logConnection("-", socket, "RESUME_FAIL");
+            return false;
+        }
+        this.username = u.username;
+        this.isAdmin = u.isAdmin;
+        out.println("[SYSTEM] Session resumed. Welcome, " + username + ".");
+        server.getLogger().logConnection(username, socket, "LOGIN_RESUME");
+        return true;
+    }
+
+    // readLine() bounded by what is left of the login deadline.
+    private String readLoginLine() throws IOException {
+        long remaining = loginDeadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+            throw new SocketTimeoutException("login timeout");
+        }
+        socket.setSoTimeout((int) Math.min(remaining, Integer.MAX_VALUE));
+        out.flush();  // send the prompt (and anything before it) in one write
+        return in.readLine();
+    }
+
     private void handleCommand(String line) {
         try {
             if (line.equals("/typing")) {
@@ -184,11 +441,66 @@ public class ClientHandler implements Runnable {
                 return;
             }
 
+            if (line.equals("/probes on")) {
+                stats.enableProbes();   // no reply: sent by client libraries, not people
+                return;
+            }
+
+            if (line.startsWith("/mailack ")) {
+                handleMailAck(line);
+                return;
+            }
+
+            if (line.startsWith("/pmhistory ")) {
+                handlePmHistory(line);
+                return;
+            }
+
+            if (line.startsWith("/search ")) {
+                handleSearch(line);
+                return;
+            }
+
             if (line.equals("/list")) {
                 handleListUsers();
                 return;
             }
 
+            if (line.equals("/roster") || line.startsWith("/roster ")) {
+                handleRoster(line);
+                return;
+            }
+
+            if (line.startsWith("/send ")) {
+                handleSendFile(line);
+                return;
+            }
+
+            if (line.startsWith("/accept ")) {
+                server.getFiles().accept(this, line.substring("/accept ".length()).trim());
+                return;
+            }
+
+            if (line.startsWith("/decline ")) {
+                server.getFiles().decline(this, line.substring("/decline ".length()).trim());
+                return;
+            }
+
+            if (line.startsWith("/schedule ")) {
+                handleSchedule(line);
+                return;
+            }
+
+            if (line.startsWith("/unschedule ")) {
+                handleUnschedule(line);
+                return;
+            }
+
+            if (line.startsWith("/expire ")) {
+                handleExpire(line);
+                return;
+            }
+
             if (line.startsWith("/announce ")) {
                 handleAnnounce(line);
                 return;
@@ -214,14 +526,77 @@ public class ClientHandler implements Runnable {
                 return;
             }
 
-            out.println("[SYSTEM] Unknown command: " + line);
+            sendMessage("[SYSTEM] Unknown command: " + line);
         } catch (Exception e) {
-            out.println("[SYSTEM] Command error: " + e.getMessage());
+            sendMessage("[SYSTEM] Command error: " + e.getMessage());
         }
     }
 
+    // Spend one token of the given kind; tell the user (at most once a second) if refused.
+    private boolean checkRate(RateLimiter.Kind kind, String what) {
+        long wait = server.getRateLimiter().tryAcquire(username, isAdmin, kind);
+        if (wait == 0) {
+            return true;
+        }
+        notifyThrottled(what, wait);
+        return false;
+    }
+
+    // Run a broadcast or PM text through the moderation filter. Returns the text
+    // to deliver (possibly masked), or null if it must not be delivered.
+    private String moderate(String text, String to) {
+        ModerationFilter.Verdict v = server.getModeration().check(text);
+        if (v == null) {
+            return text;
+        }
+        if (v.flag) {
+            String where = to.equals("*") ? "" : " (PM to " + to + ")";
+            server.notifyAdmins("[MOD] Flagged " + username + where + ": " + text
+                    + " [" + String.join(", ", v.matched) + "]");
+            server.getLogger().logConnection(username, socket, "MOD_FLAG");
+        }
+        if (v.drop) {
+            server.getLogger().logConnection(username, socket, "MOD_DROP");
+            if (to.equals("*")) {
+                sendMessage("[SYSTEM] Your message was blocked by the moderation filter.");
+            } else {
+                pmNotSent(to, "blocked by the moderation filter.");
+            }
+            return null;
+        }
+        return v.text;
+    }
+
+    private void notifyThrottled(String what, long waitMs) {
+        long now = System.currentTimeMillis();
+        if (now < nextThrottleNotice) {
+            return;
+        }
+        nextThrottleNotice = now + 1000;
+        sendMessage("[SYSTEM] You are sending " + what + " too fast. Try again in " + waitSeconds(waitMs) + "s.");
+    }
+
+    private static long waitSeconds(long waitMs) {
+        return Math.max(1, (waitMs + 999) / 1000);
+    }
+
+    // A refused /pm. Unlike other notices this is sent for every refused PM and
+    // names the target, so a client can tell which of its PMs failed.
+    private void pmNotSent(String target, String reason) {
+        pmReply("[SYSTEM] PM to " + target + " not sent: " + reason);
+    }
+
+    // Answers to a /pm go through the server's sequencer like the PM echo
+    // (see ChatServer.sendPmNotice), so they cannot overtake it.
+    private void pmReply(String text) {
+        server.sendPmNotice(this, text);
+    }
+
     private void handleTypingStart() {
         if (!isTyping) {
+            if (server.getRateLimiter().tryAcquire(username, isAdmin, RateLimiter.Kind.TYPING) > 0) {
+                return;  // typing indicators are cosmetic; drop them quietly
+            }
             isTyping = true;
             String msg = "[SYSTEM] " + username + " is typing...";
             server.broadcastTypingMessage(msg);
@@ -239,91 +614,330 @@ public class ClientHandler implements Runnable {
     private void handlePrivateMessage(String line) {
         String[] parts = line.split("\\s+", 3);
         if (parts.length < 3) {
-            out.println("[SYSTEM] Usage: /pm <user> <message>");
+            sendMessage("[SYSTEM] Usage: /pm <user> <message>");
             return;
         }
         String targetName = parts[1];
-        String msg = parts[2];
+        long wait = server.getRateLimiter().tryAcquire(username, isAdmin, RateLimiter.Kind.PM);
+        if (wait > 0) {
+            pmNotSent(targetName, "you are sending private messages too fast. Try again in "
+                    + waitSeconds(wait) + "s.");
+            return;
+        }
 
         ClientHandler target = server.getClient(targetName);
-        if (target == null) {
-            out.println("[SYSTEM] User not found or not online: " + targetName);
+        if (target == null && (!server.getMailbox().isEnabled()
+                || server.getUserManager().getUser(targetName) == null)) {
+            pmReply("[SYSTEM] User not found or not online: " + targetName);
+            return;
+        }
+        String msg = moderate(parts[2], targetName);
+        if (msg == null) {
             return;
         }
 
         String toTarget = "[PM from " + username + "] " + msg;
         String toSender = "[PM to " + targetName + "] " + msg;
 
-        target.sendMessage(toTarget);
-        out.println(toSender);
+        if (target == null) {
+            long mailSeq;
+            try {
+                mailSeq = server.sendOffline(this, targetName, toTarget, toSender, msg);
+            } catch (IOException e) {
+                pmReply("[SYSTEM] Could not keep the message for " + targetName + ": " + e.getMessage());
+                return;
+            }
+            if (mailSeq == OfflineMailbox.FULL) {
+                pmReply("[SYSTEM] Mailbox of " + targetName + " is full; message not sent.");
+                return;
+            }
+            if (mailSeq > 0) {
+                pmReply("[SYSTEM] " + targetName + " is offline; message #" + mailSeq
+                        + " will be delivered at their next login.");
+                return;
+            }
+            // Logged in meanwhile: deliver it live.
+            target = server.getClient(targetName);
+            if (target == null) {
+                pmReply("[SYSTEM] User not found or not online: " + targetName);
+                return;
+            }
+        }
+        server.sendPrivate(this, target, toTarget, toSender, msg);
+    }
+
+    // "/pong <id>": answer to a [PING]; not counted as input.
+    private void handlePong(String line) {
+        long id;
+        try {
+            id = Long.parseLong(line.substring("/pong ".length()).trim());
+        } catch (NumberFormatException e) {
+            return;
+        }
+        long[] r = stats.pong(id, System.nanoTime());
+        if (r != null) {
+            server.recordProbe(r[0], r[1]);
+        }
+    }
+
+    // /mailack <seq>: the client has the mailbox up to seq (ChatConnection sends it).
+    private void handleMailAck(String line) {
+        long seq;
+        try {
+            seq = Long.parseLong(line.substring("/mailack ".length()).trim());
+        } catch (NumberFormatException e) {
+            sendMessage("[SYSTEM] Usage: /mailack <number>");
+            return;
+        }
+        try {
+            int left = server.getMailbox().ack(username, seq);
+            sendMessage("[SYSTEM] Mailbox acknowledged up to #" + seq + " (" + left + " left).");
+        } catch (IOException e) {
+            sendMessage("[SYSTEM] Could not update your mailbox: " + e.getMessage());
+        }
+    }
 
-        server.getLogger().logChat(username, targetName, MessageType.PRIVATE, toTarget);
-        server.addToHistory(toTarget);
+    // /pmhistory <user> [count]: this user's conversation with one other user.
+    private void handlePmHistory(String line) {
+        String[] parts = line.split("\\s+");
+        int max = server.getConfig().getInt("pm.historyMax", 200);
+        int count = 20;
+        if (parts.length < 2 || parts.length > 3) {
+            sendMessage("[SYSTEM] Usage: /pmhistory <user> [count]");
+            return;
+        }
+        if (parts.length == 3) {
+            try {
+                count = Integer.parseInt(parts[2]);
+            } catch (NumberFormatException e) {
+                sendMessage("[SYSTEM] Usage: /pmhistory <user> [count]");
+                return;
+            }
+        }
+        if (!checkRate(RateLimiter.Kind.PMHISTORY, "/pmhistory requests")) {
+            return;
+        }
+        if (!server.getPmStore().isEnabled()) {
+            sendMessage("[SYSTEM] PM history is not kept on this server.");
+            return;
+        }
+        String other = parts[1];
+        List<String> lines;
+        try {
+            lines = server.getPmStore().recent(username, other, Math.max(1, Math.min(count, max)));
+        } catch (IOException e) {
+            sendMessage("[SYSTEM] Could not read PM history: " + e.getMessage());
+            return;
+        }
+        // The count tells programs where the reply ends, as with /list.
+        sendMessage("[SYSTEM] PM history with " + other + " (" + lines.size() + "):");
+        for (String s : lines) {
+            sendMessage(" " + s);
+        }
+    }
+
+    // /search <terms> [from:user] [since:time]
+    // PMs only show up for their sender and recipient.
+    private void handleSearch(String line) {
+        String query = line.substring("/search ".length()).trim();
+        if (query.isEmpty()) {
+            sendMessage("[SYSTEM] Usage: /search <terms> [from:user] [since:time]");
+            return;
+        }
+
+        int limit = server.getConfig().getInt("search.maxResults", 20);
+        long start = System.nanoTime();
+        var results = server.getSearchIndex().search(username, query, limit);
+        long micros = (System.nanoTime() - start) / 1000;
+
+        if (results.isEmpty()) {
+            sendMessage("[SYSTEM] No messages match: " + query);
+            return;
+        }
+        sendMessage("[SYSTEM] " + results.size() + " result(s) for \"" + query + "\" (" + micros + " us):");
+        for (String r : results) {
+            sendMessage("[SEARCH] " + r);
+        }
     }
 
     private void handleAskGpt(String line) {
         String prompt = line.substring("/askgpt ".length()).trim();
         if (prompt.isEmpty()) {
-            out.println("[SYSTEM] Usage: /askgpt <prompt>");
+            sendMessage("[SYSTEM] Usage: /askgpt <prompt>");
+            return;
+        }
+        if (!checkRate(RateLimiter.Kind.ASKGPT, "AI requests")) {
             return;
         }
 
-        out.println("[AI] Working on your request...");
+        sendMessage("[AI] Working on your request...");
 
         new Thread(() -> {
             try {
                 String response = server.getAiClient().askGpt(prompt);
                 String formatted = "[AI] " + response;
 
-                out.println(formatted);
-
-                server.getLogger().logChat("AI", username, MessageType.AI, formatted);
-                server.addToHistory(formatted);
+                server.sendAiAnswer(this, formatted);
             } catch (Exception e) {
                 String err = "[AI ERROR] " + e.getMessage();
-                out.println(err);
+                sendMessage(err);
             }
         }, "AIThread-" + username).start();
     }
 
     private void handleListUsers() {
+        if (!checkRate(RateLimiter.Kind.LIST, "/list requests")) {
+            return;
+        }
         boolean adminView = isAdmin;
         var list = server.getActiveConnectionsInfo(adminView);
-        out.println("[SYSTEM] Active users:");
+        // The count lets programs (ChatConnection.list()) know where the reply ends.
+        sendMessage("[SYSTEM] Active users (" + list.size() + "):");
         for (String s : list) {
-            out.println(" - " + s);
+            sendMessage(" - " + s);
+        }
+        if (adminView) {
+            sendMessage("[SYSTEM] " + server.getProbeStats());
+        }
+    }
+
+    // /roster [sinceId]: who is online, as changes since a previous reply when possible.
+    private void handleRoster(String line) {
+        if (!checkRate(RateLimiter.Kind.ROSTER, "/roster requests")) {
+            return;
+        }
+        String since = line.length() > "/roster".length() ? line.substring("/roster".length()).trim() : null;
+        for (String s : server.getPresence().rosterReply(since)) {
+            sendMessage(s);
+        }
+    }
+
+    // /send <user> <size> <name>: offer a file (clients fill in size and name).
+    private void handleSendFile(String line) {
+        String[] parts = line.split(" ", 4);
+        long size;
+        try {
+            size = parts.length == 4 ? Long.parseLong(parts[2]) : -1;
+        } catch (NumberFormatException e) {
+            size = -1;
+        }
+        if (size < 0) {
+            sendMessage("[FILE] REFUSED usage: /send <user> <size> <name>");
+            return;
+        }
+        if (!checkRate(RateLimiter.Kind.FILE, "file offers")) {
+            return;
+        }
+        server.getFiles().offer(this, parts[1], size, parts[3]);
+    }
+
+    // /schedule <delay> <message>: admin announcement sent later.
+    private void handleSchedule(String line) {
+        if (!isAdmin) {
+            sendMessage("[SYSTEM] Only admins can use /schedule.");
+            return;
+        }
+        String[] parts = line.split("\\s+", 3);
+        long delay = parts.length == 3 ? parseDelay(parts[1]) : -1;
+        if (delay < 0) {
+            sendMessage("[SYSTEM] Usage: /schedule <delay, e.g. 90s, 15m, 2h> <message>");
+            return;
+        }
+        int id = server.scheduleAnnouncement(username, parts[2], delay);
+        if (id < 0) {
+            sendMessage("[SYSTEM] Too many timers pending; try again later.");
+            return;
+        }
+        server.getLogger().logAdminAction(username, "SCHEDULE:" + id);
+        sendMessage("[SYSTEM] Scheduled announcement #" + id + " in " + parts[1] + ". Cancel with /unschedule " + id + ".");
+    }
+
+    private void handleUnschedule(String line) {
+        if (!isAdmin) {
+            sendMessage("[SYSTEM] Only admins can use /unschedule.");
+            return;
+        }
+        String arg = line.substring("/unschedule ".length()).trim();
+        int id;
+        try {
+            id = Integer.parseInt(arg.startsWith("#") ? arg.substring(1) : arg);
+        } catch (NumberFormatException e) {
+            sendMessage("[SYSTEM] Usage: /unschedule <id>");
+            return;
+        }
+        if (server.cancelScheduled(id)) {
+            server.getLogger().logAdminAction(username, "UNSCHEDULE:" + id);
+            sendMessage("[SYSTEM] Cancelled announcement #" + id + ".");
+        } else {
+            sendMessage("[SYSTEM] No pending announcement #" + id + ".");
+        }
+    }
+
+    // /expire <ttl> <message>: broadcast that is dropped from history after ttl.
+    private void handleExpire(String line) {
+        String[] parts = line.split("\\s+", 3);
+        long ttl = parts.length == 3 ? parseDelay(parts[1]) : -1;
+        if (ttl <= 0) {
+            sendMessage("[SYSTEM] Usage: /expire <ttl, e.g. 30s, 10m> <message>");
+            return;
+        }
+        if (!checkRate(RateLimiter.Kind.MESSAGE, "messages")) {
+            return;
+        }
+        if (!isAdmin && !server.getRateLimiter().tryAcquireBroadcast()) {
+            sendMessage("[SYSTEM] The chat is too busy right now; your message was not sent.");
+            return;
+        }
+        String text = moderate(parts[2], "*");
+        if (text == null) {
+            return;
+        }
+        String formatted = username + " (expires in " + parts[1] + "): " + text;
+        if (!server.broadcastExpiring(formatted, username, ttl)) {
+            sendMessage("[SYSTEM] Too many timers pending; your message was not sent.");
+        }
+    }
+
+    // Duration for /schedule and /expire, or -1 if invalid or above timers.maxDelayHours.
+    private long parseDelay(String text) {
+        long max = server.getConfig().getLong("timers.maxDelayHours", 168) * 3_600_000L;
+        try {
+            long ms = ServerUtils.parseDurationMillis(text);
+            return ms <= max ? ms : -1;
+        } catch (IllegalArgumentException e) {
+            return -1;
         }
     }
 
     private void handleAnnounce(String line) {
         if (!isAdmin) {
-            out.println("[SYSTEM] Only admins can use /announce.");
+            sendMessage("[SYSTEM] Only admins can use /announce.");
             return;
         }
         String msg = line.substring("/announce ".length()).trim();
         if (msg.isEmpty()) {
-            out.println("[SYSTEM] Usage: /announce <message>");
+            sendMessage("[SYSTEM] Usage: /announce <message>");
             return;
         }
         String formatted = "[ADMIN] " + msg;
-        server.broadcast(formatted, username, "*", MessageType.ADMIN, true);
+        server.broadcast(formatted, msg, username, "*", MessageType.ADMIN, true);
         server.getLogger().logAdminAction(username, "ANNOUNCE");
     }
 
     private void handleKick(String line) {
         if (!isAdmin) {
-            out.println("[SYSTEM] Only admins can use /kick.");
+            sendMessage("[SYSTEM] Only admins can use /kick.");
             return;
         }
         String targetName = line.substring("/kick ".length()).trim();
         if (targetName.isEmpty()) {
-            out.println("[SYSTEM] Usage: /kick <user>");
+            sendMessage("[SYSTEM] Usage: /kick <user>");
             return;
         }
 
         ClientHandler target = server.getClient(targetName);
         if (target == null) {
-            out.println("[SYSTEM] User not found or not online: " + targetName);
+            sendMessage("[SYSTEM] User not found or not online: " + targetName);
             return;
         }
 
@@ -333,6 +947,8 @@ public class ClientHandler implements Runnable {
         }
 
         target.sendMessage("[SYSTEM] You have been kicked by admin " + username + ".");
+        target.disconnect();
+        server.getSessionTokens().revoke(targetName);
 
         // Log admin action and disconnect event BEFORE closing socket/rewiring maps.
         server.getLogger().logAdminAction(username, "KICK " + targetName);
@@ -340,7 +956,6 @@ public class ClientHandler implements Runnable {
 
         // Remove without broadcasting default "left chat" message.
         server.removeClient(targetName, false);
-        target.closeSocket();
 
         String msg = "[SYSTEM] " + targetName + " was kicked by admin " + username + ".";
         server.broadcast(msg, "SYSTEM", "*", MessageType.SYSTEM, true);
@@ -348,12 +963,12 @@ public class ClientHandler implements Runnable {
 
     private void handleChangePw(String line) {
         if (!isAdmin) {
-            out.println("[SYSTEM] Only admins can use /changepw.");
+            sendMessage("[SYSTEM] Only admins can use /changepw.");
             return;
         }
         String[] parts = line.split("\\s+", 3);
         if (parts.length < 3) {
-            out.println("[SYSTEM] Usage: /changepw <user> <newpw>");
+            sendMessage("[SYSTEM] Usage: /changepw <user> <newpw>");
             return;
         }
         String targetUser = parts[1];
@@ -361,38 +976,46 @@ public class ClientHandler implements Runnable {
 
         boolean ok = server.getUserManager().changePassword(targetUser, newPw);
         if (!ok) {
-            out.println("[SYSTEM] Failed: user not found.");
+            sendMessage("[SYSTEM] Failed: user not found.");
         } else {
-            out.println("[SYSTEM] Password updated for " + targetUser + ".");
+            server.getSessionTokens().revoke(targetUser);
+            sendMessage("[SYSTEM] Password updated for " + targetUser + ".");
             server.getLogger().logAdminAction(username, "CHANGE_PW " + targetUser);
         }
     }
 
     private void handleRename(String line) {
         if (!isAdmin) {
-            out.println("[SYSTEM] Only admins can use /rename.");
+            sendMessage("[SYSTEM] Only admins can use /rename.");
             return;
         }
         String[] parts = line.split("\\s+", 3);
         if (parts.length < 3) {
-            out.println("[SYSTEM] Usage: /rename <old> <new>");
+            sendMessage("[SYSTEM] Usage: /rename <old> <new>");
             return;
         }
         String oldName = parts[1];
         String newName = parts[2];
 
-        boolean ok = server.getUserManager().renameUser(oldName, newName);
+        boolean ok;
+        try {
+            ok = server.renameUser(oldName, newName);
+        } catch (IOException e) {
+            ok = true;
+            sendMessage("[SYSTEM] Warning: mail waiting for " + oldName + " could not be moved: " + e.getMessage());
+        }
         if (!ok) {
-            out.println("[SYSTEM] Failed: user " + oldName + " not found or new name already exists.");
+            sendMessage("[SYSTEM] Failed: user " + oldName + " not found or new name already exists.");
             return;
         }
+        server.getSessionTokens().revoke(oldName);
 
         ClientHandler target = server.getClient(oldName);
         if (target != null) {
             // Remove from map silently and re-register under new name.
             server.removeClient(oldName, false);
             target.username = newName;
-            server.registerClient(newName, target);
+            server.registerClient(newName, target, false);
             // Note: registerClient() will broadcast a "joined" message,
             // but we do NOT want a "left" message for oldName.
             // We've suppressed that via removeClient(oldName, false).
@@ -410,7 +1033,7 @@ public class ClientHandler implements Runnable {
 
     private void handleExitServer() {
         if (!isAdmin) {
-            out.println("[SYSTEM] Only admins can use /exit-server.");
+            sendMessage("[SYSTEM] Only admins can use /exit-server.");
             return;
         }
         server.getLogger().logAdminAction(username, "EXIT_SERVER");
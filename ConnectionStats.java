@@ -0,0 +1,155 @@
+// ConnectionStats.java
+// Traffic counters and round-trip probes for one client connection.
+//
+// Bytes are counted on the socket streams themselves (countIn / countOut wrap
+// the raw socket streams in filter streams), so they include login prompts and
+// protocol lines. Messages are chat lines and commands read after
+// login, and lines written to the client.
+//
+// Probes: a client that sent "/probes on" (ChatConnection does) is sent
+// "[PING] <id>" on the CONTROL lane every probe.intervalSeconds and answers
+// "/pong <id>". The time from queueing the ping to writing it is server-side
+// delay (outbound backlog). The time from writing it to the pong is the network
+// plus the client. Reporting the two separately shows where a user's lag comes from.
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ConnectionStats {
+
+    final AtomicLong bytesIn = new AtomicLong();
+    final AtomicLong bytesOut = new AtomicLong();
+    volatile long messagesIn;           // reader thread only
+    volatile long messagesOut;          // writer thread only
+    private volatile long writeBlockedSince;   // nanoTime a socket write started, 0 = not writing
+
+    // Probe state, guarded by "this".
+    private boolean probing;
+    private long pingId;
+    private long pingQueuedAt;          // nanoTime, 0 = no ping outstanding
+    private long pingWrittenAt;         // nanoTime the ping reached the socket, 0 = still queued
+    private long lastRttMicros = -1;
+    private long smoothedRttMicros = -1;
+    private long minRttMicros = Long.MAX_VALUE;
+    private long pongs;
+
+    // Wraps the socket input stream.
+    public InputStream countIn(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) bytesIn.incrementAndGet();
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0) bytesIn.addAndGet(n);
+                return n;
+            }
+        };
+    }
+
+    // Wraps the socket output stream. Also notes when a write blocks, which is
+    // how a peer that stopped reading (or vanished) shows up on our side.
+    public OutputStream countOut(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                writeBlockedSince = System.nanoTime();
+                try {
+                    out.write(b, off, len);
+                } finally {
+                    writeBlockedSince = 0;
+                }
+                bytesOut.addAndGet(len);
+            }
+        };
+    }
+
+    // Nanoseconds the current socket write has been blocked (0 if none).
+    public long writeStalledNanos(long now) {
+        long since = writeBlockedSince;
+        return since == 0 ? 0 : now - since;
+    }
+
+    public synchronized void enableProbes() {
+        probing = true;
+    }
+
+    public synchronized boolean isProbing() {
+        return probing;
+    }
+
+    // Next ping id, or -1 if this connection is not probed or a ping is still
+    // outstanding.
+    public synchronized long startPing(long now) {
+        if (!probing || pingQueuedAt != 0) return -1;
+        pingQueuedAt = now;
+        pingWrittenAt = 0;
+        return ++pingId;
+    }
+
+    // Writer thread: the buffer holding the ping was just flushed.
+    public synchronized void pingWritten(long now) {
+        if (pingQueuedAt != 0 && pingWrittenAt == 0) {
+            pingWrittenAt = now;
+        }
+    }
+
+    // Nanoseconds the outstanding ping has waited for its pong (0 if none).
+    public synchronized long pingOutstandingNanos(long now) {
+        return pingQueuedAt == 0 ? 0 : now - pingQueuedAt;
+    }
+
+    // Pong for id arrived. Returns {queue delay, round trip} in microseconds,
+    // or null if it does not answer the outstanding ping.
+    public synchronized long[] pong(long id, long now) {
+        if (pingQueuedAt == 0 || id != pingId) return null;
+        long written = pingWrittenAt != 0 ? pingWrittenAt : now;
+        long queued = (written - pingQueuedAt) / 1000;
+        long rtt = (now - written) / 1000;
+        pingQueuedAt = 0;
+        lastRttMicros = rtt;
+        // Smoothed like TCP's SRTT: new = 7/8 old + 1/8 sample.
+        smoothedRttMicros = smoothedRttMicros < 0 ? rtt : (7 * smoothedRttMicros + rtt) / 8;
+        minRttMicros = Math.min(minRttMicros, rtt);
+        pongs++;
+        return new long[] { queued, rtt };
+    }
+
+    // e.g. "rtt 1.2ms (avg 1.1ms, min 0.9ms) | in 12 msgs 1.4KB | out 340 msgs 45.2KB"
+    public String describe() {
+        StringBuilder sb = new StringBuilder("rtt ");
+        synchronized (this) {
+            if (pongs == 0) {
+                sb.append(probing ? "pending" : "n/a");
+            } else {
+                sb.append(LatencyStats.format(lastRttMicros))
+                  .append(" (avg ").append(LatencyStats.format(smoothedRttMicros))
+                  .append(", min ").append(LatencyStats.format(minRttMicros)).append(')');
+            }
+        }
+        sb.append(" | in ").append(messagesIn).append(" msgs ").append(formatBytes(bytesIn.get()))
+          .append(" | out ").append(messagesOut).append(" msgs ").append(formatBytes(bytesOut.get()));
+        return sb.toString();
+    }
+
+    static String formatBytes(long bytes) {
+        if (bytes < 1024) return bytes + "B";
+        if (bytes < 1024 * 1024) return String.format("%.1fKB", bytes / 1024.0);
+        if (bytes < 1024L * 1024 * 1024) return String.format("%.1fMB", bytes / (1024.0 * 1024));
+        return String.format("%.2fGB", bytes / (1024.0 * 1024 * 1024));
+    }
+}
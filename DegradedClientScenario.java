@@ -0,0 +1,205 @@
+// DegradedClientScenario.java
+// Checks that one bad client does not slow down everybody else. Healthy clients
+// and one degraded client all connect through a FaultProxy; once everyone is
+// logged in the degraded link is broken, the healthy clients broadcast
+// timestamped messages, and the broadcast latency they see is checked against
+// a limit.
+//
+// Usage:
+//   java DegradedClientScenario [--fault stall|slow|jitter|reset|<down spec>]
+//        [--clients N] [--seconds N] [--rate msgs/s] [--size bytes] [--p99 ms]
+//        [--server host:port]
+//
+// Faults for the degraded client (see FaultProxy for specs):
+//   stall   forwards nothing either way from the start of the run (half-open peer, default)
+//   slow    reads at 256 bytes/s in 1-byte segments
+//   jitter  200ms latency + up to 300ms jitter each way
+//   reset   TCP reset halfway through the run
+// --rate is per healthy client. Without --server a ChatServer is started in
+// this JVM on port 12400; server.properties in the current directory applies,
+// so rate.message.* and rate.broadcast.* must allow the load. Clients sign up as
+// healthy1..N and degraded if they do not exist.
+//
+// Exit code 0 if the healthy clients' p99 stayed under --p99 and they got every
+// broadcast that was not throttled, 1 otherwise.
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class DegradedClientScenario {
+
+    public static void main(String[] args) throws Exception {
+        String fault = "stall";
+        int clients = 8;
+        int seconds = 10;
+        double rate = 1.5;
+        int size = 200;
+        long p99LimitMs = 250;
+        String server = null;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--fault":   fault = args[++i]; break;
+                case "--clients": clients = Integer.parseInt(args[++i]); break;
+                case "--seconds": seconds = Integer.parseInt(args[++i]); break;
+                case "--rate":    rate = Double.parseDouble(args[++i]); break;
+                case "--size":    size = Integer.parseInt(args[++i]); break;
+                case "--p99":     p99LimitMs = Long.parseLong(args[++i]); break;
+                case "--server":  server = args[++i]; break;
+                default:
+                    System.out.println("[Scenario] Unknown option " + args[i]);
+                    System.exit(2);
+            }
+        }
+
+        ChatServer local = null;
+        String host = "localhost";
+        int port = 12400;
+        if (server == null) {
+            local = new ChatServer();
+            local.setPort(port);
+            local.start();
+        } else {
+            int colon = server.lastIndexOf(':');
+            host = server.substring(0, colon);
+            port = Integer.parseInt(server.substring(colon + 1));
+        }
+
+        FaultProxy proxy = new FaultProxy(0, host, port);
+        boolean passed;
+        try {
+            passed = run(proxy, fault, clients, seconds, rate, size, p99LimitMs);
+        } finally {
+            proxy.close();
+            if (local != null) local.stop(false);
+        }
+        System.exit(passed ? 0 : 1);
+    }
+
+    private static boolean run(FaultProxy proxy, String fault, int clients, int seconds, double rate,
+                               int size, long p99LimitMs) throws Exception {
+        LatencyStats total = new LatencyStats();
+        AtomicReference<LatencyStats> window = new AtomicReference<>(new LatencyStats());
+        AtomicLong received = new AtomicLong();
+        AtomicLong throttled = new AtomicLong();
+        AtomicLong degradedLines = new AtomicLong();
+        AtomicReference<String> degradedDrop = new AtomicReference<>();
+        long origin = System.nanoTime();
+        // Messages carry "<mark><nanoTime>"; the run id keeps older runs' lines
+        // (replayed from history at login) out of the numbers.
+        String mark = "lat" + Long.toHexString(new Random().nextLong() & 0xffffffL) + ":";
+
+        // The degraded client connects first, so it is link #1.
+        ChatConnection degraded = new ChatConnection("localhost", proxy.getPort(), new ChatListener() {
+            @Override
+            public void onMessage(String line) {
+                degradedLines.incrementAndGet();
+            }
+
+            @Override
+            public void onDisconnected(String reason, boolean willReconnect) {
+                degradedDrop.compareAndSet(null, String.format("after %.1fs (%s)",
+                        (System.nanoTime() - origin) / 1e9, reason));
+            }
+        });
+        degraded.setAutoReconnect(false);   // a reconnect would come back on a healthy link
+        degraded.login("degraded", "pw", true).get(10, TimeUnit.SECONDS);
+        FaultProxy.Link badLink = proxy.link(1);
+
+        List<ChatConnection> healthy = new ArrayList<>();
+        for (int i = 1; i <= clients; i++) {
+            ChatConnection c = new ChatConnection("localhost", proxy.getPort(), line -> {
+                int at = line.indexOf(mark);
+                if (at >= 0) {
+                    int end = line.indexOf(' ', at);
+                    long sent = Long.parseLong(line.substring(at + mark.length(), end < 0 ? line.length() : end));
+                    long micros = (System.nanoTime() - sent) / 1000;
+                    total.recordMicros(micros);
+                    window.get().recordMicros(micros);
+                    received.incrementAndGet();
+                } else if (line.contains(" too fast.") || line.contains("too busy right now")) {
+                    throttled.incrementAndGet();
+                }
+            });
+            c.login("healthy" + i, "pw", true).get(10, TimeUnit.SECONDS);
+            healthy.add(c);
+        }
+        Thread.sleep(500);   // let history replay and join notices settle
+
+        System.out.println("[Scenario] " + clients + " healthy client(s) + 1 degraded (" + fault + "), "
+                + seconds + "s at " + rate + " msg/s each, " + size + "-byte messages");
+        applyFault(badLink, fault, seconds);
+
+        char[] pad = new char[Math.max(0, size - 32)];
+        Arrays.fill(pad, 'x');
+        String padding = new String(pad);
+        ScheduledExecutorService senders = Executors.newScheduledThreadPool(2);
+        AtomicLong sent = new AtomicLong();
+        long periodMicros = (long) (1_000_000 / rate);
+        for (int i = 0; i < healthy.size(); i++) {
+            ChatConnection c = healthy.get(i);
+            long offset = periodMicros * i / healthy.size();   // spread the clients over the period
+            senders.scheduleAtFixedRate(() -> {
+                if (c.send(mark + System.nanoTime() + " " + padding)) sent.incrementAndGet();
+            }, offset, periodMicros, TimeUnit.MICROSECONDS);
+        }
+
+        for (int s = 1; s <= seconds; s++) {
+            Thread.sleep(1000);
+            LatencyStats w = window.getAndSet(new LatencyStats());
+            System.out.println("[Scenario] t=" + s + "s sent " + sent.get() + ", received " + received.get()
+                    + ", last second " + w.summary());
+            if (badLink != null && !badLink.isClosed()) {
+                System.out.println("[Scenario]   degraded link " + badLink.describe());
+            }
+        }
+        senders.shutdownNow();
+        Thread.sleep(2000);  // in-flight broadcasts
+
+        // Each broadcast goes to every healthy client, the sender included.
+        long expected = (sent.get() - throttled.get()) * healthy.size();
+        long p99 = total.percentileMicros(99);
+        boolean latencyOk = p99 <= p99LimitMs * 1000;
+        boolean complete = received.get() >= expected;
+
+        System.out.println("[Scenario] Healthy clients: " + total.summary());
+        System.out.println("[Scenario] Delivered " + received.get() + " of " + expected
+                + " (" + throttled.get() + " message(s) throttled by the server)");
+        System.out.println("[Scenario] Degraded client got " + degradedLines.get() + " line(s)"
+                + (degradedDrop.get() != null ? ", dropped " + degradedDrop.get() : ", still connected"));
+        System.out.println("[Scenario] p99 " + LatencyStats.format(p99) + (latencyOk ? " <= " : " > ")
+                + p99LimitMs + "ms, " + (complete ? "nothing lost" : "broadcasts missing")
+                + ": " + (latencyOk && complete ? "PASS" : "FAIL"));
+
+        for (ChatConnection c : healthy) c.close();
+        degraded.close();
+        return latencyOk && complete;
+    }
+
+    private static void applyFault(FaultProxy.Link link, String fault, int seconds) {
+        if (link == null) {
+            throw new IllegalStateException("degraded client is not on link #1");
+        }
+        switch (fault) {
+            case "stall":
+                link.stall(0);
+                break;
+            case "slow":
+                link.setFaults(true, FaultProxy.Faults.parse("bw=256,chunk=1"));
+                break;
+            case "jitter":
+                FaultProxy.Faults j = FaultProxy.Faults.parse("latency=200,jitter=300");
+                link.setFaults(false, j);
+                link.setFaults(true, j);
+                break;
+            case "reset":
+                link.setFaults(true, FaultProxy.Faults.parse("resetMs=" + seconds * 500L));
+                break;
+            default:
+                link.setFaults(true, FaultProxy.Faults.parse(fault));
+                break;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+// DeliveryLane.java
+// Priority classes for outbound messages. Each client's OutboundQueue drains
+// lower ordinals first, so moderation and shutdown notices are not stuck behind
+// chat floods.
+
+public enum DeliveryLane {
+    CONTROL,   // ADMIN and SYSTEM messages, command replies
+    PRIVATE,   // private messages
+    NORMAL,    // broadcasts, AI answers, history replay
+    TYPING;    // typing indicators (lowest, droppable)
+
+    // Lane used for a logged message type.
+    public static DeliveryLane forType(MessageType type) {
+        switch (type) {
+            case ADMIN:
+            case SYSTEM:
+                return CONTROL;
+            case PRIVATE:
+                return PRIVATE;
+            default:
+                return NORMAL;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+// FanoutBench.java
+// Compares serial and sharded broadcast fan-out (ShardedFanout) for different
+// audience sizes. Every recipient is an OutboundQueue, as in the server, and a
+// broadcast counts as done once the message is queued for all of them.
+//
+// Usage:
+//   java FanoutBench [--shards N] [--rounds N] [sizes...]     (default sizes: 100 1000 10000)
+//
+// Prints mean/p50/p99 latency per broadcast and broadcasts per second for both paths.
+// The sharded path needs several cores to pay off; with --shards 1 it is serial.
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+public class FanoutBench {
+
+    public static void main(String[] args) throws Exception {
+        int shards = Runtime.getRuntime().availableProcessors();
+        int rounds = 2000;
+        List<Integer> sizes = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--shards": shards = Integer.parseInt(args[++i]); break;
+                case "--rounds": rounds = Integer.parseInt(args[++i]); break;
+                default:         sizes.add(Integer.parseInt(args[i])); break;
+            }
+        }
+        if (sizes.isEmpty()) {
+            sizes = Arrays.asList(100, 1000, 10_000);
+        }
+
+        System.out.println("[FanoutBench] " + shards + " shards, " + rounds + " broadcasts per run");
+        System.out.println(String.format("%-10s %-9s %10s %10s %10s %12s",
+                "recipients", "path", "mean us", "p50 us", "p99 us", "bcasts/s"));
+        for (int n : sizes) {
+            run(n, "serial", new ShardedFanout<>("Bench", shards, Integer.MAX_VALUE), rounds);
+            run(n, "sharded", new ShardedFanout<>("Bench", shards, 0), rounds);
+        }
+    }
+
+    private static void run(int recipients, String label, ShardedFanout<OutboundQueue> fanout, int rounds)
+            throws Exception {
+        List<OutboundQueue> queues = new ArrayList<>();
+        for (int i = 0; i < recipients; i++) {
+            OutboundQueue q = new OutboundQueue(Integer.MAX_VALUE, 32);
+            queues.add(q);
+            fanout.add(q);
+        }
+        String msg = "alice: benchmark message";
+
+        // Warm-up, then measure; queues are emptied between batches (not timed).
+        measure(fanout, queues, msg, Math.max(200, rounds / 4));
+        long[] latencies = measure(fanout, queues, msg, rounds);
+        fanout.shutdown();
+
+        long total = 0;
+        for (long l : latencies) total += l;
+        Arrays.sort(latencies);
+        double meanUs = total / 1000.0 / latencies.length;
+        System.out.println(String.format("%-10d %-9s %10.1f %10.1f %10.1f %12.0f",
+                recipients, label, meanUs,
+                latencies[latencies.length / 2] / 1000.0,
+                latencies[(int) (latencies.length * 0.99)] / 1000.0,
+                1_000_000.0 / meanUs));
+    }
+
+    private static long[] measure(ShardedFanout<OutboundQueue> fanout, List<OutboundQueue> queues,
+                                  String msg, int rounds) throws Exception {
+        long[] latencies = new long[rounds];
+        int batch = 100;
+        for (int r = 0; r < rounds; r++) {
+            long start = System.nanoTime();
+            CompletableFuture<Void> done = fanout.deliver(q -> q.offer(msg, DeliveryLane.NORMAL));
+            done.get();
+            latencies[r] = System.nanoTime() - start;
+            if ((r + 1) % batch == 0) {
+                for (OutboundQueue q : queues) {
+                    while (q.poll() != null) { }
+                }
+            }
+        }
+        return latencies;
+    }
+}
@@ -0,0 +1,608 @@
+// FaultProxy.java
+// Loopback TCP proxy that degrades the connections passing through it, for
+// testing slow consumers, jittery links and half-open peers without a real
+// network. Put it between ChatClient (or a load generator) and ChatServer.
+//
+// Usage:
+//   java FaultProxy <listenPort> <host:port> [--up spec] [--down spec]
+//
+// "down" is server -> client, "up" is client -> server. A spec is a comma
+// separated list of faults, e.g. "latency=80,jitter=40,bw=2000,chunk=1":
+//   latency=ms        hold every chunk this long (one way)
+//   jitter=ms         plus a random 0..ms (byte order is kept)
+//   bw=bytes/s        bandwidth cap
+//   chunk=bytes       send at most this many bytes per write (tiny TCP segments)
+//   stallAfter=bytes  stop forwarding after this many bytes ...
+//   stall=ms          ... for this long (0 = until "resume": a half-open peer)
+//   resetAfter=bytes  abort both sockets with a TCP reset after this many bytes
+//   resetMs=ms        abort both sockets this long after the faults take effect
+//   buffer=bytes      most bytes the proxy holds before it stops reading
+//                     (default 64KB, fixed when the connection is accepted)
+// A stalled or slow direction stops reading once its buffer is full, so the
+// sender's socket fills up just as it would with a real slow peer.
+//
+// Commands on stdin, one per line, so a file can be piped in as a script:
+//   list                          links and the bytes forwarded each way
+//   next up|down <spec>           faults for the next accepted connection only
+//   set <id|all> up|down <spec>   replace the faults of live links
+//   stall <id|all> [ms]           stop forwarding both ways (no ms = until resume)
+//   resume <id|all>
+//   reset <id|all>                abort with a TCP reset
+//   sleep <ms>                    pause the script
+//   quit
+// Tests drive the same operations from Java (see DegradedClientScenario).
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+public class FaultProxy implements Closeable {
+
+    private static final int READ_SIZE = 8192;
+
+    // What to do to one direction of a connection. Immutable; parse() builds it.
+    public static final class Faults {
+        public static final Faults NONE = parse("");
+
+        public final long latencyMs;
+        public final long jitterMs;
+        public final long bytesPerSecond;     // 0 = unlimited
+        public final int chunkBytes;          // 0 = as read
+        public final long stallAfterBytes;    // -1 = never
+        public final long stallMs;            // 0 = until resumed
+        public final long resetAfterBytes;    // -1 = never
+        public final long resetMs;            // 0 = never
+        public final int bufferBytes;
+        private final String spec;
+
+        private Faults(Map<String, Long> v, String spec) {
+            this.latencyMs = v.getOrDefault("latency", 0L);
+            this.jitterMs = v.getOrDefault("jitter", 0L);
+            this.bytesPerSecond = v.getOrDefault("bw", 0L);
+            this.chunkBytes = (int) Math.min(Integer.MAX_VALUE, v.getOrDefault("chunk", 0L));
+            this.stallAfterBytes = v.getOrDefault("stallafter", -1L);
+            this.stallMs = v.getOrDefault("stall", 0L);
+            this.resetAfterBytes = v.getOrDefault("resetafter", -1L);
+            this.resetMs = v.getOrDefault("resetms", 0L);
+            this.bufferBytes = (int) Math.max(1, Math.min(Integer.MAX_VALUE, v.getOrDefault("buffer", 64L * 1024)));
+            this.spec = spec.isEmpty() ? "none" : spec;
+        }
+
+        // "latency=80,jitter=40" etc. (see the file header); "" or "none" = no faults.
+        public static Faults parse(String spec) {
+            String s = spec.trim();
+            Map<String, Long> v = new HashMap<>();
+            if (!s.isEmpty() && !s.equalsIgnoreCase("none")) {
+                for (String part : s.split(",")) {
+                    int eq = part.indexOf('=');
+                    if (eq < 0) throw new IllegalArgumentException("expected key=value: " + part);
+                    String key = part.substring(0, eq).trim().toLowerCase();
+                    switch (key) {
+                        case "latency": case "jitter": case "bw": case "chunk": case "stallafter":
+                        case "stall": case "resetafter": case "resetms": case "buffer":
+                            break;
+                        default:
+                            throw new IllegalArgumentException("unknown fault: " + key);
+                    }
+                    long n = Long.parseLong(part.substring(eq + 1).trim());
+                    if (n < 0) throw new IllegalArgumentException("negative value: " + part);
+                    v.put(key, n);
+                }
+            }
+            return new Faults(v, s.equalsIgnoreCase("none") ? "" : s);
+        }
+
+        @Override
+        public String toString() {
+            return spec;
+        }
+    }
+
+    private final ServerSocket listener;
+    private final String targetHost;
+    private final int targetPort;
+    private final Thread acceptor;
+    private final ScheduledExecutorService timers;
+    private final Map<Integer, Link> links = new ConcurrentSkipListMap<>();
+    private final AtomicInteger ids = new AtomicInteger();
+    private volatile Faults defaultUp = Faults.NONE;
+    private volatile Faults defaultDown = Faults.NONE;
+    private volatile boolean running = true;
+
+    // Guarded by "this".
+    private Faults nextUp;
+    private Faults nextDown;
+
+    // Listens on the loopback address (listenPort 0 = any free port).
+    public FaultProxy(int listenPort, String targetHost, int targetPort) throws IOException {
+        this.listener = new ServerSocket(listenPort, 50, InetAddress.getLoopbackAddress());
+        this.targetHost = targetHost;
+        this.targetPort = targetPort;
+        this.timers = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "FaultProxy-timer");
+            t.setDaemon(true);
+            return t;
+        });
+        this.acceptor = new Thread(this::acceptLoop, "FaultProxy-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return listener.getLocalPort();
+    }
+
+    // Faults for every new connection (existing links keep theirs).
+    public void setDefaults(Faults up, Faults down) {
+        this.defaultUp = up;
+        this.defaultDown = down;
+    }
+
+    // Faults for the next accepted connection only. A null direction is left
+    // as it is, so "next up" and "next down" can be given one after the other.
+    public synchronized void setNext(Faults up, Faults down) {
+        if (up != null) this.nextUp = up;
+        if (down != null) this.nextDown = down;
+    }
+
+    // Links still open, oldest first.
+    public List<Link> links() {
+        return new ArrayList<>(links.values());
+    }
+
+    // The link with this id (ids count up from 1 in accept order), or null once closed.
+    public Link link(int id) {
+        return links.get(id);
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        try {
+            listener.close();
+        } catch (IOException ignored) {
+        }
+        for (Link l : links()) {
+            l.close();
+        }
+        timers.shutdownNow();
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            Socket client;
+            try {
+                client = listener.accept();
+            } catch (IOException e) {
+                if (running) System.out.println("[FaultProxy] Accept failed: " + e.getMessage());
+                return;
+            }
+            Socket server = new Socket();
+            try {
+                server.connect(new InetSocketAddress(targetHost, targetPort), 5000);
+                client.setTcpNoDelay(true);
+                server.setTcpNoDelay(true);
+            } catch (IOException e) {
+                System.out.println("[FaultProxy] Cannot reach " + targetHost + ":" + targetPort + ": " + e.getMessage());
+                closeQuietly(client);
+                closeQuietly(server);
+                continue;
+            }
+            Faults up;
+            Faults down;
+            synchronized (this) {
+                up = nextUp != null ? nextUp : defaultUp;
+                down = nextDown != null ? nextDown : defaultDown;
+                nextUp = null;
+                nextDown = null;
+            }
+            try {
+                Link link = new Link(ids.incrementAndGet(), client, server, up, down);
+                links.put(link.id, link);
+                link.start();
+            } catch (IOException e) {
+                System.out.println("[FaultProxy] Link setup failed: " + e.getMessage());
+                closeQuietly(client);
+                closeQuietly(server);
+            }
+        }
+    }
+
+    // One proxied connection: a pipe each way.
+    public final class Link {
+        public final int id;
+        private final Socket client;
+        private final Socket server;
+        private final Pipe up;
+        private final Pipe down;
+        private final AtomicInteger pipesDone = new AtomicInteger();
+        private volatile boolean closed;
+        private volatile ScheduledFuture<?> resetTimer;
+
+        Link(int id, Socket client, Socket server, Faults upFaults, Faults downFaults) throws IOException {
+            this.id = id;
+            this.client = client;
+            this.server = server;
+            this.up = new Pipe(this, "up", client.getInputStream(), server, upFaults);
+            this.down = new Pipe(this, "down", server.getInputStream(), client, downFaults);
+        }
+
+        void start() {
+            up.start();
+            down.start();
+            armResetTimer();
+        }
+
+        public void setFaults(boolean downstream, Faults f) {
+            (downstream ? down : up).setFaults(f);
+            armResetTimer();
+        }
+
+        // Stop forwarding both ways for ms (0 = until resume()). Neither side
+        // sees a close: to them it is a peer that went silent (half-open).
+        public void stall(long ms) {
+            up.stall(ms);
+            down.stall(ms);
+        }
+
+        public void resume() {
+            up.resume();
+            down.resume();
+        }
+
+        // Abort both sockets: each side gets a TCP reset instead of a clean close.
+        public void reset() {
+            if (closed) return;
+            try {
+                client.setSoLinger(true, 0);
+                server.setSoLinger(true, 0);
+            } catch (IOException ignored) {
+            }
+            close();
+        }
+
+        public void close() {
+            if (closed) return;
+            closed = true;
+            links.remove(id, this);
+            ScheduledFuture<?> t = resetTimer;
+            if (t != null) t.cancel(false);
+            closeQuietly(client);
+            closeQuietly(server);
+            up.stop();
+            down.stop();
+        }
+
+        public boolean isClosed() {
+            return closed;
+        }
+
+        public long bytesUp() {
+            return up.forwarded.get();
+        }
+
+        public long bytesDown() {
+            return down.forwarded.get();
+        }
+
+        // e.g. "#3 127.0.0.1:51234 | up 120B (none) | down 45.1KB held 64.0KB STALLED (bw=200,chunk=1)"
+        public String describe() {
+            return "#" + id + " " + client.getRemoteSocketAddress()
+                    + " | up " + up.describe() + " | down " + down.describe();
+        }
+
+        private void armResetTimer() {
+            ScheduledFuture<?> old = resetTimer;
+            if (old != null) old.cancel(false);
+            long ms = Math.max(up.faults.resetMs, down.faults.resetMs);
+            resetTimer = ms > 0 && !closed ? timers.schedule(this::reset, ms, TimeUnit.MILLISECONDS) : null;
+        }
+
+        // Both directions saw end of stream and passed it on.
+        void pipeDone() {
+            if (pipesDone.incrementAndGet() == 2) close();
+        }
+    }
+
+    // One direction. The reader stamps each chunk with the time it may leave
+    // (latency + jitter); the writer holds it until then and applies the rest.
+    private final class Pipe {
+        private final Link link;
+        private final String name;
+        private final InputStream in;
+        private final Socket dst;
+        private final OutputStream out;
+        private final LinkedBlockingQueue<Chunk> queue = new LinkedBlockingQueue<>();
+        private final Semaphore room;           // bytes the proxy may still hold
+        private final int bufferBytes;
+        final AtomicLong forwarded = new AtomicLong();
+        volatile Faults faults;
+        private volatile long stallUntil;       // nanoTime, Long.MAX_VALUE = until resumed, 0 = flowing
+        private Thread reader;
+        private Thread writer;
+
+        private volatile boolean stallAfterDone;
+        private long nextSendAt;                // writer thread only
+
+        Pipe(Link link, String name, InputStream in, Socket dst, Faults faults) throws IOException {
+            this.link = link;
+            this.name = name;
+            this.in = in;
+            this.dst = dst;
+            this.out = dst.getOutputStream();
+            this.faults = faults;
+            this.bufferBytes = faults.bufferBytes;
+            this.room = new Semaphore(bufferBytes);
+        }
+
+        void start() {
+            reader = new Thread(this::readLoop, "FaultProxy-" + link.id + "-" + name + "-read");
+            writer = new Thread(this::writeLoop, "FaultProxy-" + link.id + "-" + name + "-write");
+            reader.setDaemon(true);
+            writer.setDaemon(true);
+            reader.start();
+            writer.start();
+        }
+
+        void stop() {
+            if (reader != null) reader.interrupt();
+            if (writer != null) writer.interrupt();
+        }
+
+        void setFaults(Faults f) {
+            faults = f;
+            stallAfterDone = false;
+        }
+
+        void stall(long ms) {
+            stallUntil = ms <= 0 ? Long.MAX_VALUE : System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ms);
+        }
+
+        void resume() {
+            stallUntil = 0;
+            Thread w = writer;
+            if (w != null) LockSupport.unpark(w);
+        }
+
+        String describe() {
+            long held = bufferBytes - room.availablePermits();
+            return ConnectionStats.formatBytes(forwarded.get())
+                    + (held > 0 ? " held " + ConnectionStats.formatBytes(held) : "")
+                    + (stallUntil != 0 ? " STALLED" : "")
+                    + " (" + faults + ")";
+        }
+
+        private void readLoop() {
+            byte[] buf = new byte[Math.min(READ_SIZE, bufferBytes)];
+            Random random = new Random();
+            long lastDue = 0;
+            try {
+                int n;
+                while ((n = in.read(buf)) > 0) {
+                    room.acquire(n);
+                    Faults f = faults;
+                    long delay = f.latencyMs + (f.jitterMs > 0 ? (long) (random.nextDouble() * (f.jitterMs + 1)) : 0);
+                    long at = Math.max(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay), lastDue);
+                    lastDue = at;
+                    queue.add(new Chunk(Arrays.copyOf(buf, n), at));
+                }
+                queue.add(new Chunk(null, 0));   // end of stream
+            } catch (IOException e) {
+                link.close();
+            } catch (InterruptedException e) {
+                // link closed
+            }
+        }
+
+        private void writeLoop() {
+            try {
+                while (true) {
+                    Chunk c = queue.take();
+                    byte[] data = c.data;
+                    if (data == null) {
+                        dst.shutdownOutput();   // pass the FIN on, keep the other direction
+                        link.pipeDone();
+                        return;
+                    }
+                    sleepUntil(c.due);
+                    int off = 0;
+                    while (off < data.length) {
+                        awaitFlowing();
+                        Faults f = faults;
+                        long sent = forwarded.get();
+                        int n = data.length - off;
+                        if (f.chunkBytes > 0) n = Math.min(n, f.chunkBytes);
+                        if (f.stallAfterBytes >= 0 && !stallAfterDone) {
+                            long left = f.stallAfterBytes - sent;
+                            if (left <= 0) {
+                                stallAfterDone = true;
+                                stall(f.stallMs);
+                                continue;
+                            }
+                            n = (int) Math.min(n, left);
+                        }
+                        if (f.resetAfterBytes >= 0) {
+                            long left = f.resetAfterBytes - sent;
+                            if (left <= 0) {
+                                link.reset();
+                                return;
+                            }
+                            n = (int) Math.min(n, left);
+                        }
+                        if (f.bytesPerSecond > 0) {
+                            long now = System.nanoTime();
+                            if (nextSendAt < now) nextSendAt = now;
+                            sleepUntil(nextSendAt);
+                            nextSendAt += n * 1_000_000_000L / f.bytesPerSecond;
+                        }
+                        out.write(data, off, n);   // socket stream: one send per write
+                        forwarded.addAndGet(n);
+                        room.release(n);
+                        off += n;
+                    }
+                }
+            } catch (IOException e) {
+                link.close();
+            } catch (InterruptedException e) {
+                // link closed
+            }
+        }
+
+        private void awaitFlowing() throws InterruptedException {
+            long until;
+            while ((until = stallUntil) != 0) {
+                long left = until - System.nanoTime();
+                if (left <= 0) {
+                    stallUntil = 0;
+                    return;
+                }
+                LockSupport.parkNanos(Math.min(left, TimeUnit.MILLISECONDS.toNanos(50)));
+                if (Thread.interrupted()) throw new InterruptedException();
+            }
+        }
+    }
+
+    private static final class Chunk {
+        final byte[] data;      // null = end of stream
+        final long due;         // nanoTime it may be sent
+
+        Chunk(byte[] data, long due) {
+            this.data = data;
+            this.due = due;
+        }
+    }
+
+    private static void sleepUntil(long nanoTime) throws InterruptedException {
+        long left;
+        while ((left = nanoTime - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(left);
+            if (Thread.interrupted()) throw new InterruptedException();
+        }
+    }
+
+    private static void closeQuietly(Socket s) {
+        try {
+            s.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    // ---------- Command line ----------
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: java FaultProxy <listenPort> <host:port> [--up spec] [--down spec]");
+            return;
+        }
+        int listenPort = Integer.parseInt(args[0]);
+        int colon = args[1].lastIndexOf(':');
+        if (colon < 0) {
+            System.out.println("[FaultProxy] Target must be host:port.");
+            return;
+        }
+        String host = args[1].substring(0, colon);
+        int port = Integer.parseInt(args[1].substring(colon + 1));
+        Faults up = Faults.NONE;
+        Faults down = Faults.NONE;
+        for (int i = 2; i < args.length; i++) {
+            switch (args[i]) {
+                case "--up":   up = Faults.parse(args[++i]); break;
+                case "--down": down = Faults.parse(args[++i]); break;
+                default:
+                    System.out.println("[FaultProxy] Unknown option " + args[i]);
+                    return;
+            }
+        }
+
+        FaultProxy proxy = new FaultProxy(listenPort, host, port);
+        proxy.setDefaults(up, down);
+        System.out.println("[FaultProxy] 127.0.0.1:" + proxy.getPort() + " -> " + host + ":" + port
+                + " (up: " + up + ", down: " + down + ")");
+
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+        String line;
+        while ((line = in.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            if (line.equals("quit")) break;
+            try {
+                proxy.command(line);
+            } catch (RuntimeException e) {
+                System.out.println("[FaultProxy] " + line + ": " + e.getMessage());
+            }
+        }
+        if (line == null) {
+            // Script finished (or no stdin): keep proxying until killed.
+            proxy.acceptor.join();
+        }
+        proxy.close();
+    }
+
+    // One script command (see the file header).
+    public void command(String line) {
+        String[] p = line.trim().split("\\s+", 4);
+        switch (p[0]) {
+            case "list":
+                List<Link> all = links();
+                System.out.println("[FaultProxy] " + all.size() + " link(s)");
+                for (Link l : all) {
+                    System.out.println(" - " + l.describe());
+                }
+                return;
+            case "next":
+                need(p, 3);
+                direction(p[1]);
+                if (p[1].equals("down")) setNext(null, Faults.parse(p[2]));
+                else setNext(Faults.parse(p[2]), null);
+                return;
+            case "set":
+                need(p, 4);
+                direction(p[2]);
+                Faults f = Faults.parse(p[3]);
+                for (Link l : select(p[1])) l.setFaults(p[2].equals("down"), f);
+                return;
+            case "stall":
+                need(p, 2);
+                long ms = p.length > 2 ? Long.parseLong(p[2]) : 0;
+                for (Link l : select(p[1])) l.stall(ms);
+                return;
+            case "resume":
+                need(p, 2);
+                for (Link l : select(p[1])) l.resume();
+                return;
+            case "reset":
+                need(p, 2);
+                for (Link l : select(p[1])) l.reset();
+                return;
+            case "sleep":
+                need(p, 2);
+                try {
+                    Thread.sleep(Long.parseLong(p[1]));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return;
+            default:
+                throw new IllegalArgumentException("unknown command");
+        }
+    }
+
+    private List<Link> select(String which) {
+        if (which.equals("all")) return links();
+        Link l = link(Integer.parseInt(which.startsWith("#") ? which.substring(1) : which));
+        if (l == null) throw new IllegalArgumentException("no open link " + which);
+        return Collections.singletonList(l);
+    }
+
+    private static void direction(String d) {
+        if (!d.equals("up") && !d.equals("down")) throw new IllegalArgumentException("expected up or down");
+    }
+
+    private static void need(String[] p, int n) {
+        if (p.length < n) throw new IllegalArgumentException("missing arguments");
+    }
+}
@@ -0,0 +1,392 @@
+// FileTransferRelay.java
+// File transfers between two logged-in users over a separate data port.
+//
+// The chat connection only carries the negotiation ("[FILE] ..." lines):
+//   sender    -> /send <user> <size> <name>
+//   recipient <- [FILE] OFFER <id> <from> <size> <name>
+//   recipient -> /accept <id>   (or /decline <id>)
+//   sender    <- [FILE] UPLOAD <id> <port> <key>
+//   recipient <- [FILE] DOWNLOAD <id> <port> <key> <size> <name>
+//   both      <- [FILE] DONE <id> <bytes> <ms>   or   [FILE] FAILED <id> <reason>
+// Refused offers get "[FILE] REFUSED <reason>".
+//
+// Both peers then connect to file.port and send their one-time key as the first
+// line. Once both are there, a relay thread copies the bytes from one socket
+// channel to the other through a direct buffer (no copy through the Java heap).
+// Each transfer is capped at file.bytesPerSecond, and relay threads run at low
+// priority outside the client pool, so chat traffic is not slowed down.
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.*;
+
+public class FileTransferRelay {
+
+    private static final int CHUNK = 64 * 1024;
+    private static final int KEY_BYTES = 16;
+
+    private final ChatServer server;
+    private final boolean enabled;
+    private final long maxBytes;
+    private final long bytesPerSecond;
+    private final int maxActive;
+    private final long offerTimeoutMs;
+    private final long stallTimeoutMs;
+
+    private final SecureRandom random = new SecureRandom();
+    private final Map<String, Transfer> transfers = new ConcurrentHashMap<>();   // by id
+    private final Map<String, Transfer> byKey = new ConcurrentHashMap<>();       // data-port keys
+
+    private final ExecutorService relays = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "FileRelay");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+    });
+
+    private volatile ServerSocketChannel channel;
+    private volatile int boundPort;
+    private ScheduledFuture<?> watchdog;
+
+    public FileTransferRelay(ChatServer server, ServerConfig config) {
+        this.server = server;
+        this.enabled = config.getBoolean("file.enabled", true);
+        this.maxBytes = config.getLong("file.maxBytes", 1L << 30);
+        this.bytesPerSecond = config.getLong("file.bytesPerSecond", 10L << 20);
+        this.maxActive = config.getInt("file.maxActive", 8);
+        this.offerTimeoutMs = config.getLong("file.offerTimeoutSeconds", 120) * 1000;
+        this.stallTimeoutMs = config.getLong("file.stallTimeoutSeconds", 30) * 1000;
+    }
+
+    public boolean isAvailable() {
+        return channel != null;
+    }
+
+    // Open the data port. File transfer stays off if that fails.
+    public synchronized void start(int port) {
+        if (!enabled || channel != null) return;
+        try {
+            ServerSocketChannel ch = ServerSocketChannel.open();
+            ch.bind(new InetSocketAddress(port));
+            boundPort = ((InetSocketAddress) ch.getLocalAddress()).getPort();
+            channel = ch;
+        } catch (IOException e) {
+            System.out.println("[SERVER] File transfer disabled, cannot open port " + port + ": " + e.getMessage());
+            return;
+        }
+        Thread t = new Thread(this::acceptLoop, "FileAcceptThread");
+        t.setDaemon(true);
+        t.start();
+        watchdog = server.getScheduler().scheduleWithFixedDelay(this::expire, 5, 5, TimeUnit.SECONDS);
+        System.out.println("[SERVER] File transfer port " + boundPort);
+    }
+
+    public synchronized void stop() {
+        ServerSocketChannel ch = channel;
+        channel = null;
+        if (ch == null) return;
+        try {
+            ch.close();
+        } catch (IOException ignored) {}
+        if (watchdog != null) {
+            watchdog.cancel(false);
+        }
+        for (Transfer t : transfers.values()) {
+            fail(t, "server stopping");
+        }
+    }
+
+    // ---- Negotiation (called from ClientHandler) ----
+
+    public void offer(ClientHandler from, String to, long size, String name) {
+        String sender = from.getUsername();
+        String refusal = null;
+        if (channel == null) {
+            refusal = "file transfer is not available";
+        } else if (to.equals(sender)) {
+            refusal = "cannot send a file to yourself";
+        } else if (server.getClient(to) == null) {
+            refusal = "user not found or not online: " + to;
+        } else if (size <= 0 || size > maxBytes) {
+            refusal = "size must be between 1 and " + maxBytes + " bytes";
+        } else if (!validName(name)) {
+            refusal = "invalid file name";
+        } else if (transfers.size() >= maxActive) {
+            refusal = "too many transfers in progress, try again later";
+        }
+        if (refusal != null) {
+            from.sendMessage("[FILE] REFUSED " + refusal);
+            return;
+        }
+
+        Transfer t = new Transfer(newToken(4), sender, to, size, name);
+        transfers.put(t.id, t);
+        server.getLogger().logFileTransfer(sender, "OFFER", t.id + ":" + to + ":" + size + ":" + name);
+        from.sendMessage("[FILE] OFFERED " + t.id + " " + to + " " + size + " " + name);
+        ClientHandler target = server.getClient(to);
+        if (target == null) {
+            fail(t, "recipient went offline");
+            return;
+        }
+        target.sendMessage("[FILE] OFFER " + t.id + " " + sender + " " + size + " " + name);
+        target.sendMessage("[SYSTEM] Type /accept " + t.id + " or /decline " + t.id + ".");
+    }
+
+    public void accept(ClientHandler by, String id) {
+        Transfer t = transfers.get(id);
+        if (t == null || !t.to.equals(by.getUsername())) {
+            by.sendMessage("[SYSTEM] No pending file offer " + id + ".");
+            return;
+        }
+        synchronized (t) {
+            if (t.accepted) {
+                by.sendMessage("[SYSTEM] File offer " + id + " is already accepted.");
+                return;
+            }
+            t.accepted = true;
+            t.lastProgress = System.currentTimeMillis();
+        }
+        ClientHandler sender = server.getClient(t.from);
+        if (sender == null) {
+            fail(t, "sender went offline");
+            return;
+        }
+        byKey.put(t.upKey, t);
+        byKey.put(t.downKey, t);
+        server.getLogger().logFileTransfer(t.to, "ACCEPT", t.id);
+        sender.sendMessage("[FILE] UPLOAD " + t.id + " " + boundPort + " " + t.upKey);
+        by.sendMessage("[FILE] DOWNLOAD " + t.id + " " + boundPort + " " + t.downKey + " " + t.size + " " + t.name);
+    }
+
+    public void decline(ClientHandler by, String id) {
+        Transfer t = transfers.get(id);
+        if (t == null || !t.to.equals(by.getUsername()) || t.accepted) {
+            by.sendMessage("[SYSTEM] No pending file offer " + id + ".");
+            return;
+        }
+        remove(t);
+        server.getLogger().logFileTransfer(t.to, "DECLINE", t.id);
+        by.sendMessage("[SYSTEM] Declined file offer " + id + ".");
+        tell(t.from, "[FILE] DECLINED " + t.id + " " + t.to);
+    }
+
+    // A participant logged out (or was kicked or renamed): fail their offers
+    // and transfers now instead of waiting for the offer or stall timeout.
+    public void userLeft(String username) {
+        for (Transfer t : transfers.values()) {
+            if (t.from.equals(username) || t.to.equals(username)) {
+                fail(t, username + " went offline");
+            }
+        }
+    }
+
+    // ---- Data port ----
+
+    private void acceptLoop() {
+        ServerSocketChannel ch = channel;
+        while (ch != null && ch.isOpen()) {
+            try {
+                SocketChannel peer = ch.accept();
+                relays.execute(() -> attach(peer));
+            } catch (IOException e) {
+                if (channel != null) {
+                    System.out.println("[SERVER] Error accepting file connection: " + e.getMessage());
+                }
+                return;
+            } catch (RejectedExecutionException e) {
+                return;
+            }
+        }
+    }
+
+    // Read the key line, then wait for the other side or start relaying.
+    private void attach(SocketChannel peer) {
+        Transfer t;
+        boolean upload;
+        try {
+            peer.socket().setSoTimeout(10_000);
+            String key = readKey(peer.socket().getInputStream());
+            t = key == null ? null : byKey.remove(key);
+            if (t == null) {
+                peer.close();
+                return;
+            }
+            upload = key.equals(t.upKey);
+            peer.socket().setSoTimeout(0);
+        } catch (IOException e) {
+            closeQuietly(peer);
+            return;
+        }
+
+        boolean ready;
+        synchronized (t) {
+            if (t.finished) {
+                closeQuietly(peer);
+                return;
+            }
+            if (upload) t.up = peer;
+            else t.down = peer;
+            ready = t.up != null && t.down != null;
+        }
+        if (ready) {
+            relay(t);
+        }
+    }
+
+    // One line of hex, read byte by byte so nothing past it is consumed.
+    private static String readKey(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder(KEY_BYTES * 2);
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (sb.length() > KEY_BYTES * 2) return null;
+            if (b != '\r') sb.append((char) b);
+        }
+        return b == '\n' ? sb.toString() : null;
+    }
+
+    private void relay(Transfer t) {
+        long start = System.currentTimeMillis();
+        long copied = 0;
+        TokenBucket cap = bytesPerSecond > 0
+                ? new TokenBucket(Math.max(CHUNK, bytesPerSecond / 10.0), bytesPerSecond) : null;
+        ByteBuffer buf = ByteBuffer.allocateDirect(CHUNK);
+        try {
+            while (copied < t.size) {
+                buf.clear();
+                if (t.size - copied < CHUNK) {
+                    buf.limit((int) (t.size - copied));
+                }
+                int n = t.up.read(buf);
+                if (n < 0) {
+                    throw new IOException("sender closed the connection after " + copied + " bytes");
+                }
+                if (cap != null) {
+                    long wait;
+                    while ((wait = cap.tryConsume(n)) > 0) {
+                        Thread.sleep(Math.min(wait, 1000));
+                    }
+                }
+                buf.flip();
+                while (buf.hasRemaining()) {
+                    t.down.write(buf);
+                }
+                copied += n;
+                t.lastProgress = System.currentTimeMillis();
+            }
+        } catch (IOException | InterruptedException e) {
+            fail(t, t.finished ? "cancelled" : e.getMessage());
+            return;
+        }
+
+        long ms = System.currentTimeMillis() - start;
+        synchronized (t) {
+            if (t.finished) return;
+            t.finished = true;
+        }
+        remove(t);
+        closeQuietly(t.up);
+        closeQuietly(t.down);
+        server.getLogger().logFileTransfer(t.from, "DONE", t.id + ":" + copied + ":" + ms);
+        String done = "[FILE] DONE " + t.id + " " + copied + " " + ms;
+        tell(t.from, done);
+        tell(t.to, done);
+    }
+
+    // Drop offers nobody answered and transfers that stopped moving.
+    private void expire() {
+        long now = System.currentTimeMillis();
+        for (Transfer t : transfers.values()) {
+            if (!t.accepted && now - t.created > offerTimeoutMs) {
+                fail(t, "offer expired");
+            } else if (t.accepted && now - t.lastProgress > stallTimeoutMs) {
+                fail(t, "no data for " + stallTimeoutMs / 1000 + "s");
+            }
+        }
+    }
+
+    private void fail(Transfer t, String reason) {
+        synchronized (t) {
+            if (t.finished) return;
+            t.finished = true;
+        }
+        remove(t);
+        closeQuietly(t.up);
+        closeQuietly(t.down);
+        server.getLogger().logFileTransfer(t.from, "FAIL", t.id + ":" + reason);
+        String msg = "[FILE] FAILED " + t.id + " " + reason;
+        tell(t.from, msg);
+        tell(t.to, msg);
+    }
+
+    private void remove(Transfer t) {
+        transfers.remove(t.id, t);
+        byKey.remove(t.upKey, t);
+        byKey.remove(t.downKey, t);
+    }
+
+    private void tell(String username, String msg) {
+        ClientHandler ch = server.getClient(username);
+        if (ch != null) {
+            ch.sendMessage(msg);
+        }
+    }
+
+    private String newToken(int bytes) {
+        byte[] b = new byte[bytes];
+        random.nextBytes(b);
+        StringBuilder sb = new StringBuilder(bytes * 2);
+        for (byte x : b) {
+            sb.append(Character.forDigit((x >> 4) & 0xf, 16)).append(Character.forDigit(x & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    // A bare file name: the recipient decides where it goes.
+    private static boolean validName(String name) {
+        if (name.isEmpty() || name.length() > 255 || name.equals(".") || name.equals("..")) return false;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c < 32 || c == '/' || c == '\\') return false;
+        }
+        return true;
+    }
+
+    private static void closeQuietly(SocketChannel ch) {
+        if (ch == null) return;
+        try {
+            ch.close();
+        } catch (IOException ignored) {}
+    }
+
+    private final class Transfer {
+        final String id;
+        final String from;
+        final String to;
+        final long size;
+        final String name;
+        final String upKey = newToken(KEY_BYTES);
+        final String downKey = newToken(KEY_BYTES);
+        final long created = System.currentTimeMillis();
+
+        // Guarded by "this" (lastProgress is only a hint for the watchdog).
+        boolean accepted;
+        boolean finished;
+        SocketChannel up;
+        SocketChannel down;
+        volatile long lastProgress;
+
+        Transfer(String id, String from, String to, long size, String name) {
+            this.id = id;
+            this.from = from;
+            this.to = to;
+            this.size = size;
+            this.name = name;
+        }
+    }
+}
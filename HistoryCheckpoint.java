@@ -0,0 +1,250 @@
+// HistoryCheckpoint.java
+// Saves the server's in-memory history so a restart does not start with an
+// empty "Last 1000 Messages" replay.
+//
+// logs/state.checkpoint holds the history lines (with who may see them), the
+// history sequence number and the size of the live chat log when it was written. It is replaced
+// atomically (write to .tmp, then move). ChatServer writes it on stop() and
+// every checkpoint.intervalSeconds while history keeps changing.
+//
+// On start the checkpoint is used if the chat log has not grown since it was
+// written. Otherwise, e.g. after a crash, the last records are read from the end
+// of chat_history.csv, scanning backwards, so start-up cost does not depend on
+// how big the log is.
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+
+public class HistoryCheckpoint {
+
+    private static final int MAGIC = 0x43484b50;   // "CHKP"
+    private static final int VERSION = 3;            // 2: entries carry their audience, 3: and expiry
+    private static final int TAIL_BLOCK = 64 * 1024;
+
+    private final Path file;
+    private final Path tmp;
+
+    // What a checkpoint (or log tail) gave back.
+    public static final class State {
+        public final List<HistoryEntry> history;
+        public final long sequence;
+
+        State(List<HistoryEntry> history, long sequence) {
+            this.history = history;
+            this.sequence = sequence;
+        }
+    }
+
+    public HistoryCheckpoint(Path logsDir) {
+        this.file = logsDir.resolve("state.checkpoint");
+        this.tmp = logsDir.resolve("state.checkpoint.tmp");
+    }
+
+    // Write history (oldest first) and the chat log size it corresponds to.
+    public void save(Collection<HistoryEntry> history, long sequence, long chatLogSize) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(System.currentTimeMillis());
+            out.writeLong(sequence);
+            out.writeLong(chatLogSize);
+            out.writeInt(history.size());
+            for (HistoryEntry e : history) {
+                writeString(out, e.text);
+                String[] audience = e.audience();
+                out.writeByte(audience.length);
+                for (String u : audience) {
+                    writeString(out, u);
+                }
+                out.writeLong(e.expiresAt);
+            }
+        }
+        try {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    // Checkpointed state if it is at least as new as chatLog, otherwise the last
+    // `limit` records of chatLog (CSV only). Returns null if there is nothing to restore.
+    public State restore(Path chatLog, int limit) {
+        try {
+            State s = load(chatLog);
+            if (s != null) {
+                System.out.println("[SERVER] History restored from checkpoint (" + s.history.size() + " messages).");
+                return s;
+            }
+        } catch (IOException e) {
+            System.out.println("[SERVER] Ignoring unreadable checkpoint: " + e.getMessage());
+        }
+
+        if (!chatLog.toString().endsWith(".csv") || !Files.exists(chatLog)) {
+            return null;
+        }
+        try {
+            List<HistoryEntry> tail = tailCsv(chatLog, limit);
+            System.out.println("[SERVER] History restored from the end of " + chatLog.getFileName()
+                    + " (" + tail.size() + " messages).");
+            return new State(tail, tail.size());
+        } catch (IOException e) {
+            System.out.println("[SERVER] Could not read history from " + chatLog + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private State load(Path chatLog) throws IOException {
+        if (!Files.exists(file)) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("not a checkpoint file");
+            }
+            int version = in.readInt();
+            if (version < 1 || version > VERSION) {
+                throw new IOException("unknown checkpoint version " + version);
+            }
+            in.readLong();  // saved at
+            long sequence = in.readLong();
+            long logSize = in.readLong();
+            if (sizeOf(chatLog) != logSize) {
+                return null;  // the log moved on (or rolled) after this checkpoint
+            }
+            int n = in.readInt();
+            List<HistoryEntry> history = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                String text = readString(in);
+                int audience = version >= 2 ? in.readUnsignedByte() : 0;
+                HistoryEntry e;
+                if (audience == 0) {
+                    e = HistoryEntry.everyone(text);
+                } else {
+                    String[] users = new String[audience];
+                    for (int k = 0; k < audience; k++) {
+                        users[k] = readString(in);
+                    }
+                    e = HistoryEntry.only(text, users);
+                }
+                long expiresAt = version >= 3 ? in.readLong() : 0;
+                if (expiresAt != 0) {
+                    if (expiresAt <= System.currentTimeMillis()) continue;  // ran out while the server was down
+                    e = e.withExpiry(expiresAt);
+                }
+                history.add(e);
+            }
+            return new State(history, sequence);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] b = new byte[in.readInt()];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    // Last `limit` data lines of a CSV chat log, oldest first. Reads backwards in
+    // blocks until enough line breaks are found, then parses forward from there.
+    static List<HistoryEntry> tailCsv(Path csv, int limit) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(csv.toFile(), "r")) {
+            long end = raf.length();
+            long pos = end;
+            int newlines = 0;
+            long start = 0;
+            byte[] block = new byte[TAIL_BLOCK];
+
+            // The file ends with a line break, so limit + 1 of them bound `limit` lines.
+            scan:
+            while (pos > 0) {
+                int len = (int) Math.min(TAIL_BLOCK, pos);
+                pos -= len;
+                raf.seek(pos);
+                raf.readFully(block, 0, len);
+                for (int i = len - 1; i >= 0; i--) {
+                    if (block[i] == '\n' && ++newlines > limit) {
+                        start = pos + i + 1;
+                        break scan;
+                    }
+                }
+            }
+
+            byte[] bytes = new byte[(int) (end - start)];
+            raf.seek(start);
+            raf.readFully(bytes);
+            Deque<HistoryEntry> lines = new ArrayDeque<>();
+            BufferedReader r = new BufferedReader(new InputStreamReader(
+                    new ByteArrayInputStream(bytes), StandardCharsets.UTF_8));
+            String line;
+            while ((line = r.readLine()) != null) {
+                HistoryEntry msg = parseRow(line);
+                if (msg != null) {
+                    lines.addLast(msg);
+                    if (lines.size() > limit) lines.removeFirst();
+                }
+            }
+            return new ArrayList<>(lines);
+        }
+    }
+
+    // timestamp,from_user,to_user,message_type,"message" -> message (unescaped),
+    // visible to the PM's participants or the AI answer's requester only.
+    // Returns null for the header, a malformed line or an /expire message (the
+    // log does not keep its expiry, and it must not come back as permanent history).
+    private static HistoryEntry parseRow(String line) {
+        int[] commas = new int[4];
+        int comma = -1;
+        for (int i = 0; i < 4; i++) {
+            comma = line.indexOf(',', comma + 1);
+            if (comma < 0) return null;
+            commas[i] = comma;
+        }
+        if (line.length() < comma + 3 || line.charAt(comma + 1) != '"' || !line.endsWith("\"")) {
+            return null;
+        }
+        String escaped = line.substring(comma + 2, line.length() - 1);
+        StringBuilder sb = new StringBuilder(escaped.length());
+        for (int i = 0; i < escaped.length(); i++) {
+            char c = escaped.charAt(i);
+            if (c == '\\' && i + 1 < escaped.length() && (escaped.charAt(i + 1) == 'n' || escaped.charAt(i + 1) == 'r')) {
+                sb.append(escaped.charAt(++i) == 'n' ? '\n' : '\r');
+            } else if (c == '\'' && i + 1 < escaped.length() && escaped.charAt(i + 1) == '\'') {
+                sb.append('"');  // escapeForCsv wrote " as ''
+                i++;
+            } else {
+                sb.append(c);
+            }
+        }
+        String from = line.substring(commas[0] + 1, commas[1]);
+        String to = line.substring(commas[1] + 1, commas[2]);
+        String type = line.substring(commas[2] + 1, commas[3]);
+        if (type.equals(BinaryLogWriter.EXPIRING)) {
+            return null;
+        }
+        if (type.equals("PRIVATE")) {
+            return HistoryEntry.only(sb.toString(), from, to);
+        }
+        if (type.equals("AI")) {
+            return HistoryEntry.only(sb.toString(), to);
+        }
+        return HistoryEntry.everyone(sb.toString());
+    }
+
+    // Size of a log file, or -1 if it does not exist.
+    public static long sizeOf(Path p) {
+        try {
+            return Files.exists(p) ? Files.size(p) : -1;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+}
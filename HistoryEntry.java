@@ -0,0 +1,100 @@
+// HistoryEntry.java
+// One line of the in-memory history and who may see it on replay.
+// Broadcasts and system notices are public; a PM is only replayed to its two
+// participants and an AI answer only to the user who asked.
+// Self-destructing messages (/expire) also carry the time they stop being replayed,
+// and the timer that marks them, so it can be cancelled when the entry leaves
+// the buffer first.
+
+public final class HistoryEntry {
+
+    public final String text;
+    private final String[] visibleTo;   // null = everyone
+    public final long expiresAt;        // epoch ms, 0 = never
+    private volatile boolean expired;
+    private volatile TimingWheel.Timeout expiryTimer;
+    long seq = -1;                      // sequencer position (history stage), -1 = restored
+
+    private HistoryEntry(String text, String[] visibleTo, long expiresAt) {
+        this.text = text;
+        this.visibleTo = visibleTo;
+        this.expiresAt = expiresAt;
+    }
+
+    public static HistoryEntry everyone(String text) {
+        return new HistoryEntry(text, null, 0);
+    }
+
+    public static HistoryEntry only(String text, String... users) {
+        return new HistoryEntry(text, users.clone(), 0);
+    }
+
+    // A public line that disappears from history at expiresAt.
+    public static HistoryEntry expiring(String text, long expiresAt) {
+        return new HistoryEntry(text, null, expiresAt);
+    }
+
+    // Same audience, new expiry (0 = never), e.g. when read back from a checkpoint.
+    public HistoryEntry withExpiry(long expiresAt) {
+        return new HistoryEntry(text, visibleTo, expiresAt);
+    }
+
+    // This entry with oldName replaced by newName in its audience, or this
+    // entry itself if oldName is not in it (public entries included).
+    public HistoryEntry renamed(String oldName, String newName) {
+        if (visibleTo == null) return this;
+        String[] users = null;
+        for (int i = 0; i < visibleTo.length; i++) {
+            if (visibleTo[i].equals(oldName)) {
+                if (users == null) users = visibleTo.clone();
+                users[i] = newName;
+            }
+        }
+        if (users == null) return this;
+        HistoryEntry e = new HistoryEntry(text, users, expiresAt);
+        e.seq = seq;
+        return e;
+    }
+
+    public boolean isPublic() {
+        return visibleTo == null;
+    }
+
+    // Users allowed to see a private entry (empty for public ones).
+    public String[] audience() {
+        return visibleTo == null ? new String[0] : visibleTo.clone();
+    }
+
+    // Called by the expiry timer. The entry stays in the buffer (removing it
+    // would mean a scan) but is no longer replayed or checkpointed.
+    public void expire() {
+        expired = true;
+    }
+
+    public void setExpiryTimer(TimingWheel.Timeout timer) {
+        this.expiryTimer = timer;
+    }
+
+    // The entry dropped out of the history buffer: its timer has nothing left
+    // to do and must not keep counting against timers.maxPending.
+    public void evicted() {
+        TimingWheel.Timeout t = expiryTimer;
+        if (t != null) {
+            t.cancel();
+            expiryTimer = null;
+        }
+    }
+
+    public boolean isExpired() {
+        return expired;
+    }
+
+    public boolean isVisibleTo(String username) {
+        if (isExpired()) return false;
+        if (visibleTo == null) return true;
+        for (String u : visibleTo) {
+            if (u.equals(username)) return true;
+        }
+        return false;
+    }
+}
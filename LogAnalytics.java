@@ -0,0 +1,355 @@
+// LogAnalytics.java
+// Offline analytics over the server logs. Reads the legacy CSV logs and the binary
+// logs (log.format=binary|both), including rolled and gzip-compressed segments.
+//
+// Usage:
+//   java LogAnalytics [logsDir] [--threads N] [--top N] [--format auto|csv|binary]
+//
+// Reports per-user message counts, peak concurrent logged-in users (from the
+// connections log) and login failure rates.
+//
+// Each file is streamed by one worker from a fixed pool, so memory is bounded by
+// the number of distinct users rather than by log size. Partial results are merged
+// at the end; peak concurrency is stitched together in file order (see Concurrency).
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.GZIPInputStream;
+
+public class LogAnalytics {
+
+    public static void main(String[] args) throws Exception {
+        Path dir = Paths.get("logs");
+        int threads = Runtime.getRuntime().availableProcessors();
+        int top = 20;
+        String format = "auto";
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--threads": threads = Integer.parseInt(args[++i]); break;
+                case "--top":     top = Integer.parseInt(args[++i]); break;
+                case "--format":  format = args[++i].toLowerCase(); break;
+                default:          dir = Paths.get(args[i]); break;
+            }
+        }
+
+        List<LogFile> chatFiles = discover(dir, "chat_history", format);
+        List<LogFile> connFiles = discover(dir, "connections", format);
+        if (chatFiles.isEmpty() && connFiles.isEmpty()) {
+            System.out.println("[Analytics] No log files found in " + dir.toAbsolutePath());
+            return;
+        }
+
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        List<Future<Stats>> chatParts = new ArrayList<>();
+        List<Future<Stats>> connParts = new ArrayList<>();
+        for (LogFile f : chatFiles) chatParts.add(pool.submit(() -> scan(f)));
+        for (LogFile f : connFiles) connParts.add(pool.submit(() -> scan(f)));
+
+        Stats total = new Stats();
+        for (Future<Stats> f : chatParts) total.merge(f.get());
+
+        // Connection files are merged in chronological order for the concurrency curve.
+        Concurrency peak = new Concurrency();
+        for (Future<Stats> f : connParts) {
+            Stats s = f.get();
+            total.merge(s);
+            peak.append(s.concurrency);
+        }
+        pool.shutdown();
+        long millis = (System.nanoTime() - start) / 1_000_000;
+
+        print(total, peak, chatFiles.size() + connFiles.size(), millis, top);
+    }
+
+    // ---------- File discovery ----------
+
+    static final class LogFile {
+        Path path;
+        boolean chat;          // chat_history vs connections
+        boolean binary;
+        boolean gzip;
+        String sortKey;
+        String before;         // CSV: only records with an earlier timestamp (null = all)
+    }
+
+    // Live file plus rolled segments of one log, oldest first (also used by TrafficReplay).
+    static List<LogFile> discover(Path dir, String base, String format) throws IOException {
+        List<LogFile> csv = new ArrayList<>();
+        List<LogFile> bin = new ArrayList<>();
+        if (!Files.isDirectory(dir)) return csv;
+
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, base + ".*")) {
+            for (Path p : ds) {
+                String name = p.getFileName().toString();
+                LogFile f = new LogFile();
+                f.path = p;
+                f.chat = base.equals("chat_history");
+                f.gzip = name.endsWith(".gz");
+                String core = f.gzip ? name.substring(0, name.length() - 3) : name;
+                if (core.endsWith(".csv")) {
+                    f.binary = false;
+                } else if (core.endsWith(".bin")) {
+                    f.binary = true;
+                } else {
+                    continue;
+                }
+                // <base>.<ext> is the live file (newest); <base>.<day>.<n>.<ext> are rolled.
+                String[] parts = core.substring(base.length()).split("\\.");
+                if (parts.length == 2) {
+                    f.sortKey = "~";
+                } else if (parts.length == 4) {
+                    f.sortKey = parts[1] + String.format("%08d", Integer.parseInt(parts[2]));
+                } else {
+                    continue;
+                }
+                (f.binary ? bin : csv).add(f);
+            }
+        }
+
+        csv.sort(Comparator.comparing(f -> f.sortKey));
+        bin.sort(Comparator.comparing(f -> f.sortKey));
+        if (format.equals("csv")) return csv;
+        if (format.equals("binary")) return bin;
+
+        // Auto: the binary copy wins from its first record on. CSV and binary
+        // segments roll independently (and a csv live file stays behind after
+        // a switch to log.format=binary), so segments cannot be paired by name.
+        // Instead the CSV files contribute what was logged before the binary log
+        // started: all of a legacy segment, the older part of one written with
+        // log.format=both, nothing of a newer one.
+        long binaryStart = firstTimestamp(bin);
+        if (binaryStart >= 0) {
+            String before = ServerUtils.formatTimestamp(binaryStart);
+            for (LogFile f : csv) {
+                f.before = before;
+            }
+        }
+        List<LogFile> chosen = new ArrayList<>(csv);
+        chosen.addAll(bin);
+        return chosen;
+    }
+
+    // Timestamp of the first record in the oldest non-empty file, -1 if none.
+    private static long firstTimestamp(List<LogFile> files) throws IOException {
+        for (LogFile f : files) {
+            InputStream raw = Files.newInputStream(f.path);
+            if (f.gzip) raw = new GZIPInputStream(raw);
+            try (InputStream in = raw) {
+                BinaryLogReader r = new BinaryLogReader(in);
+                if (r.next()) return r.timestamp;
+            } catch (IOException e) {
+                System.out.println("[Analytics] Error reading " + f.path.getFileName() + ": " + e.getMessage());
+            }
+        }
+        return -1;
+    }
+
+    // CSV timestamps sort as text, and a file is written in time order, so
+    // everything from the first line at or after "before" on can be skipped.
+    static boolean pastCutoff(LogFile f, String line, int firstComma) {
+        return f.before != null && line.substring(0, firstComma).compareTo(f.before) >= 0;
+    }
+
+    // ---------- Scanning ----------
+
+    private static Stats scan(LogFile f) throws IOException {
+        Stats stats = new Stats();
+        InputStream raw = Files.newInputStream(f.path);
+        if (f.gzip) raw = new GZIPInputStream(raw, 64 * 1024);
+
+        try (InputStream in = raw) {
+            if (f.binary) {
+                BinaryLogReader r = new BinaryLogReader(in);
+                while (r.next()) {
+                    if (r.recordType == BinaryLogWriter.REC_CHAT) {
+                        stats.chat(r.fromUser, r.messageType);
+                    } else {
+                        stats.connection(ServerUtils.formatTimestamp(r.timestamp), r.username, r.event);
+                    }
+                }
+            } else {
+                BufferedReader br = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 64 * 1024);
+                String line;
+                int[] commas = new int[4];
+                while ((line = br.readLine()) != null) {
+                    if (line.startsWith("timestamp,")) continue;  // header
+                    if (!findCommas(line, commas)) continue;
+                    if (pastCutoff(f, line, commas[0])) break;
+                    if (f.chat) {
+                        // chat: ts,from,to,type,"message"
+                        stats.chat(line.substring(commas[0] + 1, commas[1]), line.substring(commas[2] + 1, commas[3]));
+                    } else {
+                        // connections: ts,user,ip,port,event
+                        stats.connection(line.substring(0, commas[0]), line.substring(commas[0] + 1, commas[1]),
+                                line.substring(commas[3] + 1));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("[Analytics] Error reading " + f.path.getFileName() + ": " + e.getMessage());
+        }
+        return stats;
+    }
+
+    // Positions of the first four commas; false if the line has fewer (also used by TrafficReplay).
+    static boolean findCommas(String line, int[] commas) {
+        int from = 0;
+        for (int i = 0; i < commas.length; i++) {
+            int c = line.indexOf(',', from);
+            if (c < 0) return false;
+            commas[i] = c;
+            from = c + 1;
+        }
+        return commas[3] + 1 < line.length();
+    }
+
+    // ---------- Results ----------
+
+    private static final class Stats {
+        final Map<String, long[]> messagesByUser = new HashMap<>();   // [broadcast, private, other]
+        final Map<String, Long> messagesByType = new TreeMap<>();
+        final Map<String, long[]> loginsByUser = new HashMap<>();     // [ok, failed]
+        long loginOk;
+        long loginFail;
+        long resumes;
+        final Concurrency concurrency = new Concurrency();
+
+        void chat(String from, String type) {
+            messagesByType.merge(type, 1L, Long::sum);
+            long[] c = messagesByUser.computeIfAbsent(from, k -> new long[3]);
+            if (type.equals("BROADCAST") || type.equals("EXPIRING")) c[0]++;
+            else if (type.equals("PRIVATE")) c[1]++;
+            else c[2]++;
+        }
+
+        void connection(String ts, String user, String event) {
+            switch (event) {
+                case "LOGIN_SUCCESS":
+                case "SIGNUP_SUCCESS":
+                    loginOk++;
+                    loginsByUser.computeIfAbsent(user, k -> new long[2])[0]++;
+                    concurrency.event(ts, +1);
+                    break;
+                case "LOGIN_RESUME":
+                    // Reconnect with a session token: no password checked.
+                    resumes++;
+                    concurrency.event(ts, +1);
+                    break;
+                case "LOGIN_FAIL":
+                    loginFail++;
+                    loginsByUser.computeIfAbsent(user, k -> new long[2])[1]++;
+                    break;
+                case "DISCONNECT":
+                    concurrency.event(ts, -1);
+                    break;
+                case "SERVER_SHUTDOWN":
+                    concurrency.reset();
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        void merge(Stats o) {
+            o.messagesByUser.forEach((u, c) -> {
+                long[] mine = messagesByUser.computeIfAbsent(u, k -> new long[3]);
+                for (int i = 0; i < mine.length; i++) mine[i] += c[i];
+            });
+            o.messagesByType.forEach((t, n) -> messagesByType.merge(t, n, Long::sum));
+            o.loginsByUser.forEach((u, c) -> {
+                long[] mine = loginsByUser.computeIfAbsent(u, k -> new long[2]);
+                mine[0] += c[0];
+                mine[1] += c[1];
+            });
+            loginOk += o.loginOk;
+            loginFail += o.loginFail;
+            resumes += o.resumes;
+        }
+    }
+
+    // Running count of logged-in users. A file on its own only knows counts
+    // relative to its start (until it sees SERVER_SHUTDOWN, which resets to 0),
+    // so each file keeps a relative peak and an absolute post-reset peak, and
+    // append() chains files together in order.
+    private static final class Concurrency {
+        long current;                        // relative until sawReset, absolute after
+        boolean sawReset;
+        long relPeak = Long.MIN_VALUE;
+        String relPeakTs;
+        long absPeak = Long.MIN_VALUE;
+        String absPeakTs;
+
+        void event(String ts, int delta) {
+            current += delta;
+            if (!sawReset) {
+                if (current > relPeak) { relPeak = current; relPeakTs = ts; }
+            } else if (current > absPeak) {
+                absPeak = current; absPeakTs = ts;
+            }
+        }
+
+        void reset() {
+            sawReset = true;
+            current = 0;
+        }
+
+        // Treat this as the whole log so far and add the next file's events after it.
+        void append(Concurrency next) {
+            if (next.relPeak != Long.MIN_VALUE) {
+                long candidate = current + next.relPeak;
+                if (candidate > absPeak) { absPeak = candidate; absPeakTs = next.relPeakTs; }
+            }
+            if (next.sawReset) {
+                if (next.absPeak > absPeak) { absPeak = next.absPeak; absPeakTs = next.absPeakTs; }
+                current = next.current;
+            } else {
+                current += next.current;
+            }
+            // Logs that start mid-session can see more disconnects than logins.
+            current = Math.max(0, current);
+        }
+    }
+
+    private static void print(Stats s, Concurrency peak, int files, long millis, int top) {
+        System.out.println("=== Log analytics (" + files + " file(s), " + millis + " ms) ===");
+
+        long totalMsgs = 0;
+        for (long n : s.messagesByType.values()) totalMsgs += n;
+        System.out.println("Messages: " + totalMsgs);
+        s.messagesByType.forEach((t, n) -> System.out.println("  " + t + ": " + n));
+
+        System.out.println("Top " + top + " users by messages (broadcast / private):");
+        s.messagesByUser.entrySet().stream()
+                .filter(e -> e.getValue()[0] + e.getValue()[1] > 0)
+                .sorted((a, b) -> Long.compare(b.getValue()[0] + b.getValue()[1], a.getValue()[0] + a.getValue()[1]))
+                .limit(top)
+                .forEach(e -> System.out.println("  " + e.getKey() + ": " + (e.getValue()[0] + e.getValue()[1])
+                        + " (" + e.getValue()[0] + " / " + e.getValue()[1] + ")"));
+
+        if (peak.absPeak > 0) {
+            System.out.println("Peak concurrent users: " + peak.absPeak + " at " + peak.absPeakTs);
+        } else {
+            System.out.println("Peak concurrent users: 0");
+        }
+
+        long attempts = s.loginOk + s.loginFail;
+        double rate = attempts == 0 ? 0 : 100.0 * s.loginFail / attempts;
+        System.out.println(String.format("Logins: %d ok, %d failed (%.2f%% failure rate), %d resumed by token",
+                s.loginOk, s.loginFail, rate, s.resumes));
+        System.out.println("Top " + top + " users by failed logins:");
+        s.loginsByUser.entrySet().stream()
+                .filter(e -> e.getValue()[1] > 0)
+                .sorted((a, b) -> Long.compare(b.getValue()[1], a.getValue()[1]))
+                .limit(top)
+                .forEach(e -> {
+                    long[] c = e.getValue();
+                    System.out.println(String.format("  %s: %d failed / %d attempts (%.1f%%)",
+                            e.getKey(), c[1], c[0] + c[1], 100.0 * c[1] / (c[0] + c[1])));
+                });
+    }
+}
@@ -0,0 +1,259 @@
+// ModerationFilter.java
+// Banned words and links for broadcasts and private messages.
+//
+// Patterns come from moderation.txt (moderation.file), one per line:
+//   badword              uses moderation.defaultAction (mask)
+//   drop: spam.example   message is not delivered
+//   flag: some phrase    delivered, but online admins are told
+//   mask: other          replaced with '*'
+// Lines starting with '#' are comments. Matching ignores case and only counts
+// whole words: "ass" does not hit "class", but "evil.com" hits "http://evil.com/x".
+//
+// All patterns are compiled into one Aho-Corasick automaton (a full transition
+// table), so a message is checked in a single pass with one table lookup per
+// character, however long the list is. The file is re-read when its
+// modification time changes; the new automaton is built on the side and
+// swapped in, so checks never wait for a reload.
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+public class ModerationFilter {
+
+    public enum Action { MASK, FLAG, DROP }
+
+    // Outcome for a message that matched at least one pattern.
+    public static final class Verdict {
+        public final boolean drop;
+        public final boolean flag;
+        public final String text;            // message with MASK matches starred out
+        public final List<String> matched;   // patterns that hit, in order of appearance
+
+        Verdict(boolean drop, boolean flag, String text, List<String> matched) {
+            this.drop = drop;
+            this.flag = flag;
+            this.text = text;
+            this.matched = matched;
+        }
+    }
+
+    private final Path file;
+    private final Action defaultAction;
+    private volatile Automaton automaton = Automaton.EMPTY;
+    private long loadedMtime = Long.MIN_VALUE;   // only touched by reloadIfChanged()
+
+    public ModerationFilter(ServerConfig config) {
+        this.file = Paths.get(config.getString("moderation.file", "moderation.txt"));
+        this.defaultAction = parseAction(config.getString("moderation.defaultAction", "mask"), Action.MASK);
+    }
+
+    public int patternCount() {
+        return automaton.patterns.length;
+    }
+
+    // Re-read the pattern file if it appeared, changed or went away.
+    public synchronized void reloadIfChanged() {
+        long mtime;
+        try {
+            mtime = Files.exists(file) ? Files.getLastModifiedTime(file).toMillis() : -1;
+        } catch (IOException e) {
+            return;
+        }
+        if (mtime == loadedMtime) return;
+        loadedMtime = mtime;
+
+        if (mtime < 0) {
+            if (automaton.patterns.length > 0) {
+                System.out.println("[SERVER] " + file + " removed; moderation is off.");
+            }
+            automaton = Automaton.EMPTY;
+            return;
+        }
+        try {
+            List<String> patterns = new ArrayList<>();
+            List<Action> actions = new ArrayList<>();
+            for (String raw : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                String line = raw.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                Action action = defaultAction;
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    Action a = parseAction(line.substring(0, colon).trim(), null);
+                    if (a != null) {
+                        action = a;
+                        line = line.substring(colon + 1).trim();
+                    }
+                }
+                if (!line.isEmpty()) {
+                    patterns.add(line.toLowerCase(Locale.ROOT));
+                    actions.add(action);
+                }
+            }
+            long start = System.nanoTime();
+            automaton = new Automaton(patterns, actions);
+            System.out.println("[SERVER] Moderation: " + patterns.size() + " pattern(s) loaded from " + file
+                    + " (" + automaton.stateCount + " states, " + (System.nanoTime() - start) / 1_000_000 + " ms).");
+        } catch (IOException e) {
+            System.out.println("[SERVER] Could not read " + file + ": " + e.getMessage());
+        }
+    }
+
+    // null if the message is clean (the common case allocates nothing).
+    public Verdict check(String text) {
+        Automaton a = automaton;
+        if (a.patterns.length == 0) return null;
+
+        char[] masked = null;
+        List<String> matched = null;
+        boolean drop = false;
+        boolean flag = false;
+
+        int state = 0;
+        for (int i = 0; i < text.length(); i++) {
+            state = a.next(state, text.charAt(i));
+            int[] hits = a.output[state];
+            if (hits == null) continue;
+            for (int p : hits) {
+                int len = a.patterns[p].length();
+                int begin = i - len + 1;
+                if (!a.wholeWord(p, text, begin, i + 1)) continue;
+
+                if (matched == null) matched = new ArrayList<>(2);
+                if (!matched.contains(a.patterns[p])) matched.add(a.patterns[p]);
+                switch (a.actions[p]) {
+                    case DROP: drop = true; break;
+                    case FLAG: flag = true; break;
+                    default:
+                        if (masked == null) masked = text.toCharArray();
+                        for (int k = begin; k <= i; k++) {
+                            if (!Character.isWhitespace(masked[k])) masked[k] = '*';
+                        }
+                }
+            }
+        }
+        if (matched == null) return null;
+        return new Verdict(drop, flag, masked == null ? text : new String(masked), matched);
+    }
+
+    private static Action parseAction(String s, Action def) {
+        switch (s.toLowerCase(Locale.ROOT)) {
+            case "mask": return Action.MASK;
+            case "flag": return Action.FLAG;
+            case "drop": return Action.DROP;
+            default:     return def;
+        }
+    }
+
+    // Immutable compiled pattern set.
+    private static final class Automaton {
+        static final Automaton EMPTY = new Automaton(Collections.emptyList(), Collections.emptyList());
+
+        final String[] patterns;
+        final Action[] actions;
+        final int stateCount;
+        private final char[] classOf = new char[Character.MAX_VALUE + 1];   // lower-cased char -> column
+        private final int classes;
+        private final int[] delta;        // delta[state * classes + class]
+        final int[][] output;             // pattern ids ending in each state (null = none)
+
+        Automaton(List<String> patternList, List<Action> actionList) {
+            this.patterns = patternList.toArray(new String[0]);
+            this.actions = actionList.toArray(new Action[0]);
+
+            // Column 0 stands for every character that appears in no pattern.
+            int nextClass = 1;
+            for (String p : patterns) {
+                for (int i = 0; i < p.length(); i++) {
+                    char c = p.charAt(i);
+                    if (classOf[c] == 0) classOf[c] = (char) nextClass++;
+                }
+            }
+            this.classes = nextClass;
+
+            // Trie; -1 = no edge yet.
+            List<int[]> rows = new ArrayList<>();
+            List<List<Integer>> outs = new ArrayList<>();
+            rows.add(newRow());
+            outs.add(null);
+            for (int p = 0; p < patterns.length; p++) {
+                int s = 0;
+                for (int i = 0; i < patterns[p].length(); i++) {
+                    int c = classOf[patterns[p].charAt(i)];
+                    if (rows.get(s)[c] < 0) {
+                        rows.get(s)[c] = rows.size();
+                        rows.add(newRow());
+                        outs.add(null);
+                    }
+                    s = rows.get(s)[c];
+                }
+                if (outs.get(s) == null) outs.set(s, new ArrayList<>(1));
+                outs.get(s).add(p);
+            }
+
+            // Breadth-first: fill missing edges from the failure state and
+            // inherit its outputs, which turns the trie into a DFA.
+            this.stateCount = rows.size();
+            this.delta = new int[stateCount * classes];
+            this.output = new int[stateCount][];
+            int[] fail = new int[stateCount];
+            ArrayDeque<Integer> queue = new ArrayDeque<>();
+            for (int c = 0; c < classes; c++) {
+                int t = rows.get(0)[c];
+                if (t < 0) {
+                    delta[c] = 0;
+                } else {
+                    delta[c] = t;
+                    fail[t] = 0;
+                    queue.add(t);
+                }
+            }
+            while (!queue.isEmpty()) {
+                int s = queue.poll();
+                List<Integer> own = outs.get(s);
+                int[] inherited = output[fail[s]];
+                if (own != null || inherited != null) {
+                    int n = (own == null ? 0 : own.size()) + (inherited == null ? 0 : inherited.length);
+                    int[] o = new int[n];
+                    int k = 0;
+                    if (own != null) for (int p : own) o[k++] = p;
+                    if (inherited != null) for (int p : inherited) o[k++] = p;
+                    output[s] = o;
+                }
+                for (int c = 0; c < classes; c++) {
+                    int t = rows.get(s)[c];
+                    if (t < 0) {
+                        delta[s * classes + c] = delta[fail[s] * classes + c];
+                    } else {
+                        delta[s * classes + c] = t;
+                        fail[t] = delta[fail[s] * classes + c];
+                        queue.add(t);
+                    }
+                }
+            }
+        }
+
+        private int[] newRow() {
+            int[] r = new int[classes];
+            Arrays.fill(r, -1);
+            return r;
+        }
+
+        int next(int state, char c) {
+            return delta[state * classes + classOf[Character.toLowerCase(c)]];
+        }
+
+        // Pattern p found at text[begin, end): reject it if it is glued to
+        // letters or digits on a side where the pattern itself is alphanumeric.
+        boolean wholeWord(int p, String text, int begin, int end) {
+            String pat = patterns[p];
+            if (begin > 0 && Character.isLetterOrDigit(pat.charAt(0))
+                    && Character.isLetterOrDigit(text.charAt(begin - 1))) {
+                return false;
+            }
+            return end >= text.length() || !Character.isLetterOrDigit(pat.charAt(pat.length() - 1))
+                    || !Character.isLetterOrDigit(text.charAt(end));
+        }
+    }
+}
@@ -0,0 +1,337 @@
+// OfflineMailbox.java
+// Store-and-forward for private messages to users who are not online.
+//
+// Each user with mail has two files in logs/mailbox/ (mailbox.dir):
+//   <user>.mbox   append-only, one line per message:
+//                 <seq>,<epoch ms>,<length of sender name>,<sender><text>
+//   <user>.ack    highest sequence number the user has acknowledged
+// Sequence numbers are per user and never reused.
+//
+// A message is on disk before the sender is told it was queued. Mail is
+// delivered at login and dropped only when the client acknowledges it
+// (/mailack <seq>, sent automatically by ChatConnection). The .ack file is
+// replaced atomically before the .mbox is rewritten, so a crash can at worst
+// deliver unacknowledged mail again under the same numbers, which lets clients
+// skip what they already have. A line cut short by a crash is cut off on load.
+//
+// Memory per mailbox is bounded: counters plus the newest mailbox.memoryWindow
+// messages. A short mailbox is delivered from memory, a long one is read
+// back from its file. Mailboxes are loaded on first use and forgotten once empty.
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
+
+public class OfflineMailbox {
+
+    // offer() results other than a sequence number.
+    public static final long RECIPIENT_ONLINE = 0;
+    public static final long FULL = -1;
+
+    // One stored message.
+    public static final class Mail {
+        public final long seq;
+        public final long time;
+        public final String from;
+        public final String text;
+
+        Mail(long seq, long time, String from, String text) {
+            this.seq = seq;
+            this.time = time;
+            this.from = from;
+            this.text = text;
+        }
+    }
+
+    private final Path dir;
+    private final boolean enabled;
+    private final int maxMessages;
+    private final long maxBytes;
+    private final int memoryWindow;
+    private final boolean fsync;
+    private final Map<String, Box> boxes = new ConcurrentHashMap<>();
+
+    public OfflineMailbox(ServerConfig config) {
+        this.dir = Paths.get(config.getString("mailbox.dir", "logs/mailbox"));
+        this.enabled = config.getBoolean("mailbox.enabled", true);
+        this.maxMessages = Math.max(1, config.getInt("mailbox.maxMessages", 1000));
+        this.maxBytes = Math.max(1, config.getLong("mailbox.maxBytes", 1024 * 1024));
+        this.memoryWindow = Math.max(0, config.getInt("mailbox.memoryWindow", 16));
+        this.fsync = config.getBoolean("mailbox.fsync", true);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // Queue a message for "to". recipientOffline is checked under the mailbox
+    // lock, so a message cannot slip in between a login (or a rename) and its
+    // mailbox read.
+    // Returns the message's sequence number, RECIPIENT_ONLINE (send it live
+    // instead) or FULL (quota reached).
+    public long offer(String to, String from, String text, BooleanSupplier recipientOffline) throws IOException {
+        while (true) {
+            Box box = box(to);
+            synchronized (box) {
+                if (box.dead) continue;
+                if (!recipientOffline.getAsBoolean()) return RECIPIENT_ONLINE;
+                box.load();
+                long seq = box.lastSeq + 1;
+                long now = System.currentTimeMillis();
+                byte[] line = (seq + "," + now + "," + from.length() + "," + from + text + "\n")
+                        .getBytes(StandardCharsets.UTF_8);
+                if (box.count >= maxMessages || box.bytes + line.length > maxBytes) return FULL;
+
+                Files.createDirectories(dir);
+                try (FileChannel ch = FileChannel.open(box.file, StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                    ByteBuffer buf = ByteBuffer.wrap(line);
+                    while (buf.hasRemaining()) {
+                        ch.write(buf);
+                    }
+                    if (fsync) {
+                        ch.force(false);
+                    }
+                }
+                box.lastSeq = seq;
+                box.count++;
+                box.bytes += line.length;
+                box.remember(new Mail(seq, now, from, text));
+                return seq;
+            }
+        }
+    }
+
+    // Everything not acknowledged yet, oldest first.
+    public List<Mail> pending(String user) throws IOException {
+        if (!enabled) return new ArrayList<>();
+        while (true) {
+            Box box = box(user);
+            synchronized (box) {
+                if (box.dead) continue;
+                box.load();
+                List<Mail> res;
+                if (box.count <= box.recent.size()) {
+                    res = new ArrayList<>(box.recent);
+                } else {
+                    res = new ArrayList<>(box.count);
+                    box.scan(res);
+                }
+                if (box.count == 0) forget(box);
+                return res;
+            }
+        }
+    }
+
+    // The user has everything up to seq. Returns how many messages are left.
+    public int ack(String user, long seq) throws IOException {
+        while (true) {
+            Box box = box(user);
+            synchronized (box) {
+                if (box.dead) continue;
+                box.load();
+                seq = Math.min(seq, box.lastSeq);
+                if (seq > box.acked) {
+                    Files.createDirectories(dir);
+                    Path tmp = box.ackFile.resolveSibling(box.ackFile.getFileName() + ".tmp");
+                    Files.write(tmp, Long.toString(seq).getBytes(StandardCharsets.UTF_8));
+                    Files.move(tmp, box.ackFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    box.acked = seq;
+                    box.compact();
+                }
+                int left = box.count;
+                if (left == 0) forget(box);
+                return left;
+            }
+        }
+    }
+
+    // /rename: run rename (the account change) with both mailboxes locked and,
+    // if it succeeds, move oldName's files to newName, so no offline PM lands
+    // under either name in between. Files already under newName are left over
+    // from a former account of that name and are replaced. Returns rename's result.
+    public boolean rename(String oldName, String newName, BooleanSupplier rename) throws IOException {
+        while (true) {
+            Box from = box(oldName);
+            Box to = box(newName);
+            Object first = oldName.compareTo(newName) < 0 ? from : to;
+            Object second = first == from ? to : from;
+            synchronized (first) {
+                synchronized (second) {
+                    if (from.dead || to.dead) continue;
+                    if (!rename.getAsBoolean()) return false;
+                    // Both are reloaded from the moved files on next use.
+                    forget(from);
+                    forget(to);
+                    move(from.file, to.file);
+                    move(from.ackFile, to.ackFile);
+                    return true;
+                }
+            }
+        }
+    }
+
+    private static void move(Path from, Path to) throws IOException {
+        if (Files.exists(from)) {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } else {
+            Files.deleteIfExists(to);
+        }
+    }
+
+    // Mailboxes in memory only, e.g. "Mailboxes: 42 message(s) waiting for 3 user(s)"
+    public String describe() {
+        int users = 0;
+        long messages = 0;
+        for (Box b : boxes.values()) {
+            synchronized (b) {
+                if (b.loaded && b.count > 0) {
+                    users++;
+                    messages += b.count;
+                }
+            }
+        }
+        return "Mailboxes: " + messages + " message(s) waiting for " + users + " user(s)";
+    }
+
+    private Box box(String user) {
+        return boxes.computeIfAbsent(user, Box::new);
+    }
+
+    // Drop an empty mailbox from memory (the .ack file keeps the numbering).
+    // Caller holds the box lock; anyone still holding it sees "dead" and retries.
+    private void forget(Box box) {
+        box.dead = true;
+        boxes.remove(box.user, box);
+    }
+
+    private final class Box {
+        final String user;
+        final Path file;
+        final Path ackFile;
+        boolean loaded;
+        boolean dead;
+        long acked;          // highest acknowledged seq
+        long lastSeq;        // highest seq handed out
+        int count;           // messages after acked
+        long bytes;          // their size in the file
+        final ArrayDeque<Mail> recent = new ArrayDeque<>();   // newest, at most memoryWindow
+
+        Box(String user) {
+            this.user = user;
+            String name = ServerUtils.safeFileName(user);
+            this.file = dir.resolve(name + ".mbox");
+            this.ackFile = dir.resolve(name + ".ack");
+        }
+
+        void remember(Mail m) {
+            if (memoryWindow == 0) return;
+            if (recent.size() >= memoryWindow) recent.removeFirst();
+            recent.addLast(m);
+        }
+
+        void load() throws IOException {
+            if (loaded) return;
+            if (Files.exists(ackFile)) {
+                try {
+                    acked = Long.parseLong(new String(Files.readAllBytes(ackFile), StandardCharsets.UTF_8).trim());
+                } catch (NumberFormatException e) {
+                    System.out.println("[SERVER] Ignoring damaged " + ackFile + ".");
+                }
+            }
+            lastSeq = acked;
+            count = 0;
+            bytes = 0;
+            recent.clear();
+            long validEnd = scan(null);
+            if (Files.exists(file) && Files.size(file) > validEnd) {
+                // Torn last line from a crash: the sender was never told it was queued.
+                try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                    ch.truncate(validEnd);
+                }
+            }
+            loaded = true;
+        }
+
+        // Read the file. Without "into" (while loading) count the unacknowledged
+        // messages; with it, collect them. Returns the end of the last whole line.
+        long scan(List<Mail> into) throws IOException {
+            if (!Files.exists(file)) return 0;
+            long pos = 0;
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(file), 64 * 1024)) {
+                ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+                int b;
+                while ((b = in.read()) >= 0) {
+                    if (b != '\n') {
+                        line.write(b);
+                        continue;
+                    }
+                    int length = line.size() + 1;
+                    Mail m = parse(line.toString(StandardCharsets.UTF_8));
+                    line.reset();
+                    pos += length;
+                    if (m == null || m.seq <= acked) continue;
+                    if (into != null) {
+                        into.add(m);
+                    } else {
+                        lastSeq = Math.max(lastSeq, m.seq);
+                        count++;
+                        bytes += length;
+                        remember(m);
+                    }
+                }
+            }
+            return pos;
+        }
+
+        // Rewrite the file without acknowledged mail (delete it when nothing is left).
+        void compact() throws IOException {
+            List<Mail> left = new ArrayList<>();
+            scan(left);
+            recent.removeIf(m -> m.seq <= acked);
+            count = left.size();
+            if (left.isEmpty()) {
+                bytes = 0;
+                Files.deleteIfExists(file);
+                return;
+            }
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            long size = 0;
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmp))) {
+                for (Mail m : left) {
+                    byte[] line = (m.seq + "," + m.time + "," + m.from.length() + "," + m.from + m.text + "\n")
+                            .getBytes(StandardCharsets.UTF_8);
+                    out.write(line);
+                    size += line.length;
+                }
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            bytes = size;
+        }
+    }
+
+    private static Mail parse(String line) {
+        int c1 = line.indexOf(',');
+        int c2 = c1 < 0 ? -1 : line.indexOf(',', c1 + 1);
+        int c3 = c2 < 0 ? -1 : line.indexOf(',', c2 + 1);
+        if (c3 < 0) return null;
+        try {
+            long seq = Long.parseLong(line.substring(0, c1));
+            long time = Long.parseLong(line.substring(c1 + 1, c2));
+            int fromLength = Integer.parseInt(line.substring(c2 + 1, c3));
+            if (c3 + 1 + fromLength > line.length()) return null;
+            String from = line.substring(c3 + 1, c3 + 1 + fromLength);
+            return new Mail(seq, time, from, line.substring(c3 + 1 + fromLength));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
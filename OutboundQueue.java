@@ -0,0 +1,118 @@
+// OutboundQueue.java
+// Per-client outbound message queue with one FIFO per DeliveryLane.
+//
+// take() always returns the oldest message of the highest-priority non-empty lane.
+// The TYPING lane is bounded and drops its oldest entry when full. The other lanes
+// share a total limit; offer() returns false once it is exceeded so the caller can
+// treat the client as a slow consumer.
+
+import java.util.ArrayDeque;
+
+public class OutboundQueue {
+
+    // Marker queued by closeAfterPending(); the writer closes the socket when it sees it.
+    public static final String CLOSE = new String("<close>");
+
+    private final ArrayDeque<String>[] lanes;
+    private final int typingLimit;
+    private final int maxQueued;
+
+    // Guarded by "this".
+    private int queued;           // messages in all lanes except TYPING
+    private boolean closed;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public OutboundQueue(int maxQueued, int typingLimit) {
+        this.maxQueued = maxQueued;
+        this.typingLimit = typingLimit;
+        this.lanes = new ArrayDeque[DeliveryLane.values().length];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new ArrayDeque<>();
+        }
+    }
+
+    // Queue a message. Returns false if the queue is full (or already closed).
+    public synchronized boolean offer(String msg, DeliveryLane lane) {
+        if (closed) return false;
+        ArrayDeque<String> q = lanes[lane.ordinal()];
+        if (lane == DeliveryLane.TYPING) {
+            if (q.size() >= typingLimit) {
+                q.pollFirst();
+            }
+        } else {
+            if (queued >= maxQueued) return false;
+            queued++;
+        }
+        q.addLast(msg);
+        notifyAll();
+        return true;
+    }
+
+    // Queue the CLOSE marker behind everything already in the CONTROL lane.
+    public synchronized void closeAfterPending() {
+        if (closed) return;
+        lanes[DeliveryLane.CONTROL.ordinal()].addLast(CLOSE);
+        notifyAll();
+    }
+
+    // Next message by priority, waiting if necessary. Returns null once closed.
+    public synchronized String take() throws InterruptedException {
+        while (true) {
+            String msg = poll();
+            if (msg != null) return msg;
+            if (closed) return null;
+            wait();
+        }
+    }
+
+    // Next message by priority, waiting at most timeoutMs. Returns null on timeout or close.
+    public synchronized String poll(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (true) {
+            String msg = poll();
+            if (msg != null || closed) return msg;
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) return null;
+            wait(left);
+        }
+    }
+
+    // Next message by priority, or null if none is queued.
+    public synchronized String poll() {
+        if (closed) return null;
+        for (int i = 0; i < lanes.length; i++) {
+            String msg = lanes[i].pollFirst();
+            if (msg != null) {
+                if (i != DeliveryLane.TYPING.ordinal() && msg != CLOSE) {
+                    queued--;
+                }
+                return msg;
+            }
+        }
+        return null;
+    }
+
+    // Stop accepting messages, discard what is queued and wake the writer.
+    public synchronized void close() {
+        closed = true;
+        for (ArrayDeque<String> q : lanes) {
+            q.clear();
+        }
+        queued = 0;
+        notifyAll();
+    }
+
+    public synchronized int depth(DeliveryLane lane) {
+        return lanes[lane.ordinal()].size();
+    }
+
+    // "control/private/normal/typing" depths, for admin views.
+    public synchronized String describeDepths() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < lanes.length; i++) {
+            if (i > 0) sb.append('/');
+            sb.append(lanes[i].size());
+        }
+        return sb.toString();
+    }
+}
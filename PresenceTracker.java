@@ -0,0 +1,235 @@
+// PresenceTracker.java
+// Join/leave announcements and the versioned roster behind /roster.
+//
+// Announcements switch mode with the event rate:
+//   - per-event (normal): "[SYSTEM] bob joined the chat. (Online: 12)"
+//   - digest (storms, e.g. everybody reconnecting after a restart): once more
+//     than presence.digestThreshold events arrive within a second, events are
+//     only counted and one line goes out every presence.digestIntervalMs:
+//     "[SYSTEM] Presence: +37 joined, -4 left. (Online: 5012)"
+//   The tracker drops back to per-event mode once a digest interval stays under
+//   the threshold.
+//
+// Roster: every change bumps the version. /roster <id> answers with only the
+// changes since that id, or the whole list if the id is unknown, too old
+// (outside the last presence.rosterLog changes) or from an earlier server run.
+// Roster ids look like "<run>:<version>".
+//
+// Notices are built under the lock but broadcast after it is released: the
+// broadcast may wait for room in the sequencer ring, and logins and logouts
+// must not queue behind it.
+
+import java.util.*;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+public class PresenceTracker {
+
+    private final ChatServer server;
+    private final int digestThreshold;     // events per second
+    private final long digestIntervalMs;
+    private final int maxChanges;
+
+    // Identifies this server run, so ids from before a restart are not mistaken for current ones.
+    private final String runId = Long.toString(System.currentTimeMillis(), 36);
+
+    // Guarded by "this".
+    private final TreeSet<String> roster = new TreeSet<>();
+    private final ArrayDeque<Change> changes = new ArrayDeque<>();
+    private long version;
+    private long windowStart;
+    private int windowEvents;
+    private boolean digestMode;
+    private int digestJoined;
+    private int digestLeft;
+    private int eventsSinceDigest;
+    private ScheduledFuture<?> digestTask;
+    private long digestChain;              // bumped by reset(), so a stale flush does nothing
+
+    public PresenceTracker(ChatServer server, ServerConfig config) {
+        this.server = server;
+        this.digestThreshold = config.getInt("presence.digestThreshold", 10);
+        this.digestIntervalMs = config.getLong("presence.digestIntervalMs", 2000);
+        this.maxChanges = config.getInt("presence.rosterLog", 10_000);
+    }
+
+    // A user came online. announce=false updates the roster silently.
+    public void joined(String username, boolean announce) {
+        String msg = null;
+        synchronized (this) {
+            if (roster.add(username)) {
+                record(username, true);
+            }
+            if (announce) {
+                msg = announce(username, true);
+            }
+        }
+        broadcast(msg);
+    }
+
+    // A user went offline.
+    public void left(String username, boolean announce) {
+        String msg = null;
+        synchronized (this) {
+            if (roster.remove(username)) {
+                record(username, false);
+            }
+            if (announce) {
+                msg = announce(username, false);
+            }
+        }
+        broadcast(msg);
+    }
+
+    // Server stopped: nobody is online and old roster ids are meaningless.
+    public synchronized void reset() {
+        roster.clear();
+        changes.clear();
+        version++;
+        digestMode = false;
+        digestJoined = 0;
+        digestLeft = 0;
+        if (digestTask != null) {
+            digestTask.cancel(false);
+            digestTask = null;
+        }
+        digestChain++;
+    }
+
+    public synchronized String currentId() {
+        return runId + ":" + version;
+    }
+
+    // Reply lines for /roster [sinceId]: a header, then one " + name" or
+    // " - name" line per change. The header's count says how many follow.
+    //   [ROSTER] FULL <id> <count>        everyone online (all " + ")
+    //   [ROSTER] DIFF <since> <id> <count> net changes since <since>
+    public synchronized List<String> rosterReply(String sinceId) {
+        long since = parseVersion(sinceId);
+        List<String> lines = new ArrayList<>();
+        String id = currentId();
+
+        // Diffs need every change after "since" to still be in the log.
+        long oldestKnown = changes.isEmpty() ? version : changes.peekFirst().version - 1;
+        if (since < 0 || since > version || since < oldestKnown) {
+            lines.add("[ROSTER] FULL " + id + " " + roster.size());
+            for (String name : roster) {
+                lines.add(" + " + name);
+            }
+            return lines;
+        }
+
+        // Net effect per user: joining and leaving again cancels out.
+        Map<String, Boolean> first = new LinkedHashMap<>();
+        Map<String, Boolean> last = new HashMap<>();
+        for (Change c : changes) {
+            if (c.version <= since) continue;
+            first.putIfAbsent(c.username, c.joined);
+            last.put(c.username, c.joined);
+        }
+        lines.add("");  // header, filled in below
+        for (Map.Entry<String, Boolean> e : first.entrySet()) {
+            boolean joinedNow = last.get(e.getKey());
+            if (e.getValue() == joinedNow) {
+                lines.add((joinedNow ? " + " : " - ") + e.getKey());
+            }
+        }
+        lines.set(0, "[ROSTER] DIFF " + sinceId + " " + id + " " + (lines.size() - 1));
+        return lines;
+    }
+
+    // Version number from "<run>:<version>", or -1 if missing or from another run.
+    private long parseVersion(String id) {
+        if (id == null) return -1;
+        int colon = id.indexOf(':');
+        if (colon < 0 || !id.substring(0, colon).equals(runId)) return -1;
+        try {
+            return Long.parseLong(id.substring(colon + 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void record(String username, boolean joined) {
+        version++;
+        changes.addLast(new Change(version, username, joined));
+        while (changes.size() > maxChanges) {
+            changes.removeFirst();
+        }
+    }
+
+    // The per-event notice to send, or null while digesting.
+    private String announce(String username, boolean joined) {
+        long now = System.currentTimeMillis();
+        if (now - windowStart >= 1000) {
+            windowStart = now;
+            windowEvents = 0;
+        }
+        windowEvents++;
+
+        if (!digestMode && windowEvents > digestThreshold) {
+            digestMode = true;
+            eventsSinceDigest = 0;
+            System.out.println("[SERVER] Presence storm: switching to digests.");
+            scheduleDigest();
+        }
+
+        if (digestMode) {
+            eventsSinceDigest++;
+            if (joined) digestJoined++;
+            else digestLeft++;
+            return null;
+        }
+
+        return "[SYSTEM] " + username + (joined ? " joined" : " left")
+                + " the chat. (Online: " + roster.size() + ")";
+    }
+
+    private void scheduleDigest() {
+        long chain = digestChain;
+        digestTask = server.getScheduler().schedule(() -> flushDigest(chain), digestIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void flushDigest(long chain) {
+        String msg = null;
+        synchronized (this) {
+            if (!digestMode || chain != digestChain) return;  // reset() in the meantime
+
+            if (digestJoined > 0 || digestLeft > 0) {
+                msg = "[SYSTEM] Presence: +" + digestJoined + " joined, -" + digestLeft
+                        + " left. (Online: " + roster.size() + ")";
+            }
+            digestJoined = 0;
+            digestLeft = 0;
+
+            double perSecond = eventsSinceDigest * 1000.0 / digestIntervalMs;
+            eventsSinceDigest = 0;
+            if (perSecond <= digestThreshold) {
+                digestMode = false;
+                digestTask = null;
+                System.out.println("[SERVER] Presence calm again: back to per-event notices.");
+            } else {
+                scheduleDigest();
+            }
+        }
+        broadcast(msg);
+    }
+
+    private void broadcast(String msg) {
+        if (msg == null) return;
+        System.out.println(msg);
+        server.logAndBroadcastSystemMessage(msg);
+    }
+
+    private static final class Change {
+        final long version;
+        final String username;
+        final boolean joined;
+
+        Change(long version, String username, boolean joined) {
+            this.version = version;
+            this.username = username;
+            this.joined = joined;
+        }
+    }
+}
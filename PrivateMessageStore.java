@@ -0,0 +1,237 @@
+// PrivateMessageStore.java
+// Per-conversation private message history behind /pmhistory.
+//
+// Every pair of users gets two append-only files in logs/pm/:
+//   <a>~<b>.log   one line per message: <epoch ms>,<direction>,<text>
+//                 direction '>' = a wrote to b, '<' = b wrote to a
+//   <a>~<b>.idx   8-byte start offset of every line in the .log
+// a and b are the two names in sorted order, with anything outside
+// [a-z0-9_-] written as %XX (UTF-8), so names are safe as file names, also on
+// file systems that ignore case.
+//
+// Reading the last N messages needs N offsets from the index and one
+// contiguous read from the log, however long the conversation (or the
+// global chat log) has grown. The log line is written before its index entry,
+// so a crash in between only hides that one message.
+//
+// On /rename every conversation of the old name is moved to the new name's
+// files. The direction marks are flipped where the new name sorts on the
+// other side of the partner; the line lengths do not change, so the index
+// stays valid.
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+public class PrivateMessageStore {
+
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final int STRIPES = 64;
+
+    private final Path dir;
+    private final boolean enabled;
+    // Writers and readers of one conversation share a stripe lock.
+    private final Object[] locks = new Object[STRIPES];
+
+    public PrivateMessageStore(ServerConfig config) {
+        this.dir = Paths.get(config.getString("pm.dir", "logs/pm"));
+        this.enabled = config.getBoolean("pm.store", true);
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // Record one PM from "from" to "to".
+    public void append(String from, String to, String text) {
+        if (!enabled) return;
+        boolean fromIsA = from.compareTo(to) <= 0;
+        String key = key(from, to);
+        byte[] line = (System.currentTimeMillis() + "," + (fromIsA ? '>' : '<') + "," + text + "\n")
+                .getBytes(StandardCharsets.UTF_8);
+
+        synchronized (lockFor(key)) {
+            try {
+                Files.createDirectories(dir);
+                long offset;
+                try (RandomAccessFile log = new RandomAccessFile(dir.resolve(key + ".log").toFile(), "rw")) {
+                    offset = log.length();
+                    log.seek(offset);
+                    log.write(line);
+                }
+                try (RandomAccessFile idx = new RandomAccessFile(dir.resolve(key + ".idx").toFile(), "rw")) {
+                    // Drop a torn entry from an earlier crash so offsets stay aligned.
+                    long end = idx.length() / 8 * 8;
+                    idx.setLength(end);
+                    idx.seek(end);
+                    idx.writeLong(offset);
+                }
+            } catch (IOException e) {
+                System.out.println("[SERVER] Could not store PM " + from + " -> " + to + ": " + e.getMessage());
+            }
+        }
+    }
+
+    // The last "count" messages between user and other, oldest first, as
+    // "[yyyy-MM-dd HH:mm:ss] sender: text".
+    public List<String> recent(String user, String other, int count) throws IOException {
+        List<String> res = new ArrayList<>();
+        if (!enabled || count <= 0) return res;
+        String key = key(user, other);
+        String a = user.compareTo(other) <= 0 ? user : other;
+        String b = a.equals(user) ? other : user;
+        Path logPath = dir.resolve(key + ".log");
+        Path idxPath = dir.resolve(key + ".idx");
+
+        byte[] bytes;
+        synchronized (lockFor(key)) {
+            if (!Files.exists(idxPath) || !Files.exists(logPath)) return res;
+            try (RandomAccessFile idx = new RandomAccessFile(idxPath.toFile(), "r");
+                 RandomAccessFile log = new RandomAccessFile(logPath.toFile(), "r")) {
+                long entries = idx.length() / 8;
+                if (entries == 0) return res;
+                long first = Math.max(0, entries - count);
+                idx.seek(first * 8);
+                long start = idx.readLong();
+                idx.seek((entries - 1) * 8);
+                long lastStart = idx.readLong();
+                // The last indexed line ends at the next newline (the log may be
+                // a little ahead of the index after a crash).
+                long end = Math.min(log.length(), endOfLine(log, lastStart));
+                bytes = new byte[(int) (end - start)];
+                log.seek(start);
+                log.readFully(bytes);
+            }
+        }
+
+        ZoneId zone = ZoneId.systemDefault();
+        for (String line : new String(bytes, StandardCharsets.UTF_8).split("\n")) {
+            int c1 = line.indexOf(',');
+            if (c1 < 0 || line.length() < c1 + 3) continue;
+            long millis;
+            try {
+                millis = Long.parseLong(line.substring(0, c1));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            String sender = line.charAt(c1 + 1) == '>' ? a : b;
+            String time = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), zone).format(TIME);
+            res.add("[" + time + "] " + sender + ": " + line.substring(c1 + 3));
+        }
+        return res;
+    }
+
+    // Move every conversation of oldName to newName. Files already under a new
+    // key are left over from a former account of that name and are replaced.
+    public void rename(String oldName, String newName) {
+        if (!Files.isDirectory(dir)) return;
+        String oldFile = ServerUtils.safeFileName(oldName);
+        List<String> partners = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            files.forEach(p -> {
+                String name = p.getFileName().toString();
+                if (!name.endsWith(".log")) return;
+                String[] pair = name.substring(0, name.length() - 4).split("~");
+                if (pair.length != 2) return;
+                if (pair[0].equals(oldFile)) partners.add(ServerUtils.fromSafeFileName(pair[1]));
+                else if (pair[1].equals(oldFile)) partners.add(ServerUtils.fromSafeFileName(pair[0]));
+            });
+        } catch (IOException e) {
+            System.out.println("[SERVER] Could not list " + dir + ": " + e.getMessage());
+            return;
+        }
+        for (String other : partners) {
+            String newOther = other.equals(oldName) ? newName : other;   // notes to self
+            String from = key(oldName, other);
+            String to = key(newName, newOther);
+            boolean flip = (oldName.compareTo(other) <= 0) != (newName.compareTo(newOther) <= 0);
+            // Both stripes, lower index first.
+            int a = stripe(from);
+            int b = stripe(to);
+            synchronized (locks[Math.min(a, b)]) {
+                synchronized (locks[Math.max(a, b)]) {
+                    try {
+                        moveConversation(from, to, flip);
+                    } catch (IOException e) {
+                        System.out.println("[SERVER] Could not move PMs " + from + " -> " + to + ": " + e.getMessage());
+                    }
+                }
+            }
+        }
+    }
+
+    private void moveConversation(String from, String to, boolean flip) throws IOException {
+        Path log = dir.resolve(from + ".log");
+        Path newLog = dir.resolve(to + ".log");
+        if (flip) {
+            Path tmp = dir.resolve(to + ".log.tmp");
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(log), 64 * 1024);
+                 OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmp), 64 * 1024)) {
+                // <epoch ms>,<direction>,<text>: flip the byte after each line's first comma.
+                int state = 0;   // 0 = before the first comma, 1 = at the direction, 2 = in the text
+                int b;
+                while ((b = in.read()) >= 0) {
+                    if (state == 1) {
+                        b = b == '>' ? '<' : b == '<' ? '>' : b;
+                        state = 2;
+                    } else if (b == '\n') {
+                        state = 0;
+                    } else if (state == 0 && b == ',') {
+                        state = 1;
+                    }
+                    out.write(b);
+                }
+            }
+            Files.move(tmp, newLog, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.delete(log);
+        } else {
+            Files.move(log, newLog, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        Path idx = dir.resolve(from + ".idx");
+        Path newIdx = dir.resolve(to + ".idx");
+        if (Files.exists(idx)) {
+            Files.move(idx, newIdx, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } else {
+            Files.deleteIfExists(newIdx);
+        }
+    }
+
+    private static long endOfLine(RandomAccessFile log, long from) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(8192);
+        long pos = from;
+        while (true) {
+            buf.clear();
+            int n = log.getChannel().read(buf, pos);
+            if (n <= 0) return pos;
+            for (int i = 0; i < n; i++) {
+                if (buf.get(i) == '\n') return pos + i + 1;
+            }
+            pos += n;
+        }
+    }
+
+    private Object lockFor(String key) {
+        return locks[stripe(key)];
+    }
+
+    private static int stripe(String key) {
+        return Math.floorMod(key.hashCode(), STRIPES);
+    }
+
+    private static String key(String x, String y) {
+        String ex = ServerUtils.safeFileName(x);
+        String ey = ServerUtils.safeFileName(y);
+        return x.compareTo(y) <= 0 ? ex + "~" + ey : ey + "~" + ex;
+    }
+}
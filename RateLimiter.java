@@ -0,0 +1,138 @@
+// RateLimiter.java
+// Per-user token buckets for inbound chat lines and expensive commands, plus one
+// server-wide bucket that caps how many broadcasts per second reach every client.
+//
+// Limits come from server.properties as rate.<kind>.burst / rate.<kind>.perSecond,
+// e.g. rate.message.burst=10 and rate.message.perSecond=2. Admins are exempt by
+// default (rate.admin.exempt=true); otherwise their limits are multiplied by
+// rate.admin.multiplier.
+//
+// Buckets are kept per username, so reconnecting does not refill them.
+
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+public class RateLimiter {
+
+    public enum Kind {
+        MESSAGE(10, 2),       // broadcast chat lines
+        PM(10, 2),            // /pm
+        ASKGPT(2, 1.0 / 30),  // /askgpt
+        LIST(3, 0.2),         // /list
+        ROSTER(5, 1),         // /roster (mostly small diffs)
+        FILE(3, 0.1),         // /send offers
+        PMHISTORY(5, 0.5),    // /pmhistory
+        TYPING(4, 1);         // /typing, /stoppedtyping (dropped silently)
+
+        final double defaultBurst;
+        final double defaultPerSecond;
+
+        Kind(double defaultBurst, double defaultPerSecond) {
+            this.defaultBurst = defaultBurst;
+            this.defaultPerSecond = defaultPerSecond;
+        }
+
+        String key() {
+            return name().toLowerCase();
+        }
+    }
+
+    private static final int SWEEP_SIZE = 10_000;
+
+    private final ServerConfig config;
+    private final boolean adminExempt;
+    private final double adminMultiplier;
+
+    private final Map<String, Map<Kind, TokenBucket>> users = new ConcurrentHashMap<>();
+    private final TokenBucket broadcasts;
+    private final LongAdder throttled = new LongAdder();
+
+    public RateLimiter(ServerConfig config) {
+        this.config = config;
+        this.adminExempt = config.getBoolean("rate.admin.exempt", true);
+        this.adminMultiplier = Math.max(1, config.getInt("rate.admin.multiplier", 5));
+        this.broadcasts = new TokenBucket(
+                config.getDouble("rate.broadcast.burst", 400),
+                config.getDouble("rate.broadcast.perSecond", 200));
+    }
+
+    // True if this user skips rate limiting altogether.
+    public boolean isExempt(boolean admin) {
+        return admin && adminExempt;
+    }
+
+    // Returns 0 if the user may go ahead, otherwise milliseconds until they may.
+    public long tryAcquire(String username, boolean admin, Kind kind) {
+        if (isExempt(admin)) return 0;
+
+        if (users.size() > SWEEP_SIZE) {
+            sweep();
+        }
+        Map<Kind, TokenBucket> buckets = users.computeIfAbsent(username, k -> new EnumMap<>(Kind.class));
+        TokenBucket bucket;
+        synchronized (buckets) {
+            bucket = buckets.computeIfAbsent(kind, k -> newBucket(k, admin));
+        }
+        long wait = bucket.tryConsume(1);
+        if (wait > 0) throttled.increment();
+        return wait;
+    }
+
+    // Server-wide broadcast budget; bounds total fan-out no matter how many senders.
+    public boolean tryAcquireBroadcast() {
+        if (broadcasts.tryConsume(1) == 0) return true;
+        throttled.increment();
+        return false;
+    }
+
+    // Build a per-connection bucket for raw inbound lines.
+    public TokenBucket newConnectionBucket() {
+        return new TokenBucket(
+                config.getDouble("rate.connection.burst", 30),
+                config.getDouble("rate.connection.perSecond", 10));
+    }
+
+    // Total refused requests since start.
+    public long getThrottledCount() {
+        return throttled.sum();
+    }
+
+    // Forget a user's buckets once they are full again (called on disconnect).
+    public void forgetIfIdle(String username) {
+        Map<Kind, TokenBucket> buckets = users.get(username);
+        if (buckets != null && allFull(buckets)) {
+            users.remove(username, buckets);
+        }
+    }
+
+    private TokenBucket newBucket(Kind kind, boolean admin) {
+        double burst = config.getDouble("rate." + kind.key() + ".burst", kind.defaultBurst);
+        double perSecond = config.getDouble("rate." + kind.key() + ".perSecond", kind.defaultPerSecond);
+        if (admin) {
+            burst *= adminMultiplier;
+            perSecond *= adminMultiplier;
+        }
+        return new TokenBucket(burst, perSecond);
+    }
+
+    private void sweep() {
+        Iterator<Map<Kind, TokenBucket>> it = users.values().iterator();
+        while (it.hasNext()) {
+            if (allFull(it.next())) {
+                it.remove();
+            }
+        }
+    }
+
+    private static boolean allFull(Map<Kind, TokenBucket> buckets) {
+        synchronized (buckets) {
+            for (TokenBucket b : buckets.values()) {
+                if (!b.isFull()) return false;
+            }
+            return true;
+        }
+    }
+}
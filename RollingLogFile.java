@@ -0,0 +1,333 @@
+// RollingLogFile.java
+// One append-only log file (CSV or binary) that rolls over by size or by calendar day.
+//
+// The live file keeps its usual name (e.g. logs/chat_history.csv). When it rolls,
+// it is renamed to <name>.<yyyy-MM-dd>.<n>.csv and a fresh file with the header is
+// started. Rolled segments are gzip-compressed and pruned on a background thread,
+// so the thread that triggered the roll only pays for a rename.
+//
+// Text logs use appendLine(). Binary logs call prepare() and then write(); prepare()
+// reports when a new file was started so the caller can re-emit per-file state
+// (e.g. BinaryLogWriter's symbol table).
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.GZIPOutputStream;
+
+public class RollingLogFile {
+
+    private static final String GZ = ".gz";
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+    private static final int MAX_KEPT_LINE_BUFFER = 64 * 1024;  // larger lines get a one-off array
+
+    private final Path path;
+    private final byte[] header;
+    private final String baseName;        // "chat_history"
+    private final String extension;       // ".csv"
+
+    private final long maxBytes;          // 0 = no size limit
+    private final boolean rollDaily;
+    private final int maxRolledFiles;     // 0 = keep every segment
+    private final int maxAgeDays;         // 0 = no age limit
+    private final boolean compress;
+    private final ExecutorService background;
+
+    // Guarded by "this".
+    private OutputStream out;
+    private long size;                    // bytes in the live file
+    private boolean oldHeader;            // live file was started with another header (older format)
+    private LocalDate fileDay;            // day the live file belongs to
+    private long nextDayMillis;           // first millisecond of the following day
+    private LocalDate lastRollDay;        // day of the most recent segment name handed out
+    private int lastRollIndex;            // its <n>; segments of a day are numbered upward
+    private byte[] lineBytes = new byte[512]; // appendLine's encode buffer
+
+    // Text log: header is one line (the line separator is added here).
+    public RollingLogFile(Path path, String header, ServerConfig config, ExecutorService background) {
+        this(path, (header + System.lineSeparator()).getBytes(StandardCharsets.UTF_8), config, background);
+    }
+
+    public RollingLogFile(Path path, byte[] header, ServerConfig config, ExecutorService background) {
+        this.path = path;
+        this.header = header;
+        this.background = background;
+
+        String fileName = path.getFileName().toString();
+        int dot = fileName.lastIndexOf('.');
+        this.baseName = dot > 0 ? fileName.substring(0, dot) : fileName;
+        this.extension = dot > 0 ? fileName.substring(dot) : "";
+
+        this.maxBytes = config.getLong("log.maxBytes", 64L * 1024 * 1024);
+        this.rollDaily = config.getBoolean("log.rollDaily", true);
+        this.maxRolledFiles = config.getInt("log.maxRolledFiles", 30);
+        this.maxAgeDays = config.getInt("log.maxAgeDays", 0);
+        this.compress = config.getBoolean("log.compress", true);
+
+        // Finish any compression/pruning a previous run did not get to.
+        background.submit(this::compressAndPrune);
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    // Append one line, rolling the file first if it is too big or from another day.
+    // The line is encoded into a reused buffer, so callers can pass a StringBuilder.
+    public synchronized void appendLine(CharSequence line) throws IOException {
+        appendLine(line, true);
+    }
+
+    // flush=false leaves the line in the buffer until flush() (or until the
+    // buffer fills), for writers that append a batch at a time.
+    public synchronized void appendLine(CharSequence line, boolean flush) throws IOException {
+        int length = ServerUtils.utf8Length(line) + LINE_SEPARATOR.length;
+        byte[] bytes = length <= MAX_KEPT_LINE_BUFFER ? lineBuffer(length) : new byte[length];
+        int end = ServerUtils.encodeUtf8(line, bytes, 0);
+        System.arraycopy(LINE_SEPARATOR, 0, bytes, end, LINE_SEPARATOR.length);
+        prepare(length);
+        write(bytes, 0, length, flush);
+    }
+
+    private byte[] lineBuffer(int length) {
+        if (lineBytes.length < length) {
+            lineBytes = new byte[Math.max(length, lineBytes.length * 2)];
+        }
+        return lineBytes;
+    }
+
+    // Make sure a file is open that can take nextLength more bytes, rolling if needed.
+    // Returns true if that file was just (re)opened, i.e. the next write starts
+    // a new file or resumes an existing one from another writer session.
+    public synchronized boolean prepare(int nextLength) throws IOException {
+        long now = System.currentTimeMillis();
+        if (out == null) {
+            open(now);
+            if (!needsRoll(now, nextLength)) {
+                return true;
+            }
+        }
+        if (needsRoll(now, nextLength)) {
+            roll(now);
+            return true;
+        }
+        return false;
+    }
+
+    // Append raw bytes to the current file. Call prepare() first.
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        write(b, off, len, true);
+    }
+
+    public synchronized void write(byte[] b, int off, int len, boolean flush) throws IOException {
+        if (out == null) {
+            throw new IOException(path.getFileName() + " is not open");
+        }
+        try {
+            out.write(b, off, len);
+            if (flush) {
+                out.flush();
+            }
+            size += len;
+        } catch (IOException e) {
+            closeQuietly();
+            throw e;
+        }
+    }
+
+    // Push buffered lines to the file (see appendLine(line, false)).
+    public synchronized void flush() throws IOException {
+        if (out == null) return;
+        try {
+            out.flush();
+        } catch (IOException e) {
+            closeQuietly();
+            throw e;
+        }
+    }
+
+    private boolean needsRoll(long now, int nextLength) {
+        if (oldHeader) return true;
+        boolean dayChanged = rollDaily && now >= nextDayMillis;
+        boolean tooBig = maxBytes > 0 && size + nextLength > maxBytes && size > header.length;
+        return dayChanged || tooBig;
+    }
+
+    // Flush and release the file handle. The next append reopens it.
+    public synchronized void close() {
+        closeQuietly();
+    }
+
+    // Open (or create with header) the live file.
+    private void open(long now) throws IOException {
+        boolean existed = Files.exists(path);
+        out = new BufferedOutputStream(
+                Files.newOutputStream(path, StandardOpenOption.CREATE, StandardOpenOption.APPEND),
+                64 * 1024);
+        if (!existed || Files.size(path) == 0) {
+            out.write(header);
+            out.flush();
+            oldHeader = false;
+        } else {
+            oldHeader = !startsWithHeader();
+        }
+        size = Files.size(path);
+
+        // A file left over from a previous day belongs to that day, so it rolls
+        // on the first append instead of mixing two days in one segment.
+        long dayRef = existed ? Files.getLastModifiedTime(path).toMillis() : now;
+        setFileDay(dayRef);
+    }
+
+    // Whether the live file begins with this writer's header.
+    private boolean startsWithHeader() throws IOException {
+        byte[] b = new byte[header.length];
+        try (InputStream in = Files.newInputStream(path)) {
+            int n = 0;
+            while (n < b.length) {
+                int r = in.read(b, n, b.length - n);
+                if (r < 0) return false;
+                n += r;
+            }
+        }
+        return Arrays.equals(b, header);
+    }
+
+    private void setFileDay(long millis) {
+        ZoneId zone = ZoneId.systemDefault();
+        fileDay = Instant.ofEpochMilli(millis).atZone(zone).toLocalDate();
+        nextDayMillis = fileDay.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli();
+    }
+
+    // Rename the live file to its segment name and start a new one.
+    private void roll(long now) throws IOException {
+        closeQuietly();
+
+        // Never reuse an index that retention already deleted, or ordering breaks.
+        if (!fileDay.equals(lastRollDay)) {
+            lastRollDay = fileDay;
+            lastRollIndex = 0;
+            for (Segment s : listSegments()) {
+                if (s.day.equals(fileDay)) {
+                    lastRollIndex = Math.max(lastRollIndex, s.index);
+                }
+            }
+        }
+        String prefix = baseName + "." + fileDay + ".";
+        Path target;
+        do {
+            lastRollIndex++;
+            target = path.resolveSibling(prefix + lastRollIndex + extension);
+        } while (Files.exists(target) || Files.exists(target.resolveSibling(target.getFileName() + GZ)));
+
+        Files.move(path, target, StandardCopyOption.ATOMIC_MOVE);
+        System.out.println("[ChatLogger] Rolled " + path.getFileName() + " -> " + target.getFileName());
+
+        open(now);
+        setFileDay(now);
+        background.submit(this::compressAndPrune);
+    }
+
+    private void closeQuietly() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException ignored) {}
+            out = null;
+        }
+    }
+
+    // Background task: gzip uncompressed segments, then enforce retention.
+    private void compressAndPrune() {
+        try {
+            List<Segment> segments = listSegments();
+            if (compress) {
+                for (Segment s : segments) {
+                    if (!s.compressed) {
+                        s.file = gzip(s.file);
+                        s.compressed = true;
+                    }
+                }
+            }
+            prune(segments);
+        } catch (IOException e) {
+            System.out.println("[ChatLogger] Error maintaining rolled logs for " + path.getFileName() + ": " + e.getMessage());
+        }
+    }
+
+    private Path gzip(Path source) throws IOException {
+        Path gz = source.resolveSibling(source.getFileName() + GZ);
+        Path tmp = source.resolveSibling(source.getFileName() + GZ + ".tmp");
+        try (InputStream in = Files.newInputStream(source);
+             OutputStream out = new GZIPOutputStream(Files.newOutputStream(tmp), 64 * 1024)) {
+            in.transferTo(out);
+        }
+        Files.move(tmp, gz, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        Files.delete(source);
+        return gz;
+    }
+
+    private void prune(List<Segment> segments) throws IOException {
+        LocalDate cutoff = maxAgeDays > 0 ? LocalDate.now().minusDays(maxAgeDays) : null;
+        int keepFrom = maxRolledFiles > 0 ? Math.max(0, segments.size() - maxRolledFiles) : 0;
+        for (int i = 0; i < segments.size(); i++) {
+            Segment s = segments.get(i);
+            if (i < keepFrom || (cutoff != null && s.day.isBefore(cutoff))) {
+                Files.deleteIfExists(s.file);
+            }
+        }
+    }
+
+    // Rolled segments of this log, oldest first.
+    private List<Segment> listSegments() throws IOException {
+        List<Segment> res = new ArrayList<>();
+        Path dir = path.toAbsolutePath().getParent();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, baseName + ".*")) {
+            for (Path p : ds) {
+                Segment s = Segment.parse(p, baseName, extension);
+                if (s != null) res.add(s);
+            }
+        }
+        res.sort(Comparator.comparing((Segment s) -> s.day).thenComparingInt(s -> s.index));
+        return res;
+    }
+
+    // A rolled file named <base>.<yyyy-MM-dd>.<n><ext>[.gz]
+    private static class Segment {
+        Path file;
+        LocalDate day;
+        int index;
+        boolean compressed;
+
+        static Segment parse(Path p, String baseName, String extension) {
+            String name = p.getFileName().toString();
+            boolean gz = name.endsWith(extension + GZ);
+            String core;
+            if (gz) {
+                core = name.substring(0, name.length() - extension.length() - GZ.length());
+            } else if (name.endsWith(extension)) {
+                core = name.substring(0, name.length() - extension.length());
+            } else {
+                return null;
+            }
+            String[] parts = core.substring(baseName.length()).split("\\.");
+            // core = <base>.<day>.<n>, so parts = ["", day, n]
+            if (parts.length != 3) return null;
+            try {
+                Segment s = new Segment();
+                s.file = p;
+                s.day = LocalDate.parse(parts[1]);
+                s.index = Integer.parseInt(parts[2]);
+                s.compressed = gz;
+                return s;
+            } catch (RuntimeException e) {
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,728 @@
+// SearchIndex.java
+// In-process inverted index over chat messages, used by /search.
+//
+// New messages are added to an in-memory "live" segment. When it holds
+// search.segmentDocs messages it is frozen, written to logs/index/ and a new live
+// segment is started. Frozen segments are merged on a background thread: once
+// MERGE_FACTOR segments of the same level sit next to each other, they become one
+// segment of the next level. A query therefore touches only a few segments and
+// never reads chat_history.csv.
+//
+// Heap: only the live segment (at most search.segmentDocs messages) keeps message
+// texts in memory. A frozen segment keeps its timestamps, the file offset of each
+// message and its postings, about 16 bytes per message plus 4 per indexed word;
+// the sender, recipient and text of a candidate hit are read from its file.
+//
+// Segment file layout (big-endian, see SegmentWriter):
+//   magic, version, baseDoc, level, docCount
+//   docCount x { timestamp, from, to, text }
+//   termCount x { term, postingCount, postingCount x docId }
+// Files are named seg-<baseDoc>-<level>.idx, so a merged segment never
+// overwrites one of its sources.
+//
+// Messages keep the names they were sent under. logs/index/renames.txt lists
+// every /rename with the first doc id indexed after it, one
+// "<doc> <old> <new>" line each; a PM's participants are mapped through the
+// renames that came after it, so it stays visible to the renamed user and not
+// to a later account that takes the old name.
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public class SearchIndex {
+
+    private static final int MAGIC = 0x43484958;       // "CHIX"
+    private static final int VERSION = 1;
+    private static final int MERGE_FACTOR = 10;
+    private static final int MIN_TERM = 2;
+    private static final int MAX_TERM = 64;
+    private static final int HEADER_BYTES = 24;
+
+    // Pseudo-term that indexes the sender, so from:<user> is a postings lookup too.
+    private static final String FROM_PREFIX = "\u0000from:";
+
+    private final Path indexDir;
+    private final Path renamesFile;
+    // Oldest first. Replaced (never mutated) under the write lock.
+    private volatile List<Rename> renames;
+    private final int segmentDocs;
+
+    // Frozen segments, oldest first. Replaced (never mutated) under the write lock.
+    private volatile List<Segment> segments = new ArrayList<>();
+    private Segment live;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Queries hold the read side while they read segment files; a merge takes
+    // the write side before it closes and deletes the files it replaced.
+    private final ReentrantReadWriteLock filesLock = new ReentrantReadWriteLock();
+
+    // Persists frozen segments and runs merges, one at a time.
+    private final ExecutorService background = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "SearchIndexMerger");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public SearchIndex(ServerConfig config) {
+        this.indexDir = Paths.get("logs", "index");
+        this.renamesFile = indexDir.resolve("renames.txt");
+        this.segmentDocs = Math.max(1, config.getInt("search.segmentDocs", 50_000));
+
+        try {
+            Files.createDirectories(indexDir);
+        } catch (IOException e) {
+            System.out.println("[SearchIndex] Could not create " + indexDir + ": " + e.getMessage());
+        }
+
+        List<Segment> loaded = loadSegments();
+        long nextDoc = loaded.isEmpty() ? 0 : loaded.get(loaded.size() - 1).endDoc();
+        this.segments = loaded;
+        this.live = new Segment(nextDoc, 0, new MemoryDocs());
+        this.renames = loadRenames(nextDoc);
+        background.submit(this::mergeIfNeeded);
+    }
+
+    // Index one delivered message. toUser is "*" for public messages;
+    // anything else makes the message visible only to fromUser and toUser.
+    // Only body (the text without "alice: " or "[PM from alice] ") is searched;
+    // text is what a hit shows. The sender is matched by from:<user>.
+    public void add(String fromUser, String toUser, String text, String body) {
+        long ts = System.currentTimeMillis();
+        Segment frozen = null;
+        lock.writeLock().lock();
+        try {
+            live.addDoc(ts, fromUser, toUser, text, body);
+            if (live.count >= segmentDocs) {
+                frozen = freezeLive();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (frozen != null) {
+            scheduleWrite(frozen);
+        }
+    }
+
+    // /rename: messages indexed so far that name oldName are newName's now.
+    public void rename(String oldName, String newName) {
+        lock.writeLock().lock();
+        try {
+            Rename r = new Rename(live.endDoc(), oldName, newName);
+            try {
+                Files.write(renamesFile, (r.beforeDoc + " " + oldName + " " + newName + "\n")
+                        .getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            } catch (IOException e) {
+                System.out.println("[SearchIndex] Could not record rename: " + e.getMessage());
+            }
+            List<Rename> next = new ArrayList<>(renames);
+            next.add(r);
+            renames = next;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Freeze whatever is in the live segment and persist it (used on server stop).
+    public void flush() {
+        Segment frozen = null;
+        lock.writeLock().lock();
+        try {
+            if (live.count > 0) {
+                frozen = freezeLive();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (frozen != null) {
+            scheduleWrite(frozen);
+        }
+    }
+
+    // Number of indexed messages (frozen + live).
+    public long size() {
+        lock.readLock().lock();
+        try {
+            return live.endDoc();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Run a query on behalf of requester and return up to limit matches, newest first.
+    // Query syntax: <terms...> [from:<user>] [since:<time>]
+    public List<String> search(String requester, String query, int limit) {
+        List<String> terms = new ArrayList<>();
+        String fromUser = null;
+        long since = Long.MIN_VALUE;
+
+        for (String word : query.trim().split("\\s+")) {
+            if (word.startsWith("from:") && word.length() > 5) {
+                fromUser = word.substring(5);
+            } else if (word.startsWith("since:") && word.length() > 6) {
+                since = ServerUtils.parseSinceMillis(word.substring(6));
+            } else {
+                tokenize(word, terms);
+            }
+        }
+        if (fromUser != null) {
+            terms.add(FROM_PREFIX + fromUser);
+        }
+        if (terms.isEmpty()) {
+            throw new IllegalArgumentException("Search needs at least one word or from:<user>.");
+        }
+
+        List<String> results = new ArrayList<>();
+
+        filesLock.readLock().lock();
+        try {
+            // The live segment is newest, so search it first. The frozen list is
+            // read under the same lock, so a segment frozen meanwhile is neither
+            // searched twice nor missed.
+            List<Segment> snapshot;
+            lock.readLock().lock();
+            try {
+                searchSegment(live, terms, since, requester, limit, results);
+                snapshot = segments;
+            } finally {
+                lock.readLock().unlock();
+            }
+            for (int i = snapshot.size() - 1; i >= 0 && results.size() < limit; i--) {
+                Segment seg = snapshot.get(i);
+                if (seg.count > 0 && seg.timestamps[seg.count - 1] < since) {
+                    break;  // this and every older segment is before "since"
+                }
+                searchSegment(seg, terms, since, requester, limit, results);
+            }
+        } finally {
+            filesLock.readLock().unlock();
+        }
+        return results;
+    }
+
+    // Intersect the postings of all terms in one segment, walking newest to oldest.
+    private void searchSegment(Segment seg, List<String> terms, long since,
+                               String requester, int limit, List<String> results) {
+        IntList[] lists = new IntList[terms.size()];
+        for (int i = 0; i < lists.length; i++) {
+            IntList p = seg.postings.get(terms.get(i));
+            if (p == null) return;
+            lists[i] = p;
+        }
+        Arrays.sort(lists, Comparator.comparingInt(l -> l.size));
+
+        Docs docs = seg.docs;
+        IntList smallest = lists[0];
+        for (int i = smallest.size - 1; i >= 0 && results.size() < limit; i--) {
+            int doc = smallest.data[i];
+            if (seg.timestamps[doc] < since) {
+                return;  // doc ids are in time order
+            }
+            boolean inAll = true;
+            for (int j = 1; j < lists.length && inAll; j++) {
+                inAll = Arrays.binarySearch(lists[j].data, 0, lists[j].size, doc) >= 0;
+            }
+            if (!inAll) continue;
+            String[] d;
+            try {
+                d = docs.get(doc);
+            } catch (IOException e) {
+                System.out.println("[SearchIndex] Error reading segment " + seg.baseDoc + ": " + e.getMessage());
+                return;
+            }
+            if (isVisible(requester, d[0], d[1], seg.baseDoc + doc)) {
+                results.add(ServerUtils.formatTimestamp(seg.timestamps[doc]) + " " + d[2]);
+            }
+        }
+    }
+
+    // Public messages are visible to everyone, PMs only to their two participants
+    // (under their current names).
+    private boolean isVisible(String requester, String from, String to, long doc) {
+        if ("*".equals(to)) return true;
+        for (Rename r : renames) {
+            if (doc >= r.beforeDoc) continue;
+            if (from.equals(r.oldName)) from = r.newName;
+            if (to.equals(r.oldName)) to = r.newName;
+        }
+        return requester.equals(from) || requester.equals(to);
+    }
+
+    // Lower-cased runs of letters/digits.
+    private static void tokenize(String text, Collection<String> out) {
+        int n = text.length();
+        int start = -1;
+        for (int i = 0; i <= n; i++) {
+            boolean word = i < n && Character.isLetterOrDigit(text.charAt(i));
+            if (word && start < 0) {
+                start = i;
+            } else if (!word && start >= 0) {
+                int len = i - start;
+                if (len >= MIN_TERM && len <= MAX_TERM) {
+                    out.add(text.substring(start, i).toLowerCase());
+                }
+                start = -1;
+            }
+        }
+    }
+
+    // Caller holds the write lock.
+    private Segment freezeLive() {
+        Segment frozen = live;
+        List<Segment> next = new ArrayList<>(segments);
+        next.add(frozen);
+        segments = next;
+        live = new Segment(frozen.endDoc(), 0, new MemoryDocs());
+        return frozen;
+    }
+
+    // Write a frozen segment; from then on its texts are read from the file.
+    // If the write fails they stay in memory.
+    private void scheduleWrite(Segment frozen) {
+        background.submit(() -> {
+            if (!segments.contains(frozen)) {
+                return;  // already merged (from memory) while this write was queued
+            }
+            Path path = segmentPath(frozen.baseDoc, frozen.level);
+            try (SegmentWriter w = new SegmentWriter(path, frozen.baseDoc, frozen.level, frozen.count)) {
+                for (int i = 0; i < frozen.count; i++) {
+                    String[] d = frozen.docs.get(i);
+                    w.doc(frozen.timestamps[i], d[0], d[1], d[2]);
+                }
+                frozen.docs = w.finish(frozen.postings);
+                frozen.file = path;
+            } catch (IOException e) {
+                System.out.println("[SearchIndex] Error writing segment: " + e.getMessage());
+            }
+            mergeIfNeeded();
+        });
+    }
+
+    // Merge trailing runs of MERGE_FACTOR same-level segments until none are left.
+    // Runs on the background thread only.
+    private void mergeIfNeeded() {
+        while (true) {
+            List<Segment> snapshot = segments;
+            int n = snapshot.size();
+            if (n < MERGE_FACTOR) return;
+
+            int level = snapshot.get(n - 1).level;
+            int runStart = n - 1;
+            while (runStart > 0 && snapshot.get(runStart - 1).level == level) {
+                runStart--;
+            }
+            if (n - runStart < MERGE_FACTOR) return;
+
+            List<Segment> run = new ArrayList<>(snapshot.subList(n - MERGE_FACTOR, n));
+            Segment merged;
+            try {
+                merged = merge(run, level + 1);
+            } catch (IOException e) {
+                System.out.println("[SearchIndex] Error writing merged segment: " + e.getMessage());
+                return;
+            }
+
+            lock.writeLock().lock();
+            try {
+                List<Segment> next = new ArrayList<>(segments);
+                int idx = next.indexOf(run.get(0));
+                next.subList(idx, idx + run.size()).clear();
+                next.add(idx, merged);
+                segments = next;
+            } finally {
+                lock.writeLock().unlock();
+            }
+
+            // Queries that still see the old list finish before the files go.
+            filesLock.writeLock().lock();
+            try {
+                for (Segment old : run) {
+                    old.docs.close();
+                }
+            } finally {
+                filesLock.writeLock().unlock();
+            }
+            for (Segment old : run) {
+                deleteFile(old);
+            }
+        }
+    }
+
+    // Concatenate consecutive segments into one new file, shifting doc ids.
+    // Texts are streamed from the source files, not collected in memory.
+    private Segment merge(List<Segment> run, int level) throws IOException {
+        Segment m = new Segment(run.get(0).baseDoc, level, null);
+        int total = 0;
+        for (Segment s : run) total += s.count;
+        m.timestamps = new long[total];
+
+        int offset = 0;
+        Path path = segmentPath(m.baseDoc, level);
+        try (SegmentWriter w = new SegmentWriter(path, m.baseDoc, level, total)) {
+            for (Segment s : run) {
+                System.arraycopy(s.timestamps, 0, m.timestamps, offset, s.count);
+                if (s.file == null) {
+                    for (int i = 0; i < s.count; i++) {
+                        String[] d = s.docs.get(i);
+                        w.doc(s.timestamps[i], d[0], d[1], d[2]);
+                    }
+                } else {
+                    try (DataInputStream in = openSegment(s.file)) {
+                        skipFully(in, HEADER_BYTES);
+                        for (int i = 0; i < s.count; i++) {
+                            w.doc(in.readLong(), readString(in), readString(in), readString(in));
+                        }
+                    }
+                }
+                for (Map.Entry<String, IntList> e : s.postings.entrySet()) {
+                    IntList src = e.getValue();
+                    IntList dst = m.postings.computeIfAbsent(e.getKey(), k -> new IntList(src.size));
+                    for (int i = 0; i < src.size; i++) {
+                        dst.add(src.data[i] + offset);
+                    }
+                }
+                offset += s.count;
+            }
+            m.count = total;
+            m.docs = w.finish(m.postings);
+            m.file = path;
+        }
+        return m;
+    }
+
+    private Path segmentPath(long baseDoc, int level) {
+        return indexDir.resolve(String.format("seg-%012d-%d.idx", baseDoc, level));
+    }
+
+    private static void deleteFile(Segment seg) {
+        if (seg.file == null) return;
+        try {
+            Files.deleteIfExists(seg.file);
+        } catch (IOException ignored) {}
+    }
+
+    // Renames recorded so far. Doc ids from nextDoc on are reused after a crash
+    // that lost the live segment, so no rename may reach past it.
+    private List<Rename> loadRenames(long nextDoc) {
+        List<Rename> res = new ArrayList<>();
+        if (!Files.exists(renamesFile)) return res;
+        try {
+            for (String line : Files.readAllLines(renamesFile, StandardCharsets.UTF_8)) {
+                String[] parts = line.split(" ");
+                if (parts.length != 3) continue;
+                try {
+                    long before = Math.min(Long.parseLong(parts[0]), nextDoc);
+                    res.add(new Rename(before, parts[1], parts[2]));
+                } catch (NumberFormatException ignored) {}
+            }
+        } catch (IOException e) {
+            System.out.println("[SearchIndex] Could not read " + renamesFile + ": " + e.getMessage());
+        }
+        return res;
+    }
+
+    private List<Segment> loadSegments() {
+        List<Segment> res = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(indexDir, "seg-*.idx")) {
+            for (Path p : ds) {
+                try {
+                    res.add(readSegment(p));
+                } catch (IOException e) {
+                    System.out.println("[SearchIndex] Skipping unreadable segment " + p.getFileName() + ": " + e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("[SearchIndex] Error listing " + indexDir + ": " + e.getMessage());
+        }
+        // On equal baseDoc the merged (higher level) segment comes first.
+        res.sort(Comparator.comparingLong((Segment s) -> s.baseDoc).thenComparing(s -> -s.level));
+
+        // A crash between writing a merged segment and deleting its sources leaves
+        // segments that the merged one already covers.
+        List<Segment> kept = new ArrayList<>();
+        long end = 0;
+        for (Segment s : res) {
+            if (!kept.isEmpty() && s.baseDoc < end) {
+                s.docs.close();
+                deleteFile(s);
+                continue;
+            }
+            kept.add(s);
+            end = s.endDoc();
+        }
+        if (!kept.isEmpty()) {
+            System.out.println("[SearchIndex] Loaded " + kept.size() + " segment(s), " + end + " message(s).");
+        }
+        return kept;
+    }
+
+    private static DataInputStream openSegment(Path path) throws IOException {
+        return new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 64 * 1024));
+    }
+
+    // Loads timestamps, postings and the offset of every document; the texts
+    // stay in the file.
+    private static Segment readSegment(Path path) throws IOException {
+        try (DataInputStream in = openSegment(path)) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("not a segment file");
+            }
+            Segment seg = new Segment(in.readLong(), in.readInt(), null);
+            int count = in.readInt();
+            seg.timestamps = new long[count];
+            long[] offsets = new long[count + 1];
+            long pos = HEADER_BYTES;
+            for (int i = 0; i < count; i++) {
+                offsets[i] = pos;
+                seg.timestamps[i] = in.readLong();
+                pos += 8 + skipString(in) + skipString(in) + skipString(in);
+            }
+            offsets[count] = pos;
+            seg.count = count;
+            int terms = in.readInt();
+            for (int t = 0; t < terms; t++) {
+                String term = readString(in);
+                int n = in.readInt();
+                IntList p = new IntList(n);
+                for (int i = 0; i < n; i++) {
+                    p.add(in.readInt());
+                }
+                seg.postings.put(term, p);
+            }
+            seg.docs = new FileDocs(FileChannel.open(path, StandardOpenOption.READ), offsets);
+            seg.file = path;
+            return seg;
+        }
+    }
+
+    // Bytes written.
+    private static int writeString(DataOutputStream out, String s) throws IOException {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+        return 4 + b.length;
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] b = new byte[in.readInt()];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    // Bytes skipped.
+    private static int skipString(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        skipFully(in, len);
+        return 4 + len;
+    }
+
+    private static void skipFully(DataInputStream in, int n) throws IOException {
+        while (n > 0) {
+            int skipped = in.skipBytes(n);
+            if (skipped <= 0) throw new EOFException();
+            n -= skipped;
+        }
+    }
+
+    // Writes one segment file through a temp file: header, documents one by
+    // one (noting their offsets), then the postings.
+    private static final class SegmentWriter implements Closeable {
+        private final Path path;
+        private final Path tmp;
+        private final DataOutputStream out;
+        private final long[] offsets;
+        private long pos = HEADER_BYTES;
+        private int docs;
+        private boolean done;
+
+        SegmentWriter(Path path, long baseDoc, int level, int count) throws IOException {
+            this.path = path;
+            this.tmp = path.resolveSibling(path.getFileName() + ".tmp");
+            this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 64 * 1024));
+            this.offsets = new long[count + 1];
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(baseDoc);
+            out.writeInt(level);
+            out.writeInt(count);
+        }
+
+        void doc(long ts, String from, String to, String text) throws IOException {
+            offsets[docs++] = pos;
+            out.writeLong(ts);
+            pos += 8 + writeString(out, from) + writeString(out, to) + writeString(out, text);
+        }
+
+        // Write the postings, move the file into place and open it for reading.
+        FileDocs finish(Map<String, IntList> postings) throws IOException {
+            offsets[docs] = pos;
+            out.writeInt(postings.size());
+            for (Map.Entry<String, IntList> e : postings.entrySet()) {
+                writeString(out, e.getKey());
+                IntList p = e.getValue();
+                out.writeInt(p.size);
+                for (int i = 0; i < p.size; i++) {
+                    out.writeInt(p.data[i]);
+                }
+            }
+            out.close();
+            Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            done = true;
+            return new FileDocs(FileChannel.open(path, StandardOpenOption.READ), offsets);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!done) {
+                out.close();
+                Files.deleteIfExists(tmp);
+            }
+        }
+    }
+
+    // The sender, recipient and text of a segment's documents.
+    private interface Docs {
+        // {from, to, text}
+        String[] get(int doc) throws IOException;
+
+        void close();
+    }
+
+    // Live segment, and frozen ones until they are written.
+    private static final class MemoryDocs implements Docs {
+        String[] from = new String[16];
+        String[] to = new String[16];
+        String[] text = new String[16];
+
+        @Override
+        public String[] get(int doc) {
+            return new String[] { from[doc], to[doc], text[doc] };
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    // Written segments: one positional read per document.
+    private static final class FileDocs implements Docs {
+        private final FileChannel channel;
+        private final long[] offsets;       // docCount + 1 entries, the last one ends the documents
+
+        FileDocs(FileChannel channel, long[] offsets) {
+            this.channel = channel;
+            this.offsets = offsets;
+        }
+
+        @Override
+        public String[] get(int doc) throws IOException {
+            ByteBuffer b = ByteBuffer.allocate((int) (offsets[doc + 1] - offsets[doc]));
+            long pos = offsets[doc];
+            while (b.hasRemaining()) {
+                int n = channel.read(b, pos + b.position());
+                if (n < 0) throw new EOFException();
+            }
+            b.flip();
+            b.getLong();  // timestamp, kept in memory
+            return new String[] { getString(b), getString(b), getString(b) };
+        }
+
+        private static String getString(ByteBuffer b) {
+            int len = b.getInt();
+            String s = new String(b.array(), b.position(), len, StandardCharsets.UTF_8);
+            b.position(b.position() + len);
+            return s;
+        }
+
+        @Override
+        public void close() {
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    // One run of consecutive messages. Local doc ids are 0..count-1 in arrival order.
+    private static final class Rename {
+        final long beforeDoc;              // applies to doc ids below this
+        final String oldName;
+        final String newName;
+
+        Rename(long beforeDoc, String oldName, String newName) {
+            this.beforeDoc = beforeDoc;
+            this.oldName = oldName;
+            this.newName = newName;
+        }
+    }
+
+    private static final class Segment {
+        final long baseDoc;
+        final int level;
+        int count;
+        long[] timestamps = new long[16];
+        volatile Docs docs;
+        volatile Path file;                 // null until written
+        final Map<String, IntList> postings = new HashMap<>();
+
+        Segment(long baseDoc, int level, Docs docs) {
+            this.baseDoc = baseDoc;
+            this.level = level;
+            this.docs = docs;
+        }
+
+        long endDoc() {
+            return baseDoc + count;
+        }
+
+        // Live segment only.
+        void addDoc(long ts, String fromUser, String toUser, String msg, String body) {
+            MemoryDocs mem = (MemoryDocs) docs;
+            if (count == timestamps.length) {
+                int cap = count * 2;
+                timestamps = Arrays.copyOf(timestamps, cap);
+                mem.from = Arrays.copyOf(mem.from, cap);
+                mem.to = Arrays.copyOf(mem.to, cap);
+                mem.text = Arrays.copyOf(mem.text, cap);
+            }
+            int doc = count;
+            timestamps[doc] = ts;
+            mem.from[doc] = fromUser;
+            mem.to[doc] = toUser;
+            mem.text[doc] = msg;
+            count++;
+
+            List<String> terms = new ArrayList<>();
+            tokenize(body, terms);
+            terms.add(FROM_PREFIX + fromUser);
+            for (String term : terms) {
+                IntList p = postings.computeIfAbsent(term, k -> new IntList(4));
+                if (p.size == 0 || p.data[p.size - 1] != doc) {
+                    p.add(doc);
+                }
+            }
+        }
+    }
+
+    // Growable sorted list of doc ids.
+    private static final class IntList {
+        int[] data;
+        int size;
+
+        IntList(int capacity) {
+            data = new int[Math.max(1, capacity)];
+        }
+
+        void add(int v) {
+            if (size == data.length) {
+                data = Arrays.copyOf(data, size * 2);
+            }
+            data[size++] = v;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+// ServerConfig.java
+// Optional tuning knobs loaded from "server.properties".
+// Every setting has a built-in default, so the file may be missing entirely.
+//
+// File format (java.util.Properties):
+//   log.maxBytes=67108864
+//   log.rollDaily=true
+
+import java.io.*;
+import java.util.Properties;
+
+public class ServerConfig {
+
+    private static final String DEFAULT_PATH = "server.properties";
+
+    private final Properties props = new Properties();
+
+    public ServerConfig() {
+        this(DEFAULT_PATH);
+    }
+
+    public ServerConfig(String filePath) {
+        File f = new File(filePath);
+        if (!f.exists()) {
+            return;
+        }
+        try (Reader r = new FileReader(f)) {
+            props.load(r);
+        } catch (IOException e) {
+            System.out.println("[ServerConfig] Error reading " + filePath + ": " + e.getMessage());
+        }
+    }
+
+    public String getString(String key, String def) {
+        String v = props.getProperty(key);
+        return (v == null || v.trim().isEmpty()) ? def : v.trim();
+    }
+
+    public int getInt(String key, int def) {
+        String v = props.getProperty(key);
+        if (v == null) return def;
+        try {
+            return Integer.parseInt(v.trim());
+        } catch (NumberFormatException e) {
+            System.out.println("[ServerConfig] Invalid number for " + key + ": " + v);
+            return def;
+        }
+    }
+
+    public long getLong(String key, long def) {
+        String v = props.getProperty(key);
+        if (v == null) return def;
+        try {
+            return Long.parseLong(v.trim());
+        } catch (NumberFormatException e) {
+            System.out.println("[ServerConfig] Invalid number for " + key + ": " + v);
+            return def;
+        }
+    }
+
+    public double getDouble(String key, double def) {
+        String v = props.getProperty(key);
+        if (v == null) return def;
+        try {
+            return Double.parseDouble(v.trim());
+        } catch (NumberFormatException e) {
+            System.out.println("[ServerConfig] Invalid number for " + key + ": " + v);
+            return def;
+        }
+    }
+
+    public boolean getBoolean(String key, boolean def) {
+        String v = props.getProperty(key);
+        if (v == null) return def;
+        return Boolean.parseBoolean(v.trim());
+    }
+}
@@ -1,6 +1,7 @@
 // ServerMain.java
 // Entry point for the server application.
 
+import java.nio.file.Paths;
 import java.util.Scanner;
 
 public class ServerMain {
@@ -21,7 +22,9 @@ public class ServerMain {
             System.out.println("5. Show path to chat_history.csv");
             System.out.println("6. Show path to connections.csv");
             System.out.println("7. Reload users.txt");
-            System.out.println("8. Exit application");
+            System.out.println("8. Import users from file (username:password[:admin])");
+            System.out.println("9. Export users to file");
+            System.out.println("10. Exit application");
             System.out.print("Choose option: ");
 
             String choice = scanner.nextLine().trim();
@@ -58,10 +61,28 @@ public class ServerMain {
                         server.reloadUsers();
                         System.out.println("[MENU] users.txt reloaded.");
                         break;
-                    case "8":
+                    case "8": {
+                        System.out.print("File to import: ");
+                        String path = scanner.nextLine().trim();
+                        UserManager.ImportReport report = server.getUserManager().importUsers(Paths.get(path));
+                        System.out.println("[MENU] Import of " + path + ": " + report);
+                        for (String problem : report.getProblems()) {
+                            System.out.println("[MENU]   " + problem);
+                        }
+                        break;
+                    }
+                    case "9": {
+                        System.out.print("Export to file: ");
+                        String path = scanner.nextLine().trim();
+                        int n = server.getUserManager().exportUsers(Paths.get(path));
+                        System.out.println("[MENU] Exported " + n + " user(s) to " + path);
+                        break;
+                    }
+                    case "10":
                         if (server.isRunning()) {
                             server.stop(false);
                         }
+                        server.getLogger().close();
                         System.out.println("[MENU] Exiting application.");
                         return;
                     default:
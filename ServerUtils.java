@@ -1,7 +1,11 @@
 // ServerUtils.java
 // Small helper functions shared by logger and other classes.
 
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 
 public class ServerUtils {
@@ -10,9 +14,88 @@ public class ServerUtils {
     private static final DateTimeFormatter DTF =
             DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
 
+    // Coarse clock: the formatted text only changes once a second, so the latest
+    // second is cached and shared by every caller (one format per second, not per log line).
+    private static volatile CachedSecond cachedSecond = new CachedSecond(Long.MIN_VALUE, "");
+
     // Returns current timestamp as "YYYY-MM-DD HH:MM:SS"
     public static String now() {
-        return LocalDateTime.now().format(DTF);
+        return formatTimestamp(System.currentTimeMillis());
+    }
+
+    // Formats epoch milliseconds the same way as now().
+    public static String formatTimestamp(long epochMillis) {
+        long second = Math.floorDiv(epochMillis, 1000);
+        CachedSecond c = cachedSecond;
+        if (c.second == second) {
+            return c.text;
+        }
+        String text = LocalDateTime.ofInstant(Instant.ofEpochMilli(epochMillis), ZoneId.systemDefault()).format(DTF);
+        if (second > c.second) {
+            cachedSecond = new CachedSecond(second, text);  // old timestamps don't evict the current one
+        }
+        return text;
+    }
+
+    // Reverse of formatTimestamp (log timestamps); -1 if the text is not one.
+    public static long parseTimestamp(String text) {
+        try {
+            return LocalDateTime.parse(text, DTF).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    private static final class CachedSecond {
+        final long second;
+        final String text;
+
+        CachedSecond(long second, String text) {
+            this.second = second;
+            this.text = text;
+        }
+    }
+
+    // Parses a duration like "90" (seconds), "30s", "15m", "2h" or "7d" into milliseconds.
+    // Throws IllegalArgumentException if the text is not a duration.
+    public static long parseDurationMillis(String text) {
+        String t = text.trim().toLowerCase();
+        if (t.isEmpty()) throw new IllegalArgumentException("Empty duration.");
+        char unit = t.charAt(t.length() - 1);
+        long factor;
+        switch (unit) {
+            case 's': factor = 1000L; break;
+            case 'm': factor = 60_000L; break;
+            case 'h': factor = 3_600_000L; break;
+            case 'd': factor = 86_400_000L; break;
+            default:  factor = 1000L; unit = 0; break;
+        }
+        String digits = unit == 0 ? t : t.substring(0, t.length() - 1);
+        try {
+            long n = Long.parseLong(digits);
+            if (n < 0) throw new IllegalArgumentException("Negative duration: " + text);
+            return n * factor;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid duration: " + text);
+        }
+    }
+
+    // Parses a point in time for filters like since:<time>.
+    // Accepts a relative duration ("2h" = two hours ago), a date ("2024-05-01"),
+    // or a date and time ("2024-05-01T13:45" / "2024-05-01T13:45:10").
+    public static long parseSinceMillis(String text) {
+        ZoneId zone = ZoneId.systemDefault();
+        try {
+            if (text.indexOf('T') > 0) {
+                return LocalDateTime.parse(text).atZone(zone).toInstant().toEpochMilli();
+            }
+            if (text.indexOf('-') > 0) {
+                return LocalDate.parse(text).atStartOfDay(zone).toInstant().toEpochMilli();
+            }
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid time: " + text);
+        }
+        return System.currentTimeMillis() - parseDurationMillis(text);
     }
 
     // Very small CSV escape:
@@ -20,8 +103,119 @@ public class ServerUtils {
     // - Replace " with '' to avoid breaking the CSV cell
     public static String escapeForCsv(String message) {
         if (message == null) return "";
-        return message.replace("\r", "\\r")
-                      .replace("\n", "\\n")
-                      .replace("\"", "''");
+        for (int i = 0; i < message.length(); i++) {
+            char c = message.charAt(i);
+            if (c == '\r' || c == '\n' || c == '"') {
+                StringBuilder sb = new StringBuilder(message.length() + 16);
+                appendEscapedCsv(sb, message);
+                return sb.toString();
+            }
+        }
+        return message;  // nothing to escape (the common case)
+    }
+
+    // Same escape as escapeForCsv, in one pass, straight into the caller's builder.
+    public static void appendEscapedCsv(StringBuilder sb, String message) {
+        if (message == null) return;
+        int start = 0;
+        for (int i = 0; i < message.length(); i++) {
+            String replacement;
+            switch (message.charAt(i)) {
+                case '\r': replacement = "\\r"; break;
+                case '\n': replacement = "\\n"; break;
+                case '"':  replacement = "''"; break;
+                default:   continue;
+            }
+            sb.append(message, start, i).append(replacement);
+            start = i + 1;
+        }
+        sb.append(message, start, message.length());
+    }
+
+    // Number of bytes encodeUtf8 will write for s.
+    public static int utf8Length(CharSequence s) {
+        int n = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                n += 1;
+            } else if (c < 0x800) {
+                n += 2;
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                        && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    n += 4;
+                    i++;
+                } else {
+                    n += 1;  // written as '?'
+                }
+            } else {
+                n += 3;
+            }
+        }
+        return n;
+    }
+
+    // Encodes s as UTF-8 into dst at off (which must have utf8Length(s) bytes free)
+    // without the temporary byte[] of String.getBytes. Returns the new offset.
+    // Unpaired surrogates become '?', as String.getBytes does.
+    public static int encodeUtf8(CharSequence s, byte[] dst, int off) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                dst[off++] = (byte) c;
+            } else if (c < 0x800) {
+                dst[off++] = (byte) (0xC0 | (c >> 6));
+                dst[off++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                        && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    dst[off++] = (byte) (0xF0 | (cp >> 18));
+                    dst[off++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                    dst[off++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                    dst[off++] = (byte) (0x80 | (cp & 0x3F));
+                } else {
+                    dst[off++] = '?';
+                }
+            } else {
+                dst[off++] = (byte) (0xE0 | (c >> 12));
+                dst[off++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                dst[off++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return off;
+    }
+
+    // A user name as a file name: [a-z0-9_-] kept, every other UTF-8 byte as %XX,
+    // so names stay distinct also on file systems that ignore case.
+    public static String safeFileName(String name) {
+        StringBuilder sb = new StringBuilder(name.length());
+        for (byte b : name.getBytes(StandardCharsets.UTF_8)) {
+            char c = (char) (b & 0xff);
+            if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '_' || c == '-') {
+                sb.append(c);
+            } else {
+                sb.append('%').append(Character.toUpperCase(Character.forDigit(c >> 4, 16)))
+                  .append(Character.toUpperCase(Character.forDigit(c & 0xf, 16)));
+            }
+        }
+        return sb.toString();
+    }
+
+    // Inverse of safeFileName.
+    public static String fromSafeFileName(String fileName) {
+        byte[] out = new byte[fileName.length()];
+        int n = 0;
+        for (int i = 0; i < fileName.length(); i++) {
+            char c = fileName.charAt(i);
+            if (c == '%' && i + 2 < fileName.length()) {
+                out[n++] = (byte) Integer.parseInt(fileName.substring(i + 1, i + 3), 16);
+                i += 2;
+            } else {
+                out[n++] = (byte) c;
+            }
+        }
+        return new String(out, 0, n, StandardCharsets.UTF_8);
     }
 }
@@ -0,0 +1,125 @@
+// SessionTokens.java
+// Signed, expiring session tokens so a client can reconnect with
+// "/resume <token>" instead of repeating the username/password exchange.
+//
+// Token: base64url(username) "." expiryMillis "." epoch "." base64url(HMAC-SHA256)
+//
+// The HMAC key is random per server run, so a restart invalidates every token.
+// Each user has an epoch (0 unless revoked); revoke() bumps it, which
+// invalidates all of that user's outstanding tokens at once (/kick, /changepw,
+// /rename). Lifetime: session.ttlMinutes (default 60).
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+public class SessionTokens {
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private final boolean enabled;
+    private final long ttlMillis;
+    private volatile SecretKeySpec key;
+    private final Map<String, Integer> epochs = new ConcurrentHashMap<>();
+
+    // Mac instances are not thread-safe; one per thread, re-keyed when the key rotates.
+    private final ThreadLocal<KeyedMac> macs = new ThreadLocal<>();
+
+    public SessionTokens(ServerConfig config) {
+        this.enabled = config.getBoolean("session.enabled", true);
+        this.ttlMillis = config.getLong("session.ttlMinutes", 60) * 60_000L;
+        this.key = newKey();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // New token for a user who has just logged in (or resumed).
+    public String issue(String username) {
+        long expiry = System.currentTimeMillis() + ttlMillis;
+        String payload = encode(username) + "." + expiry + "." + epochs.getOrDefault(username, 0);
+        return payload + "." + encode(sign(payload));
+    }
+
+    // Username the token was issued to, or null if it is malformed, forged,
+    // expired or revoked.
+    public String verify(String token) {
+        if (!enabled) return null;
+        int sig = token.lastIndexOf('.');
+        if (sig < 0) return null;
+        String payload = token.substring(0, sig);
+        String[] parts = payload.split("\\.");
+        if (parts.length != 3) return null;
+        try {
+            byte[] expected = sign(payload);
+            byte[] given = Base64.getUrlDecoder().decode(token.substring(sig + 1));
+            if (!MessageDigest.isEqual(expected, given)) return null;
+
+            String username = new String(Base64.getUrlDecoder().decode(parts[0]), StandardCharsets.UTF_8);
+            long expiry = Long.parseLong(parts[1]);
+            int epoch = Integer.parseInt(parts[2]);
+            if (System.currentTimeMillis() > expiry) return null;
+            if (epoch != epochs.getOrDefault(username, 0)) return null;
+            return username;
+        } catch (IllegalArgumentException e) {  // bad base64 or number
+            return null;
+        }
+    }
+
+    // Invalidate every token issued to this user so far.
+    public void revoke(String username) {
+        epochs.merge(username, 1, Integer::sum);
+    }
+
+    // Invalidate every token (e.g. users.txt was reloaded and may have changed).
+    public void revokeAll() {
+        key = newKey();
+    }
+
+    private byte[] sign(String payload) {
+        SecretKeySpec k = key;
+        KeyedMac m = macs.get();
+        if (m == null || m.key != k) {
+            try {
+                Mac mac = Mac.getInstance(ALGORITHM);
+                mac.init(k);
+                m = new KeyedMac(k, mac);
+                macs.set(m);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("HmacSHA256 unavailable", e);
+            }
+        }
+        return m.mac.doFinal(payload.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static SecretKeySpec newKey() {
+        byte[] bytes = new byte[32];
+        new SecureRandom().nextBytes(bytes);
+        return new SecretKeySpec(bytes, ALGORITHM);
+    }
+
+    private static String encode(String s) {
+        return encode(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String encode(byte[] b) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(b);
+    }
+
+    private static final class KeyedMac {
+        final SecretKeySpec key;
+        final Mac mac;
+
+        KeyedMac(SecretKeySpec key, Mac mac) {
+            this.key = key;
+            this.mac = mac;
+        }
+    }
+}
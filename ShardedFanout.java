@@ -0,0 +1,164 @@
+// ShardedFanout.java
+// Delivers one action (e.g. "queue this broadcast") to every registered recipient.
+//
+// Recipients are spread over a fixed number of shards. Each shard keeps its
+// members in a plain array (rebuilt on join/leave) and has its own worker
+// thread, so a broadcast to a large audience runs on all shards at once and
+// each worker walks one contiguous array.
+//
+// Audiences smaller than the parallel threshold are served on the caller's
+// thread, as before. The serial path is only taken while no parallel delivery is
+// still running, so one sender's broadcasts always reach each recipient in order.
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+public class ShardedFanout<T> {
+
+    private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+
+    private final Shard<T>[] shards;
+    private final int parallelThreshold;
+    private final Map<T, Shard<T>> shardOf = new HashMap<>();     // guarded by "this"
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();   // parallel deliveries not finished
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public ShardedFanout(String name, int shardCount, int parallelThreshold) {
+        this.shards = new Shard[Math.max(1, shardCount)];
+        // With one shard a worker hop only adds latency.
+        this.parallelThreshold = shards.length == 1 ? Integer.MAX_VALUE : parallelThreshold;
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard<>(name + "-" + i);
+        }
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    public int shardCount() {
+        return shards.length;
+    }
+
+    public synchronized void add(T recipient) {
+        if (shardOf.containsKey(recipient)) return;
+        // Smallest shard, so shards stay balanced as recipients come and go.
+        Shard<T> shard = shards[0];
+        for (Shard<T> s : shards) {
+            if (s.members.length < shard.members.length) shard = s;
+        }
+        shardOf.put(recipient, shard);
+        shard.add(recipient);
+        size.incrementAndGet();
+    }
+
+    public synchronized void remove(T recipient) {
+        Shard<T> shard = shardOf.remove(recipient);
+        if (shard != null && shard.remove(recipient)) {
+            size.decrementAndGet();
+        }
+    }
+
+    public synchronized void clear() {
+        for (Shard<T> s : shards) {
+            s.clear();
+        }
+        shardOf.clear();
+        size.set(0);
+    }
+
+    // Run action for every recipient. The returned future completes when all
+    // of them have been handled (immediately on the serial path).
+    public CompletableFuture<Void> deliver(Consumer<? super T> action) {
+        if (size.get() < parallelThreshold && inFlight.get() == 0) {
+            for (Shard<T> s : shards) {
+                s.run(action);
+            }
+            return DONE;
+        }
+
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        AtomicInteger remaining = new AtomicInteger(shards.length);
+        inFlight.incrementAndGet();
+        for (Shard<T> s : shards) {
+            s.worker.execute(() -> {
+                s.run(action);
+                if (remaining.decrementAndGet() == 0) {
+                    inFlight.decrementAndGet();
+                    done.complete(null);
+                }
+            });
+        }
+        return done;
+    }
+
+    // Run action for every recipient on the caller's thread, outside the ordered
+    // deliveries: no order against them and no effect on the serial/parallel
+    // switch. For notices that need no order (typing indicators).
+    public void forEachUnordered(Consumer<? super T> action) {
+        for (Shard<T> s : shards) {
+            s.run(action);
+        }
+    }
+
+    // Stop the worker threads (the fan-out is unusable afterwards).
+    public void shutdown() {
+        for (Shard<T> s : shards) {
+            s.worker.shutdown();
+        }
+    }
+
+    private static final class Shard<T> {
+        final ExecutorService worker;
+        volatile Object[] members = new Object[0];   // copy-on-write
+
+        Shard(String threadName) {
+            this.worker = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, threadName);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+
+        synchronized void clear() {
+            members = new Object[0];
+        }
+
+        synchronized void add(T recipient) {
+            Object[] m = Arrays.copyOf(members, members.length + 1);
+            m[m.length - 1] = recipient;
+            members = m;
+        }
+
+        synchronized boolean remove(T recipient) {
+            Object[] m = members;
+            for (int i = 0; i < m.length; i++) {
+                if (m[i] == recipient) {
+                    Object[] n = new Object[m.length - 1];
+                    System.arraycopy(m, 0, n, 0, i);
+                    System.arraycopy(m, i + 1, n, i, m.length - i - 1);
+                    members = n;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @SuppressWarnings("unchecked")
+        void run(Consumer<? super T> action) {
+            for (Object o : members) {
+                try {
+                    action.accept((T) o);
+                } catch (RuntimeException e) {
+                    // One bad recipient must not stop delivery to the rest of the shard.
+                    System.out.println("[SERVER] Delivery error: " + e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,198 @@
+// TimingWheel.java
+// Hashed timing wheel for large numbers of delayed tasks (scheduled
+// announcements, self-destructing messages).
+//
+// Time is cut into ticks (tickMs). A task due in d ticks goes into slot
+// (now + d) mod slots with d / slots full rounds still to wait. One ticker
+// thread advances a tick at a time and only looks at the tasks in that slot,
+// so scheduling and cancelling are O(1) and the cost of a tick does not depend
+// on how many tasks are pending elsewhere.
+//
+// Other threads never touch the slots: new and cancelled timeouts are handed
+// to the ticker through lock-free queues. Tasks run on the ticker thread and
+// must be short (hand heavy work elsewhere). Expiry is accurate to one tick.
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+public class TimingWheel {
+
+    private static final int MAX_TRANSFER_PER_TICK = 100_000;
+
+    private final long tickNanos;
+    private final Slot[] slots;
+    private final int mask;
+    private final long startNanos = System.nanoTime();
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final Thread ticker;
+    private volatile boolean running = true;
+    private long tick;   // ticker thread only
+
+    // slots is rounded up to a power of two.
+    public TimingWheel(String name, long tickMs, int slots) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMs));
+        int n = Integer.highestOneBit(Math.max(2, slots - 1)) << 1;
+        this.slots = new Slot[n];
+        for (int i = 0; i < n; i++) {
+            this.slots[i] = new Slot();
+        }
+        this.mask = n - 1;
+        this.ticker = new Thread(this::run, name);
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    // Run task once after delay.
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        if (!running) throw new IllegalStateException("timing wheel stopped");
+        Timeout t = new Timeout(this, task, System.nanoTime() - startNanos + unit.toNanos(Math.max(0, delay)));
+        pending.incrementAndGet();
+        added.add(t);
+        return t;
+    }
+
+    // Timeouts scheduled and neither run nor cancelled yet.
+    public int pending() {
+        return pending.get();
+    }
+
+    public void stop() {
+        running = false;
+        LockSupport.unpark(ticker);
+    }
+
+    private void run() {
+        while (running) {
+            long deadline = (tick + 1) * tickNanos;
+            long now;
+            while ((now = System.nanoTime() - startNanos) < deadline) {
+                LockSupport.parkNanos(deadline - now);
+                if (!running) return;
+            }
+            removeCancelled();
+            transferAdded();
+            Slot slot = slots[(int) (tick & mask)];
+            slot.expire(now);
+            tick++;
+        }
+    }
+
+    private void transferAdded() {
+        for (int i = 0; i < MAX_TRANSFER_PER_TICK; i++) {
+            Timeout t = added.poll();
+            if (t == null) return;
+            if (t.state.get() != Timeout.WAITING) continue;  // cancelled before it got a slot
+
+            long due = Math.max(tick, t.deadline / tickNanos);   // never into the past
+            t.remainingRounds = (due - tick) / slots.length;
+            slots[(int) (due & mask)].add(t);
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout t;
+        while ((t = cancelled.poll()) != null) {
+            if (t.slot != null) {
+                t.slot.remove(t);
+            }
+        }
+    }
+
+    // A scheduled task; cancel() is O(1) and safe from any thread.
+    public static final class Timeout {
+        static final int WAITING = 0;
+        static final int CANCELLED = 1;
+        static final int EXPIRED = 2;
+
+        private final TimingWheel wheel;
+        private final Runnable task;
+        private final long deadline;          // nanos since wheel start
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+
+        // Ticker thread only.
+        long remainingRounds;
+        Slot slot;
+        Timeout prev;
+        Timeout next;
+
+        Timeout(TimingWheel wheel, Runnable task, long deadline) {
+            this.wheel = wheel;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        // True if the task had not run yet (and now never will).
+        public boolean cancel() {
+            if (!state.compareAndSet(WAITING, CANCELLED)) return false;
+            wheel.pending.decrementAndGet();
+            wheel.cancelled.add(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+
+        // Milliseconds until the task is due (0 if due or done).
+        public long remainingMillis() {
+            long left = deadline - (System.nanoTime() - wheel.startNanos);
+            return Math.max(0, TimeUnit.NANOSECONDS.toMillis(left));
+        }
+    }
+
+    // Doubly linked list of the timeouts hashed to one slot (ticker thread only).
+    private final class Slot {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout t) {
+            t.slot = this;
+            t.prev = tail;
+            t.next = null;
+            if (tail == null) head = t;
+            else tail.next = t;
+            tail = t;
+        }
+
+        void remove(Timeout t) {
+            if (t.slot != this) return;
+            if (t.prev == null) head = t.next;
+            else t.prev.next = t.next;
+            if (t.next == null) tail = t.prev;
+            else t.next.prev = t.prev;
+            t.prev = null;
+            t.next = null;
+            t.slot = null;
+        }
+
+        void expire(long now) {
+            Timeout t = head;
+            while (t != null) {
+                Timeout next = t.next;
+                if (t.remainingRounds > 0) {
+                    t.remainingRounds--;
+                } else if (t.deadline <= now) {
+                    remove(t);
+                    if (t.state.compareAndSet(Timeout.WAITING, Timeout.EXPIRED)) {
+                        pending.decrementAndGet();
+                        try {
+                            t.task.run();
+                        } catch (RuntimeException e) {
+                            System.out.println("[SERVER] Timer task failed: " + e);
+                        }
+                    }
+                }
+                t = next;
+            }
+        }
+    }
+}
@@ -0,0 +1,46 @@
+// TokenBucket.java
+// Classic token bucket: holds up to "capacity" tokens and refills at a fixed rate.
+// Each allowed action spends tokens; when the bucket is empty the action is refused.
+
+public class TokenBucket {
+
+    private final double capacity;
+    private final double tokensPerMs;
+
+    // Guarded by "this".
+    private double tokens;
+    private long lastRefill;
+
+    public TokenBucket(double capacity, double tokensPerSecond) {
+        this.capacity = capacity;
+        this.tokensPerMs = tokensPerSecond / 1000.0;
+        this.tokens = capacity;
+        this.lastRefill = System.currentTimeMillis();
+    }
+
+    // Spend n tokens if available. Returns 0 on success, otherwise the number of
+    // milliseconds until n tokens will be available (nothing is spent).
+    public synchronized long tryConsume(double n) {
+        refill();
+        if (tokens >= n) {
+            tokens -= n;
+            return 0;
+        }
+        if (tokensPerMs <= 0) return Long.MAX_VALUE;
+        return (long) Math.ceil((n - tokens) / tokensPerMs);
+    }
+
+    // True if the bucket has refilled completely (nothing to remember about it).
+    public synchronized boolean isFull() {
+        refill();
+        return tokens >= capacity;
+    }
+
+    private void refill() {
+        long now = System.currentTimeMillis();
+        if (now > lastRefill) {
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerMs);
+            lastRefill = now;
+        }
+    }
+}
@@ -0,0 +1,749 @@
+// TrafficReplay.java
+// Replays recorded traffic from the server logs against a test server, so real
+// peak hours can be reproduced while tuning it.
+//
+// Usage:
+//   java TrafficReplay [logsDir] [--speed 1|10|max|<factor>] [--from time] [--to time]
+//        [--server host:port] [--format auto|csv|binary] [--prefix p] [--password pw]
+//        [--admin user:pw]
+//
+// connections.* and chat_history.* (live, rolled and compressed, CSV or
+// binary) are streamed and merged by time. Every user session gets its own
+// connection, and sessions follow the log:
+//   LOGIN_SUCCESS / SIGNUP_SUCCESS / LOGIN_RESUME    log in (signing up if needed)
+//   DISCONNECT / IDLE_TIMEOUT / DEAD_PEER / SLOW_CONSUMER   disconnect
+//   BROADCAST / PRIVATE chat lines                   sent by that user
+//   ADMIN chat lines, ADMIN_ACTION:KICK              /announce and /kick from --admin
+// A user who talks without a logged login (the log starts mid-session) is
+// logged in on the spot. Server-generated lines (SYSTEM, AI) and the other
+// events are counted but not replayed.
+//
+// Events keep their spacing divided by --speed ("max" = as fast as possible).
+// CSV timestamps only have seconds, so the events of one second are spread
+// evenly over it. Latency is the time from sending a line to the sender's own
+// copy coming back (broadcasts) or the PM echo, so it covers the whole
+// server path. Progress is printed every second.
+//
+// Without --server a ChatServer is started in this JVM on port 12500 with the
+// server.properties of the current directory. It writes its own ./logs, so run
+// the replay from another directory than the one the logs come from. All users
+// use --password (default "replay"). Replaying many users from one address
+// needs higher server.maxConnectionsPerIp, server.maxConnectsPerIpPerMinute and
+// rate.connection.* limits than the defaults.
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+
+public class TrafficReplay {
+
+    private static final int LOGIN = 0;
+    private static final int BROADCAST = 1;
+    private static final int PM = 2;
+    private static final int ANNOUNCE = 3;
+    private static final int KICK = 4;
+    private static final int LOGOUT = 5;
+
+    // One replayable event. user is the original name (before --prefix).
+    private static final class Event {
+        long time;
+        final int kind;
+        final String user;
+        final String target;
+        final String text;
+
+        Event(long time, int kind, String user, String target, String text) {
+            this.time = time;
+            this.kind = kind;
+            this.user = user;
+            this.target = target;
+            this.text = text;
+        }
+    }
+
+    private final String host;
+    private final int port;
+    private final String prefix;
+    private final String password;
+    private final Map<String, Session> sessions = new HashMap<>();   // dispatcher thread only
+    private Session admin;
+
+    private final LatencyStats broadcastLatency = new LatencyStats();
+    private final LatencyStats pmLatency = new LatencyStats();
+    private final AtomicReference<LatencyStats> window = new AtomicReference<>(new LatencyStats());
+    private final LongAdder events = new LongAdder();
+    private final LongAdder logins = new LongAdder();
+    private final LongAdder loginFailures = new LongAdder();
+    private final LongAdder broadcasts = new LongAdder();
+    private final LongAdder pms = new LongAdder();
+    private final LongAdder adminActions = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder dropped = new LongAdder();       // the sender was not (or no longer) logged in
+    private final LongAdder pmFailures = new LongAdder();
+    private final LongAdder unanswered = new LongAdder();    // no echo before the session ended
+    private final AtomicInteger online = new AtomicInteger();
+    private final AtomicInteger peakOnline = new AtomicInteger();
+    private final Map<String, Long> skipped = new TreeMap<>(); // reader (dispatcher) thread only
+    private volatile long logTime;
+    private volatile boolean stopping;
+    private final ScheduledExecutorService timers = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "Replay-timer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private TrafficReplay(String host, int port, String prefix, String password) {
+        this.host = host;
+        this.port = port;
+        this.prefix = prefix;
+        this.password = password;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path dir = Paths.get("logs");
+        double speed = 1;
+        long from = Long.MIN_VALUE;
+        long to = Long.MAX_VALUE;
+        String server = null;
+        String format = "auto";
+        String prefix = "";
+        String password = "replay";
+        String adminSpec = "admin:admin";
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--speed":
+                    String s = args[++i].toLowerCase();
+                    speed = s.equals("max") ? 0 : Double.parseDouble(s.endsWith("x") ? s.substring(0, s.length() - 1) : s);
+                    break;
+                case "--from":     from = ServerUtils.parseSinceMillis(args[++i]); break;
+                case "--to":       to = ServerUtils.parseSinceMillis(args[++i]); break;
+                case "--server":   server = args[++i]; break;
+                case "--format":   format = args[++i].toLowerCase(); break;
+                case "--prefix":   prefix = args[++i]; break;
+                case "--password": password = args[++i]; break;
+                case "--admin":    adminSpec = args[++i]; break;
+                default:           dir = Paths.get(args[i]); break;
+            }
+        }
+
+        List<LogAnalytics.LogFile> connFiles = LogAnalytics.discover(dir, "connections", format);
+        List<LogAnalytics.LogFile> chatFiles = LogAnalytics.discover(dir, "chat_history", format);
+        if (connFiles.isEmpty() && chatFiles.isEmpty()) {
+            System.out.println("[Replay] No log files found in " + dir.toAbsolutePath());
+            return;
+        }
+
+        ChatServer local = null;
+        String host = "localhost";
+        int port = 12500;
+        if (server == null) {
+            if (dir.toAbsolutePath().normalize().equals(Paths.get("logs").toAbsolutePath().normalize())) {
+                System.out.println("[Replay] The in-process server writes to ./logs, which is being replayed."
+                        + " Copy the logs elsewhere, run from another directory or use --server.");
+                return;
+            }
+            local = new ChatServer();
+            local.setPort(port);
+            local.start();
+        } else {
+            int colon = server.lastIndexOf(':');
+            host = server.substring(0, colon);
+            port = Integer.parseInt(server.substring(colon + 1));
+        }
+
+        TrafficReplay replay = new TrafficReplay(host, port, prefix, password);
+        try {
+            replay.connectAdmin(adminSpec);
+            replay.run(new LogSource(connFiles, false, from, to, replay.skipped),
+                    new LogSource(chatFiles, true, from, to, replay.skipped), speed);
+        } finally {
+            replay.closeAll();
+            if (local != null) local.stop(false);
+        }
+        System.exit(0);   // connection threads of the replayed clients
+    }
+
+    private void connectAdmin(String spec) {
+        int colon = spec.indexOf(':');
+        if (colon < 0) {
+            System.out.println("[Replay] --admin must be user:password; admin actions will not be replayed.");
+            return;
+        }
+        Session s = new Session(spec.substring(0, colon));
+        try {
+            s.conn.login(s.name, spec.substring(colon + 1), false).get(10, TimeUnit.SECONDS);
+            s.online();
+            admin = s;
+        } catch (Exception e) {
+            System.out.println("[Replay] Admin login as " + s.name + " failed; admin actions will not be replayed.");
+            s.conn.close();
+        }
+    }
+
+    private void run(LogSource conns, LogSource chats, double speed) throws Exception {
+        Event first = earliest(conns, chats);
+        if (first == null) {
+            System.out.println("[Replay] Nothing to replay in the selected time range.");
+            return;
+        }
+        long logStart = first.time;
+        long wallStart = System.nanoTime();
+        System.out.println("[Replay] Replaying from " + ServerUtils.formatTimestamp(logStart) + " at "
+                + (speed == 0 ? "maximum speed" : speed + "x") + " against " + host + ":" + port);
+
+        long[] last = new long[1];
+        ScheduledFuture<?> progress = timers.scheduleAtFixedRate(() -> {
+            long sent = broadcasts.sum() + pms.sum();
+            LatencyStats w = window.getAndSet(new LatencyStats());
+            System.out.println(String.format("[Replay] t=%ds log %s | online %d | sent %d (%d/s) | echo %s | throttled %d",
+                    (System.nanoTime() - wallStart) / 1_000_000_000L, ServerUtils.formatTimestamp(logTime),
+                    online.get(), sent, sent - last[0], w.summary(), throttled.sum()));
+            last[0] = sent;
+        }, 1, 1, TimeUnit.SECONDS);
+
+        Event e;
+        long logEnd = logStart;
+        while ((e = earliest(conns, chats)) != null) {
+            (e == conns.peek() ? conns : chats).poll();
+            if (speed > 0) {
+                long due = wallStart + (long) ((e.time - logStart) * 1_000_000 / speed);
+                long wait;
+                while ((wait = due - System.nanoTime()) > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+            }
+            logTime = e.time;
+            logEnd = e.time;
+            events.increment();
+            dispatch(e);
+        }
+
+        // Give the last echoes a moment to come back.
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (outstanding() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(50);
+        }
+        progress.cancel(false);
+        long wallMillis = (System.nanoTime() - wallStart) / 1_000_000;
+        printSummary(logStart, logEnd, wallMillis);
+    }
+
+    // Next event of either log. On a tie a login goes before the chat lines
+    // and anything else after them (a user's last message and their
+    // disconnect are often logged in the same second).
+    private static Event earliest(LogSource conns, LogSource chats) throws IOException {
+        Event c = conns.peek();
+        Event m = chats.peek();
+        if (c == null) return m;
+        if (m == null) return c;
+        if (m.time != c.time) return m.time < c.time ? m : c;
+        return c.kind == LOGIN ? c : m;
+    }
+
+    private void dispatch(Event e) {
+        switch (e.kind) {
+            case LOGIN: {
+                Session s = sessions.get(e.user);
+                if (s == null || s.gone) {
+                    login(e.user);
+                }
+                break;
+            }
+            case LOGOUT: {
+                Session s = sessions.get(e.user);
+                if (s != null && !s.gone) s.logout();
+                break;
+            }
+            case BROADCAST:
+                session(e.user).broadcast(e.text);
+                break;
+            case PM:
+                session(e.user).pm(prefix + e.target, e.text);
+                break;
+            case ANNOUNCE:
+            case KICK:
+                if (admin == null || admin.gone) {
+                    skip(e.kind == KICK ? "ADMIN_ACTION:KICK (no admin)" : "ADMIN (no admin)");
+                    break;
+                }
+                String line = e.kind == KICK ? "/kick " + prefix + e.target : "/announce " + e.text;
+                admin.run(() -> {
+                    if (admin.conn.send(line)) adminActions.increment();
+                    else dropped.increment();
+                });
+                break;
+            default:
+                break;
+        }
+    }
+
+    // The user's session, logging in first if the log did not show the login.
+    private Session session(String user) {
+        Session s = sessions.get(user);
+        if (s == null || s.gone) {
+            s = login(user);
+        }
+        return s;
+    }
+
+    // A new session for user. If the previous one is still waiting for its
+    // last echoes, the login waits for it to close: the server does not expect
+    // two live sessions under one name.
+    private Session login(String user) {
+        Session s = new Session(prefix + user);
+        Session previous = sessions.put(user, s);
+        logins.increment();
+        if (previous != null) {
+            previous.closed.thenRun(() -> startLogin(s));
+        } else {
+            startLogin(s);
+        }
+        return s;
+    }
+
+    private void startLogin(Session s) {
+        if (stopping) {
+            s.failed();
+            return;
+        }
+        s.conn.login(s.name, password, true).whenComplete((v, err) -> {
+            if (err != null) {
+                loginFailures.increment();
+                s.failed();
+            } else {
+                s.online();
+            }
+        });
+    }
+
+    private int outstanding() {
+        int n = 0;
+        for (Session s : sessions.values()) n += s.outstanding();
+        return n;
+    }
+
+    private void closeAll() {
+        stopping = true;
+        for (Session s : sessions.values()) s.closeNow();
+        sessions.clear();
+        if (admin != null) admin.closeNow();
+    }
+
+    private void skip(String what) {
+        skipped.merge(what, 1L, Long::sum);
+    }
+
+    private void printSummary(long logStart, long logEnd, long wallMillis) {
+        long span = Math.max(0, logEnd - logStart);
+        long sent = broadcasts.sum() + pms.sum();
+        System.out.println("[Replay] Done: " + events.sum() + " events from " + ServerUtils.formatTimestamp(logStart)
+                + " to " + ServerUtils.formatTimestamp(logEnd) + " (" + span / 1000 + "s of log) in "
+                + String.format("%.1fs", wallMillis / 1000.0)
+                + (wallMillis > 0 ? String.format(" (%.1fx)", (double) span / wallMillis) : ""));
+        System.out.println("[Replay] Sessions: " + logins.sum() + " logins (" + loginFailures.sum() + " failed), peak "
+                + peakOnline.get() + " online");
+        System.out.println("[Replay] Sent " + broadcasts.sum() + " broadcasts, " + pms.sum() + " PMs, "
+                + adminActions.sum() + " admin actions" + String.format(" (%.1f msgs/s)", wallMillis > 0 ? sent * 1000.0 / wallMillis : 0.0)
+                + "; " + throttled.sum() + " throttled, " + pmFailures.sum() + " PMs refused, " + dropped.sum()
+                + " dropped (sender not logged in), " + unanswered.sum() + " unanswered");
+        System.out.println("[Replay] Broadcast echo: " + broadcastLatency.summary());
+        System.out.println("[Replay] PM echo:        " + pmLatency.summary());
+        if (!skipped.isEmpty()) {
+            StringBuilder sb = new StringBuilder("[Replay] Not replayed:");
+            for (Map.Entry<String, Long> s : skipped.entrySet()) {
+                sb.append(' ').append(s.getKey()).append(' ').append(s.getValue()).append(',');
+            }
+            sb.setLength(sb.length() - 1);
+            System.out.println(sb);
+        }
+    }
+
+    // ---------- One replayed user ----------
+
+    private final class Session implements ChatListener {
+        final String name;
+        final ChatConnection conn;
+        private final String echoPrefix;
+        volatile boolean gone;                                // logged out or failed: the next event logs in again
+        final CompletableFuture<Void> closed = new CompletableFuture<>();
+
+        // Guarded by "this".
+        private List<Runnable> waiting = new ArrayList<>();   // actions queued before login completed; null once online
+        private boolean dead;                                 // logged out (or failed): no more sends
+        private boolean closing;                              // logged out, waiting for the last echoes
+        private boolean counted;                              // included in "online"
+        private int pmsInFlight;
+        private final ArrayDeque<String> echoText = new ArrayDeque<>();
+        private final ArrayDeque<Long> echoSent = new ArrayDeque<>();
+
+        Session(String name) {
+            this.name = name;
+            this.echoPrefix = name + ": ";
+            this.conn = new ChatConnection(host, port, this);
+            conn.setAutoReconnect(false);
+        }
+
+        // Run now if logged in, after the login if it is still going on.
+        synchronized void run(Runnable action) {
+            if (dead) {
+                dropped.increment();
+            } else if (waiting != null) {
+                waiting.add(action);
+            } else {
+                action.run();
+            }
+        }
+
+        synchronized void online() {
+            counted = true;
+            peakOnline.accumulateAndGet(online.incrementAndGet(), Math::max);
+            List<Runnable> todo = waiting;
+            waiting = null;
+            if (todo != null) {
+                for (Runnable r : todo) {
+                    if (dead) {
+                        dropped.increment();
+                    } else {
+                        r.run();
+                    }
+                }
+            }
+        }
+
+        synchronized void failed() {
+            dead = true;
+            gone = true;
+            if (waiting != null) dropped.add(waiting.size());
+            waiting = null;
+            conn.close();
+            closed.complete(null);
+        }
+
+        void broadcast(String text) {
+            run(() -> {
+                echoText.add(text);
+                echoSent.add(System.nanoTime());
+                if (conn.send(text)) {
+                    broadcasts.increment();
+                } else {
+                    echoText.pollLast();
+                    echoSent.pollLast();
+                    dropped.increment();
+                }
+            });
+        }
+
+        void pm(String target, String text) {
+            run(() -> {
+                long sent = System.nanoTime();
+                pms.increment();
+                pmsInFlight++;
+                conn.pm(target, text).whenComplete((echo, err) -> pmDone(sent, err));
+            });
+        }
+
+        private synchronized void pmDone(long sent, Throwable err) {
+            pmsInFlight--;
+            if (err == null) {
+                long micros = (System.nanoTime() - sent) / 1000;
+                pmLatency.recordMicros(micros);
+                window.get().recordMicros(micros);
+            } else if (closed.isDone()) {
+                unanswered.increment();
+            } else if (String.valueOf(err.getMessage()).contains("too fast")) {
+                throttled.increment();
+            } else {
+                pmFailures.increment();
+            }
+            closeIfIdle();
+        }
+
+        // Close once everything queued before it has been sent.
+        synchronized void logout() {
+            gone = true;   // later events of this user go to a new session
+            if (waiting != null) {
+                waiting.add(this::close);
+            } else {
+                close();
+            }
+        }
+
+        // Sends waiting for their echo (and, at the end, for the login).
+        synchronized int outstanding() {
+            return echoText.size() + pmsInFlight + (waiting != null && !dead ? waiting.size() : 0);
+        }
+
+        // Logged out: close when the echoes of the last sends are back (at
+        // maximum speed a logout often follows right after them), at most 5s later.
+        synchronized void close() {
+            dead = true;
+            gone = true;
+            if (echoText.isEmpty() && pmsInFlight == 0) {
+                closeNow();
+            } else if (!closing) {
+                closing = true;
+                timers.schedule(this::closeNow, 5, TimeUnit.SECONDS);
+            }
+        }
+
+        synchronized void closeNow() {
+            if (closed.isDone()) return;
+            dead = true;
+            gone = true;
+            if (waiting != null) dropped.add(waiting.size());
+            waiting = null;
+            unanswered.add(echoText.size());
+            echoText.clear();
+            echoSent.clear();
+            conn.close();
+            leave();
+            closed.complete(null);
+        }
+
+        private void closeIfIdle() {
+            if (closing && echoText.isEmpty() && pmsInFlight == 0) closeNow();
+        }
+
+        private void leave() {
+            if (counted) {
+                counted = false;
+                online.decrementAndGet();
+            }
+        }
+
+        @Override
+        public void onMessage(String line) {
+            if (line.startsWith(echoPrefix)) {
+                synchronized (this) {
+                    String expected = echoText.peek();
+                    // History replayed at login also starts with our name; only our last sends count.
+                    if (expected == null || !line.regionMatches(echoPrefix.length(), expected, 0, expected.length())) {
+                        return;
+                    }
+                    echoText.poll();
+                    long micros = (System.nanoTime() - echoSent.poll()) / 1000;
+                    broadcastLatency.recordMicros(micros);
+                    window.get().recordMicros(micros);
+                    closeIfIdle();
+                }
+            } else if (line.startsWith("[SYSTEM] You are sending messages too fast")
+                    || line.startsWith("[SYSTEM] The chat is too busy right now")) {
+                synchronized (this) {
+                    if (echoText.poll() != null) {
+                        echoSent.poll();
+                        throttled.increment();
+                        closeIfIdle();
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void onDisconnected(String reason, boolean willReconnect) {
+            synchronized (this) {
+                dead = true;
+                gone = true;
+                unanswered.add(echoText.size());
+                echoText.clear();
+                echoSent.clear();
+                leave();
+            }
+            closed.complete(null);
+        }
+    }
+
+    // ---------- Reading the logs ----------
+
+    // Replayable events of one log (chat or connections), file after file.
+    private static final class LogSource {
+        private final Iterator<LogAnalytics.LogFile> files;
+        private final boolean chat;
+        private final long from;
+        private final long to;
+        private final Map<String, Long> skipped;
+        private final ArrayDeque<Event> ready = new ArrayDeque<>();
+        private final int[] commas = new int[4];
+        private BufferedReader csv;
+        private LogAnalytics.LogFile csvFile;
+        private BinaryLogReader bin;
+        private InputStream stream;
+        private Event carry;          // CSV: first event of the next second
+        private boolean done;
+
+        LogSource(List<LogAnalytics.LogFile> files, boolean chat, long from, long to, Map<String, Long> skipped) {
+            this.files = files.iterator();
+            this.chat = chat;
+            this.from = from;
+            this.to = to;
+            this.skipped = skipped;
+        }
+
+        Event peek() throws IOException {
+            if (ready.isEmpty()) fill();
+            return ready.peek();
+        }
+
+        Event poll() throws IOException {
+            if (ready.isEmpty()) fill();
+            return ready.poll();
+        }
+
+        // Binary records have milliseconds. CSV records of one second are read
+        // together and spread evenly over that second.
+        private void fill() throws IOException {
+            Event e = carry != null ? carry : read();
+            carry = null;
+            if (e == null) return;
+            ready.add(e);
+            if (bin != null) return;
+            long second = e.time;
+            while ((e = read()) != null && e.time == second) {
+                ready.add(e);
+            }
+            carry = e;
+            int n = ready.size();
+            int i = 0;
+            for (Event r : ready) {
+                r.time = second + 1000L * i++ / n;
+            }
+        }
+
+        // Next replayable event in [from, to), or null at the end.
+        private Event read() throws IOException {
+            while (!done) {
+                if (csv == null && bin == null && !open()) {
+                    done = true;
+                    return null;
+                }
+                Event e = bin != null ? readBinary() : readCsv();
+                if (e == null) continue;        // file finished or record not replayable
+                if (e.time >= to) {
+                    done = true;
+                    close();
+                    return null;
+                }
+                if (e.time >= from) return e;
+            }
+            return null;
+        }
+
+        private boolean open() throws IOException {
+            if (!files.hasNext()) return false;
+            LogAnalytics.LogFile f = files.next();
+            InputStream raw = Files.newInputStream(f.path);
+            if (f.gzip) raw = new GZIPInputStream(raw, 64 * 1024);
+            stream = raw;
+            if (f.binary) {
+                bin = new BinaryLogReader(raw);
+            } else {
+                csv = new BufferedReader(new InputStreamReader(raw, StandardCharsets.UTF_8), 64 * 1024);
+                csvFile = f;
+            }
+            return true;
+        }
+
+        private void close() throws IOException {
+            if (stream != null) stream.close();
+            stream = null;
+            csv = null;
+            bin = null;
+        }
+
+        private Event readCsv() throws IOException {
+            String line = csv.readLine();
+            if (line == null) {
+                close();
+                return null;
+            }
+            if (line.startsWith("timestamp,") || !LogAnalytics.findCommas(line, commas)) return null;
+            if (LogAnalytics.pastCutoff(csvFile, line, commas[0])) {
+                close();                        // the binary log has the rest
+                return null;
+            }
+            long time = ServerUtils.parseTimestamp(line.substring(0, commas[0]));
+            if (time < 0) return null;
+            String user = line.substring(commas[0] + 1, commas[1]);
+            if (!chat) {
+                return connectionEvent(time, user, line.substring(commas[3] + 1));
+            }
+            String message = line.substring(commas[3] + 1);
+            if (message.length() >= 2 && message.startsWith("\"") && message.endsWith("\"")) {
+                message = message.substring(1, message.length() - 1);
+            }
+            return chatEvent(time, user, line.substring(commas[1] + 1, commas[2]),
+                    line.substring(commas[2] + 1, commas[3]), message.replace("\\n", " ").replace("\\r", " "));
+        }
+
+        private Event readBinary() throws IOException {
+            if (!bin.next()) {
+                close();
+                return null;
+            }
+            if (bin.recordType == BinaryLogWriter.REC_CHAT) {
+                return chatEvent(bin.timestamp, bin.fromUser, bin.toUser, bin.messageType,
+                        bin.message.replace('\n', ' ').replace('\r', ' '));
+            }
+            return connectionEvent(bin.timestamp, bin.username, bin.event);
+        }
+
+        private Event chatEvent(long time, String from, String to, String type, String message) {
+            switch (type) {
+                case "BROADCAST":
+                    return new Event(time, BROADCAST, from, null, strip(message, from + ": "));
+                case "EXPIRING": {
+                    // "alice (expires in 30s): text", replayed as a plain broadcast
+                    int colon = message.indexOf("): ");
+                    return new Event(time, BROADCAST, from, null,
+                            colon >= 0 ? message.substring(colon + 3) : message);
+                }
+                case "PRIVATE":
+                    return new Event(time, PM, from, to, strip(message, "[PM from " + from + "] "));
+                case "ADMIN":
+                    return new Event(time, ANNOUNCE, from, null, strip(message, "[ADMIN] "));
+                default:
+                    skip(type);
+                    return null;
+            }
+        }
+
+        private Event connectionEvent(long time, String user, String event) {
+            if (user.equals("-")) {
+                skip(event);
+                return null;
+            }
+            switch (event) {
+                case "LOGIN_SUCCESS":
+                case "SIGNUP_SUCCESS":
+                case "LOGIN_RESUME":
+                    return new Event(time, LOGIN, user, null, null);
+                case "DISCONNECT":
+                case "IDLE_TIMEOUT":
+                case "DEAD_PEER":
+                case "SLOW_CONSUMER":
+                    return new Event(time, LOGOUT, user, null, null);
+                default:
+                    if (event.startsWith("ADMIN_ACTION:KICK ")) {
+                        return new Event(time, KICK, user, event.substring("ADMIN_ACTION:KICK ".length()), null);
+                    }
+                    int colon = event.indexOf(':');
+                    skip(colon > 0 ? event.substring(0, colon) : event);
+                    return null;
+            }
+        }
+
+        private void skip(String what) {
+            skipped.merge(what, 1L, Long::sum);
+        }
+
+        private static String strip(String message, String prefix) {
+            return message.startsWith(prefix) ? message.substring(prefix.length()) : message;
+        }
+    }
+}
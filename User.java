@@ -8,7 +8,8 @@ public class User {
     // Stored password:
     //  - Either plain-text (legacy) OR
     //  - "$sha256$" + hex(SHA-256 hash) for new/changed passwords.
-    String password;
+    // Volatile: logins read it without the UserManager lock.
+    volatile String password;
 
     // Flag that indicates if this user has admin privileges.
     boolean isAdmin;
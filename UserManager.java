@@ -6,6 +6,7 @@
 //  - Create new users (signup)
 //  - Change passwords (/changepw)
 //  - Rename users (/rename)
+//  - Bulk import / export (server menu 8 and 9)
 //
 // File format accepted:
 //   username:password
@@ -16,17 +17,30 @@
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.*;
 
 public class UserManager {
 
     private static final String HASH_PREFIX = "$sha256$";
+    private static final int IMPORT_BATCH = 2048;         // lines hashed per task
+    private static final int MAX_REPORTED_PROBLEMS = 20;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 not available", e);
+        }
+    });
 
     private final String filePath;                // Path to users.txt
-    private final Map<String, User> users = new ConcurrentHashMap<>();
+    // Replaced as a whole by reload() and importUsers(), so lock-free readers
+    // never see a half-filled directory. Changed in place only under the lock.
+    private volatile Map<String, User> users = new ConcurrentHashMap<>();
 
     public UserManager(String filePath) {
         this.filePath = filePath;
@@ -35,7 +49,7 @@ public class UserManager {
 
     // Reload users from disk (used at startup and from menu "Reload users.txt").
     public synchronized void reload() {
-        users.clear();
+        Map<String, User> loaded = new ConcurrentHashMap<>();
         File f = new File(filePath);
 
         // If the file doesn't exist, create an empty one.
@@ -45,6 +59,7 @@ public class UserManager {
             } catch (IOException e) {
                 System.out.println("[UserManager] Could not create " + filePath + ": " + e.getMessage());
             }
+            users = loaded;
             return;
         }
 
@@ -63,12 +78,13 @@ public class UserManager {
                     if (parts.length >= 3 && "admin".equalsIgnoreCase(parts[2])) {
                         admin = true;
                     }
-                    users.put(username, new User(username, pw, admin));
+                    loaded.put(username, new User(username, pw, admin));
                 }
             }
         } catch (IOException e) {
             System.out.println("[UserManager] Error reading users.txt: " + e.getMessage());
         }
+        users = loaded;   // one swap: a login during the reload sees the old or the new directory
     }
 
     // Ensure at least one admin exists.
@@ -84,13 +100,14 @@ public class UserManager {
     }
 
     // Fetch a user by username, or null if not found.
-    public synchronized User getUser(String username) {
+    // Not synchronized: logins must not wait behind a signup, a save or an import.
+    public User getUser(String username) {
         return users.get(username);
     }
 
     // Verify a candidate password against a stored user's password.
     // Supports both legacy plaintext and hashed formats.
-    public synchronized boolean verifyPassword(User user, String candidate) {
+    public boolean verifyPassword(User user, String candidate) {
         if (user == null) return false;
         String stored = user.password;
         if (stored == null) return false;
@@ -133,9 +150,12 @@ public class UserManager {
         if (!users.containsKey(oldName)) return false;
         if (users.containsKey(newName)) return false;  // Can't overwrite existing user
 
-        User u = users.remove(oldName);
-        u.username = newName;
-        users.put(newName, u);
+        // Add the new name before dropping the old one, so a concurrent login
+        // always finds one of them. A fresh User keeps the old object unchanged
+        // for anyone still holding it.
+        User old = users.get(oldName);
+        users.put(newName, new User(newName, old.password, old.isAdmin));
+        users.remove(oldName);
         saveAll();
         return true;
     }
@@ -143,32 +163,188 @@ public class UserManager {
     // Write all user accounts back to users.txt.
     // We rewrite the whole file every time to keep it simple.
     private synchronized void saveAll() {
-        File f = new File(filePath);
-        try (PrintWriter pw = new PrintWriter(new FileWriter(f))) {
-            for (User u : users.values()) {
-                if (u.isAdmin) {
-                    pw.println(u.username + ":" + u.password + ":admin");
-                } else {
-                    pw.println(u.username + ":" + u.password);
-                }
-            }
+        try {
+            writeFile(Paths.get(filePath), users.values());
         } catch (IOException e) {
             System.out.println("[UserManager] Error writing users.txt: " + e.getMessage());
         }
     }
 
-    // Compute SHA-256 hash as hex string.
-    private static String hashPassword(String pw) {
+    // Write accounts to a temp file and move it over the target, so a crash
+    // or a full disk never leaves a half-written users.txt behind.
+    private static void writeFile(Path file, Collection<User> list) throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        Path tmp = dir.resolve(file.getFileName() + ".tmp");
+        try (BufferedWriter w = new BufferedWriter(
+                new OutputStreamWriter(Files.newOutputStream(tmp), StandardCharsets.UTF_8), 1 << 16)) {
+            for (User u : list) {
+                w.write(u.username);
+                w.write(':');
+                w.write(u.password);
+                if (u.isAdmin) w.write(":admin");
+                w.newLine();
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Bulk import from a file in the users.txt format (username:password[:admin]).
+    // Plain-text passwords are hashed; "$sha256$..." ones (e.g. from an export)
+    // are taken as they are. Names that already exist, repeat within the file or
+    // cannot be stored are skipped and reported.
+    //
+    // The file is read as a stream and handed out in batches to one hashing
+    // thread per core, so nothing is hashed under the lock. The accounts are
+    // then committed together: one users.txt write and one publish, or nothing
+    // if the write fails. Logins keep working meanwhile (getUser and
+    // verifyPassword do not take the lock); signups and /rename wait for the
+    // commit, and a name they take first is reported as a duplicate.
+    public ImportReport importUsers(Path source) throws IOException {
+        long start = System.nanoTime();
+        ImportReport report = new ImportReport();
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "user-import");
+            t.setDaemon(true);
+            return t;
+        });
+        List<Future<List<User>>> batches = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
         try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            byte[] bytes = md.digest(pw.getBytes(StandardCharsets.UTF_8));
-            StringBuilder sb = new StringBuilder();
-            for (byte b : bytes) {
-                sb.append(String.format("%02x", b));
+            try (BufferedReader br = Files.newBufferedReader(source, StandardCharsets.UTF_8)) {
+                List<String[]> batch = new ArrayList<>(IMPORT_BATCH);
+                String line;
+                int lineNo = 0;
+                while ((line = br.readLine()) != null) {
+                    lineNo++;
+                    line = line.trim();
+                    if (line.isEmpty() || line.startsWith("#")) continue;
+                    report.lines++;
+
+                    String[] parts = line.split(":", -1);
+                    String name = parts[0].trim();
+                    if (parts.length < 2 || parts.length > 3 || name.isEmpty() || parts[1].isEmpty()
+                            || name.chars().anyMatch(Character::isWhitespace)
+                            || (parts.length == 3 && !parts[2].isEmpty() && !"admin".equalsIgnoreCase(parts[2]))) {
+                        report.problem(lineNo, "invalid line");
+                        report.invalid++;
+                    } else if (!seen.add(name)) {
+                        report.problem(lineNo, "'" + name + "' repeats an earlier line");
+                        report.duplicates++;
+                    } else if (users.containsKey(name)) {
+                        // Checked again at commit; this only saves hashing it.
+                        report.problem(lineNo, "'" + name + "' already exists");
+                        report.duplicates++;
+                    } else {
+                        batch.add(new String[] { name, parts[1], parts.length == 3 && !parts[2].isEmpty() ? "admin" : "" });
+                        if (batch.size() == IMPORT_BATCH) {
+                            batches.add(pool.submit(hashBatch(batch)));
+                            batch = new ArrayList<>(IMPORT_BATCH);
+                        }
+                    }
+                }
+                if (!batch.isEmpty()) batches.add(pool.submit(hashBatch(batch)));
             }
-            return sb.toString();
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException("SHA-256 not available", e);
+
+            List<User> hashed = new ArrayList<>();
+            for (Future<List<User>> f : batches) {
+                hashed.addAll(f.get());
+            }
+            commit(hashed, report);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("import interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("hashing failed: " + e.getCause(), e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        report.threads = threads;
+        report.millis = (System.nanoTime() - start) / 1_000_000;
+        return report;
+    }
+
+    private static Callable<List<User>> hashBatch(List<String[]> batch) {
+        return () -> {
+            List<User> out = new ArrayList<>(batch.size());
+            for (String[] e : batch) {
+                String pw = e[1].startsWith(HASH_PREFIX) ? e[1] : HASH_PREFIX + hashPassword(e[1]);
+                out.add(new User(e[0], pw, !e[2].isEmpty()));
+            }
+            return out;
+        };
+    }
+
+    // Final duplicate check against the live directory, one write, one publish.
+    private synchronized void commit(List<User> fresh, ImportReport report) throws IOException {
+        Map<String, User> add = new LinkedHashMap<>();
+        for (User u : fresh) {
+            if (users.containsKey(u.username)) {
+                report.problem(0, "'" + u.username + "' was created during the import");
+                report.duplicates++;
+            } else {
+                add.put(u.username, u);
+            }
+        }
+        if (add.isEmpty()) return;
+
+        List<User> all = new ArrayList<>(users.size() + add.size());
+        all.addAll(users.values());
+        all.addAll(add.values());
+        writeFile(Paths.get(filePath), all);   // throws before anything is published
+        Map<String, User> next = new ConcurrentHashMap<>(users);
+        next.putAll(add);
+        users = next;
+        report.imported = add.size();
+    }
+
+    // Write every account (hashed passwords, admin flags) to a file in the
+    // users.txt format, sorted by name. The result can be imported again.
+    public synchronized int exportUsers(Path target) throws IOException {
+        List<User> list = new ArrayList<>(users.values());
+        list.sort(Comparator.comparing(u -> u.username));
+        writeFile(target, list);
+        return list.size();
+    }
+
+    // Outcome of importUsers().
+    public static class ImportReport {
+        int lines;          // non-empty, non-comment lines read
+        int imported;
+        int duplicates;     // already existing or repeated in the file
+        int invalid;
+        int threads;
+        long millis;
+        final List<String> problems = new ArrayList<>();
+
+        private void problem(int lineNo, String what) {
+            if (problems.size() < MAX_REPORTED_PROBLEMS) {
+                problems.add(lineNo > 0 ? "line " + lineNo + ": " + what : what);
+            }
+        }
+
+        public List<String> getProblems() {
+            return problems;
+        }
+
+        // e.g. "100000 line(s): 99998 imported, 1 duplicate(s), 1 invalid in 812ms (8 hashing threads)"
+        @Override
+        public String toString() {
+            return lines + " line(s): " + imported + " imported, " + duplicates + " duplicate(s), "
+                    + invalid + " invalid in " + millis + "ms (" + threads + " hashing threads)";
+        }
+    }
+
+    // Compute SHA-256 hash as hex string.
+    // One MessageDigest per thread, reused: logins and import threads hash in parallel.
+    private static String hashPassword(String pw) {
+        MessageDigest md = SHA256.get();
+        byte[] bytes = md.digest(pw.getBytes(StandardCharsets.UTF_8));
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX[bytes[i] & 0xf];
         }
+        return new String(hex);
     }
 }